@@ -0,0 +1,68 @@
+package eu.integrable.starduststorage.benchmark;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.service.FileService;
+import eu.integrable.starduststorage.service.StoredFile;
+import eu.integrable.starduststorage.storage.InMemoryBlobStore;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-256 of content held in memory, alone and as FileService.digest reads it. Operations
+ * per second times the size is the checksum throughput in bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChecksumBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    private int size;
+
+    private int bufferSize;
+
+    private FileService fileService;
+
+    private byte[] content;
+
+    @Setup
+    public void setUp() {
+
+        StorageProperty storageProperty = new StorageProperty();
+        bufferSize = storageProperty.getBufferSize();
+        fileService = Services.fileService(storageProperty, new InMemoryBlobStore());
+
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+    }
+
+    @Benchmark
+    public byte[] sha256() {
+
+        // Hashed in buffer sized steps like the upload path
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        for (int offset = 0; offset < content.length; offset += bufferSize) {
+            messageDigest.update(content, offset, Math.min(bufferSize, content.length - offset));
+        }
+        return messageDigest.digest();
+    }
+
+    @Benchmark
+    public StoredFile digest() throws IOException {
+
+        return fileService.digest(new ByteArrayInputStream(content));
+    }
+}
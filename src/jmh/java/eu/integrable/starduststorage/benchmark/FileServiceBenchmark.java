@@ -0,0 +1,86 @@
+package eu.integrable.starduststorage.benchmark;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.service.FileService;
+import eu.integrable.starduststorage.service.StoredFile;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.InMemoryBlobStore;
+import eu.integrable.starduststorage.storage.LocalBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading whole files through FileService. The memory store leaves out the
+ * file system, the difference to the local store is the cost of the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileServiceBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    private int size;
+
+    // Store written to, the in-memory one exists for tests and benchmarks only
+    @Param({"local", "memory"})
+    private String store;
+
+    private Path directory;
+
+    private FileService fileService;
+
+    private byte[] content;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        directory = Files.createTempDirectory("stardust-benchmark");
+        StorageProperty storageProperty = new StorageProperty();
+        BlobStore blobStore = store.equals("local")
+                ? new LocalBlobStore(directory, storageProperty.getShardDepth())
+                : new InMemoryBlobStore();
+        fileService = Services.fileService(storageProperty, blobStore);
+
+        // Random content, neither compressible nor deduplicated
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+        fileService.saveFile(new ByteArrayInputStream(content), "stored");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public StoredFile saveFile() throws IOException {
+
+        return fileService.saveFile(new ByteArrayInputStream(content), "saved");
+    }
+
+    @Benchmark
+    public long loadFile() throws IOException {
+
+        try (InputStream inputStream = fileService.loadFile("stored").getInputStream()) {
+            return fileService.copy(inputStream, OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package eu.integrable.starduststorage.benchmark;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+import eu.integrable.starduststorage.security.JwtTokenService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification of a signed token, paid by every request missing the token cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JwtTokenServiceBenchmark {
+
+    private JwtTokenService jwtTokenService;
+
+    private String token;
+
+    @Setup
+    public void setUp() {
+
+        jwtTokenService = Services.jwtTokenService("benchmark-secret");
+        token = jwtTokenService.createCacheEvictionToken("benchmark", Duration.ofDays(1));
+    }
+
+    @Benchmark
+    public DecodedJWT getDecodedJwt() {
+
+        return jwtTokenService.getDecodedJwt(token);
+    }
+}
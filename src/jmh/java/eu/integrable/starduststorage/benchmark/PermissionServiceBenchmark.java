@@ -0,0 +1,71 @@
+package eu.integrable.starduststorage.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.service.PermissionService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Access checks of a user on the permission list of a file and of a user missing from it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PermissionServiceBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int users;
+
+    private PermissionService permissionService;
+
+    private FileModel fileModel;
+
+    private Authentication member;
+
+    private Authentication stranger;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+
+        permissionService = Services.permissionService();
+
+        List<String> permission = IntStream.range(0, users)
+                .mapToObj(i -> "user-" + i)
+                .collect(Collectors.toList());
+        fileModel = FileModel.builder()
+                .id("file")
+                .owner("owner")
+                .permission(new ObjectMapper().writeValueAsString(permission))
+                .build();
+
+        member = new UsernamePasswordAuthenticationToken("user-" + (users - 1), null, List.of());
+        stranger = new UsernamePasswordAuthenticationToken("stranger", null, List.of());
+    }
+
+    @Benchmark
+    public boolean permitted() {
+
+        return permissionService.isAccessPermitted(member, fileModel);
+    }
+
+    @Benchmark
+    public boolean denied() {
+
+        return permissionService.isAccessPermitted(stranger, fileModel);
+    }
+}
@@ -0,0 +1,60 @@
+package eu.integrable.starduststorage.benchmark;
+
+import eu.integrable.starduststorage.property.CredentialsProperty;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.security.JwtTokenService;
+import eu.integrable.starduststorage.service.FileService;
+import eu.integrable.starduststorage.service.PermissionService;
+import eu.integrable.starduststorage.service.StorageMetrics;
+import eu.integrable.starduststorage.storage.BlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Services wired by hand as the application context would, without starting it.
+ */
+class Services {
+
+    private Services() {
+    }
+
+    static StorageMetrics storageMetrics(StorageProperty storageProperty) {
+
+        StorageMetrics storageMetrics = new StorageMetrics();
+        ReflectionTestUtils.setField(storageMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(storageMetrics, "storageProperty", storageProperty);
+        storageMetrics.init();
+        return storageMetrics;
+    }
+
+    static FileService fileService(StorageProperty storageProperty, BlobStore blobStore) {
+
+        FileService fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(fileService, "blobStore", blobStore);
+        ReflectionTestUtils.setField(fileService, "storageMetrics", storageMetrics(storageProperty));
+        fileService.init();
+        return fileService;
+    }
+
+    static PermissionService permissionService() {
+
+        StorageProperty storageProperty = new StorageProperty();
+        PermissionService permissionService = new PermissionService();
+        ReflectionTestUtils.setField(permissionService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(permissionService, "storageMetrics", storageMetrics(storageProperty));
+        permissionService.init();
+        return permissionService;
+    }
+
+    static JwtTokenService jwtTokenService(String secret) {
+
+        CredentialsProperty credentialsProperty = new CredentialsProperty();
+        credentialsProperty.setJwtSecret(secret);
+
+        JwtTokenService jwtTokenService = new JwtTokenService();
+        ReflectionTestUtils.setField(jwtTokenService, "credentialsProperty", credentialsProperty);
+        jwtTokenService.init();
+        return jwtTokenService;
+    }
+}
@@ -0,0 +1,54 @@
+package eu.integrable.starduststorage.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Values drawn with the weights of a "value:weight,value:weight" option.
+ */
+class Distribution<T> {
+
+    private final List<T> values = new ArrayList<>();
+
+    private final List<Double> cumulativeWeights = new ArrayList<>();
+
+    private double totalWeight;
+
+    static <T> Distribution<T> parse(String option, Function<String, T> parser) {
+
+        Distribution<T> distribution = new Distribution<>();
+        for (String entry : option.split(",")) {
+            String[] parts = entry.trim().split(":");
+            double weight = parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight in " + option);
+            }
+            if (weight > 0) {
+                distribution.totalWeight += weight;
+                distribution.values.add(parser.apply(parts[0].trim()));
+                distribution.cumulativeWeights.add(distribution.totalWeight);
+            }
+        }
+        if (distribution.values.isEmpty()) {
+            throw new IllegalArgumentException("No values in " + option);
+        }
+        return distribution;
+    }
+
+    T next(Random random) {
+
+        double point = random.nextDouble() * totalWeight;
+        for (int i = 0; i < values.size(); i++) {
+            if (point < cumulativeWeights.get(i)) {
+                return values.get(i);
+            }
+        }
+        return values.get(values.size() - 1);
+    }
+
+    List<T> getValues() {
+        return values;
+    }
+}
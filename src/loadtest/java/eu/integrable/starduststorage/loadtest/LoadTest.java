@@ -0,0 +1,386 @@
+package eu.integrable.starduststorage.loadtest;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import eu.integrable.starduststorage.StardustStorageApplication;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test of a storage instance. Starts the application on an in-memory H2 database and a
+ * temporary directory, or uses the instance given by --target, seeds groups and files and
+ * drives a mix of uploads, downloads, describes and deletes from concurrent clients. Reports
+ * throughput and latency percentiles of each endpoint on the console and as JSON.
+ *
+ * Options, as --name=value: groups, files, sizes (size:weight list), mix (operation:weight
+ * list), clients, warmup, duration, report, target and secret. Other options are passed to
+ * the embedded application, e.g. --spring.datasource.url for a local PostgreSQL.
+ */
+public class LoadTest {
+
+    enum Operation {
+        UPLOAD, DOWNLOAD, DESCRIBE, DELETE
+    }
+
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "groups", "10",
+            "files", "1000",
+            "sizes", "4KB:50,64KB:30,1MB:15,16MB:5",
+            "mix", "download:70,describe:15,upload:10,delete:5",
+            "clients", "32",
+            "warmup", "10s",
+            "duration", "60s",
+            "report", "build/reports/loadtest/results.json",
+            "secret", UUID.randomUUID().toString());
+
+    private final Map<String, String> options;
+
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+
+    private final FilePool filePool = new FilePool();
+
+    private final Map<Long, byte[]> contents = new HashMap<>();
+
+    private final AtomicInteger fileCounter = new AtomicInteger();
+
+    private Distribution<Long> sizes;
+
+    private List<String> groups;
+
+    private StorageClient client;
+
+    private volatile boolean recording;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        List<String> applicationArgs = new ArrayList<>();
+        for (String arg : args) {
+            String name = arg.startsWith("--") && arg.contains("=") ? arg.substring(2, arg.indexOf('=')) : null;
+            if (name != null && (DEFAULTS.containsKey(name) || name.equals("target"))) {
+                options.put(name, arg.substring(arg.indexOf('=') + 1));
+            } else {
+                applicationArgs.add(arg);
+            }
+        }
+
+        ConfigurableApplicationContext context = null;
+        Path directory = null;
+        String target = options.get("target");
+        if (target == null) {
+            directory = Files.createTempDirectory("stardust-loadtest");
+            context = startApplication(directory, options.get("secret"), applicationArgs);
+            target = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+        }
+
+        try {
+            new LoadTest(options).run(target);
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            if (directory != null) {
+                FileSystemUtils.deleteRecursively(directory);
+            }
+        }
+    }
+
+    private static ConfigurableApplicationContext startApplication(Path directory, String secret, List<String> applicationArgs) {
+
+        // Later arguments win, the caller may override any of these
+        List<String> args = new ArrayList<>(List.of(
+                "--server.port=0",
+                "--eureka.client.enabled=false",
+                "--spring.datasource.url=jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1",
+                "--spring.jpa.hibernate.ddl-auto=create-drop",
+                "--credentials.jwt-secret=" + secret,
+                "--storage.directory=" + directory.resolve("files"),
+                "--storage.upload-session-directory=" + directory.resolve("sessions"),
+                "--logging.file.name=" + directory.resolve("stardust-storage.log"),
+                "--logging.level.root=WARN",
+                "--logging.level.eu.integrable.starduststorage=WARN"));
+        args.addAll(applicationArgs);
+        return SpringApplication.run(StardustStorageApplication.class, args.toArray(new String[0]));
+    }
+
+    private void run(String target) throws Exception {
+
+        String token = JWT.create()
+                .withSubject("loadtest")
+                .withClaim("admin", true)
+                .withClaim("writer", true)
+                .withExpiresAt(new Date(System.currentTimeMillis() + Duration.ofDays(1).toMillis()))
+                .sign(Algorithm.HMAC256(options.get("secret").getBytes()));
+        client = new StorageClient(target, token);
+
+        // One random buffer per size, uploads of the same size share the content
+        sizes = Distribution.parse(options.get("sizes"), size -> DataSize.parse(size).toBytes());
+        Random random = new Random(42);
+        for (long size : sizes.getValues()) {
+            byte[] content = new byte[Math.toIntExact(size)];
+            random.nextBytes(content);
+            contents.put(size, content);
+        }
+        Distribution<Operation> mix = Distribution.parse(options.get("mix"),
+                operation -> Operation.valueOf(operation.toUpperCase(Locale.ROOT)));
+
+        int clients = Integer.parseInt(options.get("clients"));
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            seed(executor, Integer.parseInt(options.get("groups")), Integer.parseInt(options.get("files")));
+
+            Duration warmup = DurationStyle.detectAndParse(options.get("warmup"));
+            Duration duration = DurationStyle.detectAndParse(options.get("duration"));
+            System.out.println("Warming up for " + warmup + ", measuring for " + duration + " with " + clients + " clients");
+
+            long start = System.nanoTime();
+            long measureFrom = start + warmup.toNanos();
+            long end = measureFrom + duration.toNanos();
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                workers.add(executor.submit(() -> drive(mix, measureFrom, end)));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+
+            report(duration);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void seed(ExecutorService executor, int groupCount, int fileCount) throws Exception {
+
+        groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            String groupId = "loadtest-" + i;
+            StorageClient.Result result = client.createGroup(groupId);
+            if (!result.isSuccessful()) {
+                throw new IllegalStateException("Can not create group " + groupId + ", status " + result.status);
+            }
+            groups.add(groupId);
+        }
+
+        long start = System.nanoTime();
+        List<Future<StorageClient.Result>> uploads = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            uploads.add(executor.submit(() -> upload(ThreadLocalRandom.current())));
+        }
+        for (Future<StorageClient.Result> upload : uploads) {
+            StorageClient.Result result = upload.get();
+            if (!result.isSuccessful()) {
+                throw new IllegalStateException("Can not seed files, upload status " + result.status);
+            }
+        }
+        System.out.printf("Seeded %d groups and %d files in %.1f s%n", groupCount, fileCount, (System.nanoTime() - start) / 1e9);
+    }
+
+    private Void drive(Distribution<Operation> mix, long measureFrom, long end) {
+
+        Random random = ThreadLocalRandom.current();
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (!recording && now >= measureFrom) {
+                recording = true;
+            }
+
+            Operation operation = mix.next(random);
+            String fileId = null;
+            if (operation == Operation.DELETE) {
+                fileId = filePool.take(random);
+            } else if (operation != Operation.UPLOAD) {
+                fileId = filePool.pick(random);
+            }
+            if (fileId == null) {
+                operation = Operation.UPLOAD;
+            }
+
+            long start = System.nanoTime();
+            StorageClient.Result result;
+            try {
+                switch (operation) {
+                    case DOWNLOAD:
+                        result = client.download(fileId);
+                        break;
+                    case DESCRIBE:
+                        result = client.describe(fileId);
+                        break;
+                    case DELETE:
+                        result = client.delete(fileId);
+                        break;
+                    default:
+                        result = upload(random);
+                }
+            } catch (IOException ex) {
+                result = new StorageClient.Result(0, 0, null);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                if (operation == Operation.DOWNLOAD || operation == Operation.DESCRIBE) {
+                    filePool.release(fileId);
+                }
+            }
+
+            if (recording) {
+                stats.get(operation).record(System.nanoTime() - start, result);
+            }
+        }
+        return null;
+    }
+
+    private StorageClient.Result upload(Random random) throws IOException, InterruptedException {
+
+        String groupId = groups.isEmpty() ? null : groups.get(random.nextInt(groups.size()));
+        byte[] content = contents.get(sizes.next(random));
+        StorageClient.Result result = client.upload(groupId, "file-" + fileCounter.incrementAndGet(), content);
+        if (result.fileId != null) {
+            filePool.add(result.fileId);
+        }
+        return result;
+    }
+
+    private void report(Duration duration) throws IOException {
+
+        double seconds = duration.toNanos() / 1e9;
+        StringBuilder json = new StringBuilder("{\n  \"durationSeconds\": " + seconds + ",\n  \"endpoints\": {");
+
+        System.out.printf("%n%-10s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "endpoint", "requests", "errors", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        String separator = "";
+        for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            String endpoint = entry.getKey().name().toLowerCase(Locale.ROOT);
+            Histogram histogram = entry.getValue().latencies;
+            long requests = histogram.getTotalCount();
+            long errors = entry.getValue().errors.sum();
+            double throughput = requests / seconds;
+            double megabytes = entry.getValue().bytes.sum() / seconds / (1024 * 1024);
+            double p50 = millis(histogram, 50);
+            double p99 = millis(histogram, 99);
+            double p999 = millis(histogram, 99.9);
+            double max = histogram.getMaxValue() / 1000.0;
+
+            System.out.printf("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                    endpoint, requests, errors, throughput, megabytes, p50, p99, p999, max);
+            json.append(separator).append(String.format(Locale.ROOT,
+                    "%n    \"%s\": {\"requests\": %d, \"errors\": %d, \"throughput\": %.3f, \"megabytesPerSecond\": %.3f, "
+                            + "\"p50Millis\": %.3f, \"p99Millis\": %.3f, \"p999Millis\": %.3f, \"maxMillis\": %.3f}",
+                    endpoint, requests, errors, throughput, megabytes, p50, p99, p999, max));
+            separator = ",";
+        }
+        json.append("\n  }\n}\n");
+
+        Path report = Paths.get(options.get("report"));
+        if (report.getParent() != null) {
+            Files.createDirectories(report.getParent());
+        }
+        Files.write(report, json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("\nReport written to " + report.toAbsolutePath());
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private static class Stats {
+
+        // Microseconds, up to an hour with three significant digits
+        private final Histogram latencies = new ConcurrentHistogram(Duration.ofHours(1).toNanos() / 1000, 3);
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LongAdder bytes = new LongAdder();
+
+        private void record(long nanos, StorageClient.Result result) {
+            latencies.recordValue(Math.min(nanos / 1000, latencies.getHighestTrackableValue()));
+            if (result.isSuccessful()) {
+                bytes.add(result.bytes);
+            } else {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Ids of the stored files, deleted files are taken out before the delete is sent. Picked
+     * files are read until released and are not taken meanwhile, so no read races a delete
+     * of its file and counts a 404 as an error.
+     */
+    private static class FilePool {
+
+        // Random tries to find a file nobody reads before giving up on a delete
+        private static final int TAKE_ATTEMPTS = 8;
+
+        private final List<String> fileIds = new ArrayList<>();
+
+        // Number of requests reading each picked file
+        private final Map<String, Integer> readers = new HashMap<>();
+
+        synchronized void add(String fileId) {
+            fileIds.add(fileId);
+        }
+
+        synchronized String pick(Random random) {
+            if (fileIds.isEmpty()) {
+                return null;
+            }
+            String fileId = fileIds.get(random.nextInt(fileIds.size()));
+            readers.merge(fileId, 1, Integer::sum);
+            return fileId;
+        }
+
+        synchronized void release(String fileId) {
+            readers.computeIfPresent(fileId, (id, count) -> count > 1 ? count - 1 : null);
+        }
+
+        synchronized String take(Random random) {
+            for (int attempt = 0; attempt < TAKE_ATTEMPTS && !fileIds.isEmpty(); attempt++) {
+                int index = random.nextInt(fileIds.size());
+                String fileId = fileIds.get(index);
+                if (readers.containsKey(fileId)) {
+                    continue;
+                }
+                fileIds.set(index, fileIds.get(fileIds.size() - 1));
+                fileIds.remove(fileIds.size() - 1);
+                return fileId;
+            }
+            return null;
+        }
+    }
+}
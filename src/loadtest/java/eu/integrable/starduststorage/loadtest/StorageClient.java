@@ -0,0 +1,127 @@
+package eu.integrable.starduststorage.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * The storage endpoints driven by the load test. Every call returns the status and the
+ * number of content bytes moved, bodies of downloads are read and dropped.
+ */
+class StorageClient {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final HttpClient httpClient;
+
+    private final String baseUrl;
+
+    private final String authorization;
+
+    StorageClient(String baseUrl, String token) {
+        this.baseUrl = baseUrl + "/api/v1/storage";
+        this.authorization = "Bearer " + token;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    Result createGroup(String groupId) throws IOException, InterruptedException {
+
+        HttpResponse<String> response = send(request("/group/" + encode(groupId))
+                .POST(HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.ofString());
+        return new Result(response.statusCode(), 0, null);
+    }
+
+    Result upload(String groupId, String filename, byte[] content) throws IOException, InterruptedException {
+
+        String query = "?filename=" + encode(filename) + (groupId != null ? "&group=" + encode(groupId) : "");
+        HttpResponse<String> response = send(request("/file" + query)
+                .header("Content-Type", "application/octet-stream")
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(content)), HttpResponse.BodyHandlers.ofString());
+
+        String id = null;
+        if (response.statusCode() == 200) {
+            JsonNode file = objectMapper.readTree(response.body());
+            id = file.path("id").asText(null);
+        }
+        return new Result(response.statusCode(), content.length, id);
+    }
+
+    Result download(String fileId) throws IOException, InterruptedException {
+
+        HttpResponse<InputStream> response = send(request("/file/" + encode(fileId)).GET(),
+                HttpResponse.BodyHandlers.ofInputStream());
+
+        long bytes = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = response.body()) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                bytes += read;
+            }
+        }
+        return new Result(response.statusCode(), bytes, null);
+    }
+
+    Result describe(String fileId) throws IOException, InterruptedException {
+
+        HttpResponse<byte[]> response = send(request("/file/" + encode(fileId) + "/description").GET(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        return new Result(response.statusCode(), 0, null);
+    }
+
+    Result delete(String fileId) throws IOException, InterruptedException {
+
+        HttpResponse<byte[]> response = send(request("/file/" + encode(fileId)).DELETE(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        return new Result(response.statusCode(), 0, null);
+    }
+
+    private HttpRequest.Builder request(String path) {
+
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofMinutes(5))
+                .header("Authorization", authorization);
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest.Builder request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+
+        return httpClient.send(request.build(), bodyHandler);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    static class Result {
+
+        final int status;
+
+        final long bytes;
+
+        // Id of an uploaded file
+        final String fileId;
+
+        Result(int status, long bytes, String fileId) {
+            this.status = status;
+            this.bytes = bytes;
+            this.fileId = fileId;
+        }
+
+        boolean isSuccessful() {
+            return status >= 200 && status < 300;
+        }
+    }
+}
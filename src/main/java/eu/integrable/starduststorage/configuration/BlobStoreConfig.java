@@ -0,0 +1,37 @@
+package eu.integrable.starduststorage.configuration;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.LocalBlobStore;
+import eu.integrable.starduststorage.storage.SegmentBlobStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+@Configuration
+public class BlobStoreConfig {
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    // Store of the file content selected with storage.backend
+    @Bean
+    public BlobStore blobStore() throws IOException {
+
+        switch (storageProperty.getBackend()) {
+            case SEGMENT:
+                return new SegmentBlobStore(
+                        new LocalBlobStore(Paths.get(storageProperty.getDirectory()), storageProperty.getShardDepth()),
+                        Paths.get(storageProperty.getDirectory(), ".segments"),
+                        storageProperty.getSegmentSize().toBytes(),
+                        (int) storageProperty.getSegmentMaxFileSize().toBytes(),
+                        storageProperty.isSegmentSync());
+            case LOCAL:
+            default:
+                return new LocalBlobStore(Paths.get(storageProperty.getDirectory()), storageProperty.getShardDepth());
+        }
+    }
+}
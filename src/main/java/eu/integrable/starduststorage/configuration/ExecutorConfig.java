@@ -0,0 +1,26 @@
+package eu.integrable.starduststorage.configuration;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@Configuration
+public class ExecutorConfig {
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    // Shared pool for reading and writing stored files in parallel within a request
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService storageExecutor() {
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("storage-io-");
+        threadFactory.setDaemon(true);
+        return Executors.newFixedThreadPool(storageProperty.getIoThreads(), threadFactory);
+    }
+}
@@ -0,0 +1,61 @@
+package eu.integrable.starduststorage.configuration;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import eu.integrable.starduststorage.property.StorageProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.util.List;
+import java.util.OptionalLong;
+
+/**
+ * Hibernate second-level cache for file and group metadata. The regions are created here
+ * with a bounded size and expiry, Hibernate keeps them consistent with changes made on this
+ * instance and MetadataCacheService tells the other instances about them. Bulk updates drop
+ * a whole region: every upload reserves quota with one on the group table, and deleting a
+ * group removes its files with one on the file table.
+ */
+@Configuration
+public class MetadataCacheConfig {
+
+    public static final List<String> REGIONS = List.of("file", "group");
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Bean
+    public HibernatePropertiesCustomizer metadataCacheCustomizer() {
+
+        return properties -> {
+            if (!storageProperty.isMetadataCacheEnabled()) {
+                properties.put("hibernate.cache.use_second_level_cache", false);
+                return;
+            }
+
+            properties.put("hibernate.cache.use_second_level_cache", true);
+            properties.put("hibernate.cache.region.factory_class", "jcache");
+            properties.put("hibernate.javax.cache.cache_manager", createCacheManager());
+            properties.put("hibernate.javax.cache.missing_cache_strategy", "fail");
+        };
+    }
+
+    private CacheManager createCacheManager() {
+
+        CacheManager cacheManager = Caching.getCachingProvider(CaffeineCachingProvider.class.getName()).getCacheManager();
+        for (String region : REGIONS) {
+            if (cacheManager.getCache(region) != null) {
+                continue;
+            }
+            CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+            configuration.setMaximumSize(OptionalLong.of(storageProperty.getMetadataCacheSize()));
+            configuration.setExpireAfterWrite(OptionalLong.of(storageProperty.getMetadataCacheTtl().toNanos()));
+            cacheManager.createCache(region, configuration);
+        }
+        return cacheManager;
+    }
+}
@@ -0,0 +1,68 @@
+package eu.integrable.starduststorage.configuration;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.service.StorageMetrics;
+import eu.integrable.starduststorage.tracing.RequestTimingFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.boot.web.servlet.filter.OrderedFormContentFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    private static final Set<String> RAW_UPLOAD_PATHS = Set.of("/api/v1/storage/file", "/api/v1/storage/file/");
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Bean
+    public FilterRegistrationBean<RequestTimingFilter> requestTimingFilter() {
+
+        // Ahead of the security filters, token verification is one of the timed phases
+        FilterRegistrationBean<RequestTimingFilter> registration = new FilterRegistrationBean<>(new RequestTimingFilter(
+                storageProperty.getRequestTimingSampleRate(),
+                storageProperty.getSlowRequestThreshold().toNanos(),
+                storageProperty.isServerTiming()));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 2);
+        return registration;
+    }
+
+    @Bean
+    public OrderedFormContentFilter formContentFilter() {
+
+        // The body of a raw upload is the file whatever its content type, a form body would be read into memory
+        return new OrderedFormContentFilter() {
+            @Override
+            protected boolean shouldNotFilter(HttpServletRequest request) {
+                String path = request.getRequestURI().substring(request.getContextPath().length());
+                return HttpMethod.PUT.matches(request.getMethod()) && RAW_UPLOAD_PATHS.contains(path);
+            }
+        };
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+
+        // Downloads may be written after the handler returns, finish them once the response is complete
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+                Object transfer = request.getAttribute(StorageMetrics.TRANSFER_ATTRIBUTE);
+                if (transfer instanceof StorageMetrics.Transfer) {
+                    ((StorageMetrics.Transfer) transfer).finish(ex != null ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus());
+                }
+            }
+        });
+    }
+}
@@ -1,7 +1,9 @@
 package eu.integrable.starduststorage.configuration;
 
+import eu.integrable.starduststorage.property.CredentialsProperty;
 import eu.integrable.starduststorage.security.JwtAuthorizationFilter;
 import eu.integrable.starduststorage.security.JwtTokenService;
+import eu.integrable.starduststorage.service.StorageMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -22,6 +24,12 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Autowired
     private JwtTokenService jwtTokenService;
 
+    @Autowired
+    private CredentialsProperty credentialsProperty;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
     @Override
     protected void configure(HttpSecurity httpSecurity) throws Exception {
 
@@ -35,11 +43,13 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
                 // Filtered in gateway
                 .antMatchers("/actuator/**").permitAll()
 
-                .anyRequest().authenticated()
+                // Eviction tokens of other instances are good for nothing else
+                .antMatchers("/api/v1/storage/maintenance/cache/evict").hasRole("CACHE_EVICTION")
+                .anyRequest().access("isAuthenticated() and !hasRole('CACHE_EVICTION')")
                 .and()
                 .cors()
                 .and()
-                .addFilterBefore(new JwtAuthorizationFilter(jwtTokenService), UsernamePasswordAuthenticationFilter.class);
+                .addFilterBefore(new JwtAuthorizationFilter(jwtTokenService, credentialsProperty, storageMetrics), UsernamePasswordAuthenticationFilter.class);
     }
 
     @Bean
@@ -1,27 +1,54 @@
 package eu.integrable.starduststorage.controller;
 
+import eu.integrable.starduststorage.model.FileContent;
 import eu.integrable.starduststorage.model.FileModel;
 import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.model.UploadResult;
+import eu.integrable.starduststorage.property.StorageProperty;
 import eu.integrable.starduststorage.repository.FileModelRepository;
 import eu.integrable.starduststorage.repository.GroupModelRepository;
-import eu.integrable.starduststorage.service.FileService;
+import eu.integrable.starduststorage.service.ArchiveFormat;
+import eu.integrable.starduststorage.service.ArchiveService;
+import eu.integrable.starduststorage.service.BatchDownloadService;
+import eu.integrable.starduststorage.service.BlobService;
+import eu.integrable.starduststorage.service.ChecksumMismatchException;
+import eu.integrable.starduststorage.service.CompressionService;
+import eu.integrable.starduststorage.service.MetadataCacheService;
 import eu.integrable.starduststorage.service.PermissionService;
+import eu.integrable.starduststorage.service.QuotaService;
+import eu.integrable.starduststorage.service.StorageMetrics;
+import eu.integrable.starduststorage.service.StoredFile;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
 import org.springframework.http.*;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 
 @RestController
@@ -30,8 +57,13 @@ public class FileController {
 
     private static final Logger log = LoggerFactory.getLogger(FileController.class);
 
+    private static final String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
     @Autowired
-    private FileService fileService;
+    private BlobService blobService;
 
     @Autowired
     private FileModelRepository fileModelRepository;
@@ -39,16 +71,44 @@ public class FileController {
     @Autowired
     private GroupModelRepository groupModelRepository;
 
+    @Autowired
+    private QuotaService quotaService;
+
+    @Autowired
+    private MetadataCacheService metadataCacheService;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    @Autowired
+    private ArchiveService archiveService;
+
+    @Autowired
+    private BatchDownloadService batchDownloadService;
+
     @Autowired
     private PermissionService permissionService;
 
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    @Autowired
+    private ExecutorService storageExecutor;
+
     @GetMapping("{id}/description")
     @Operation(summary = "Get file description")
     @SecurityRequirement(name = "bearer")
     public ResponseEntity getFileDescription(@PathVariable String id,
+                                             HttpServletResponse response,
+                                             WebRequest webRequest,
                                              Authentication authentication) {
 
+        long start = System.nanoTime();
         Optional<FileModel> fileModel = fileModelRepository.findById(id);
+        storageMetrics.record(StorageMetrics.Phase.METADATA, start);
         if (fileModel.isEmpty()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No file");
         }
@@ -58,16 +118,134 @@ public class FileController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
         }
 
+        // The description changes with every update, its modification time is a weak validator
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().cachePrivate().getHeaderValue());
+        long modificationTime = toEpochMilli(fileModel.get().getModificationTime());
+        if (webRequest.checkNotModified("W/\"" + modificationTime + "\"", modificationTime)) {
+            return null;
+        }
+
         return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(fileModel.get());
     }
 
+    @GetMapping("batch")
+    @Operation(summary = "Download files as the parts of a multipart/mixed response")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity downloadFiles(@RequestParam List<String> ids,
+                                        HttpServletRequest request,
+                                        HttpServletResponse response,
+                                        Authentication authentication) {
+
+        Set<String> uniqueIds = new LinkedHashSet<>(ids);
+        if (uniqueIds.size() > storageProperty.getMaxBatchFiles()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("At most " + storageProperty.getMaxBatchFiles() + " files per request");
+        }
+
+        // Fetch all file models with one query and keep the requested order
+        Map<String, FileModel> filesById = new HashMap<>();
+        for (FileModel fileModel : fileModelRepository.findAllById(uniqueIds)) {
+            filesById.put(fileModel.getId(), fileModel);
+        }
+
+        List<FileModel> files = new ArrayList<>(uniqueIds.size());
+        for (String id : uniqueIds) {
+            FileModel fileModel = filesById.get(id);
+            if (fileModel == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No file " + id);
+            }
+
+            // Check access permissions
+            if (!permissionService.isAccessPermitted(authentication, fileModel)) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access to file " + id);
+            }
+            files.add(fileModel);
+        }
+
+        // Stream the parts
+        String boundary = UUID.randomUUID().toString();
+        response.setContentType("multipart/mixed; boundary=" + boundary);
+        StorageMetrics.Transfer transfer = storageMetrics.startTransfer(StorageMetrics.DOWNLOAD, null);
+        request.setAttribute(StorageMetrics.TRANSFER_ATTRIBUTE, transfer);
+        try {
+            batchDownloadService.writeMultipart(files, boundary, transfer.count(response.getOutputStream()));
+        } catch (IOException ex) {
+            // The status is already sent, the client sees an unterminated multipart body
+            log.error("Can not stream batch download", ex);
+            transfer.finish(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+
+        return null;
+    }
+
+    @GetMapping("archive")
+    @Operation(summary = "Download files as a ZIP or TAR archive")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity downloadArchive(@RequestParam List<String> ids,
+                                          @RequestParam(required = false, defaultValue = "zip") String format,
+                                          HttpServletRequest request,
+                                          HttpServletResponse response,
+                                          Authentication authentication) {
+
+        ArchiveFormat archiveFormat = ArchiveFormat.fromExtension(format);
+        if (archiveFormat == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Format must be zip or tar");
+        }
+
+        Set<String> uniqueIds = new LinkedHashSet<>(ids);
+        if (uniqueIds.size() > storageProperty.getMaxBatchFiles()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("At most " + storageProperty.getMaxBatchFiles() + " files per request");
+        }
+
+        // Keep the requested order
+        Map<String, FileContent> filesById = new HashMap<>();
+        for (FileContent file : fileModelRepository.findContentByIdIn(uniqueIds)) {
+            filesById.put(file.getId(), file);
+        }
+
+        List<FileContent> files = new ArrayList<>(uniqueIds.size());
+        for (String id : uniqueIds) {
+            FileContent file = filesById.get(id);
+            if (file == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No file " + id);
+            }
+
+            // Check access permissions
+            if (!permissionService.isAccessPermitted(authentication, file)) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access to file " + id);
+            }
+            files.add(file);
+        }
+
+        // Stream the archive while it is produced
+        response.setContentType(archiveFormat.getMediaType());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename("files." + archiveFormat.getExtension())
+                .build().toString());
+        StorageMetrics.Transfer transfer = storageMetrics.startTransfer(StorageMetrics.DOWNLOAD, null);
+        request.setAttribute(StorageMetrics.TRANSFER_ATTRIBUTE, transfer);
+        try {
+            archiveService.writeArchive(archiveFormat, files.iterator(), transfer.count(response.getOutputStream()));
+        } catch (IOException ex) {
+            // The status is already sent, the client sees a truncated archive
+            log.error("Can not stream archive", ex);
+            transfer.finish(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+
+        return null;
+    }
+
     @GetMapping("{id}")
     @Operation(summary = "Get file")
     @SecurityRequirement(name = "bearer")
     public ResponseEntity downloadFile(@PathVariable String id,
+                                       HttpServletRequest request,
+                                       HttpServletResponse response,
+                                       WebRequest webRequest,
                                        Authentication authentication) {
 
+        long start = System.nanoTime();
         Optional<FileModel> fileModel = fileModelRepository.findById(id);
+        storageMetrics.record(StorageMetrics.Phase.METADATA, start);
         if (fileModel.isEmpty()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No file");
         }
@@ -77,19 +255,103 @@ public class FileController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
         }
 
+        // Compressed content is sent as stored to clients accepting it, ranges refer to the original content
+        String encoding = fileModel.get().getEncoding();
+        boolean passthrough = encoding != null && request.getHeader(HttpHeaders.RANGE) == null
+                && compressionService.acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding != null) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+
+        // Content never changes but the media type and filename sent with it can, the validator
+        // covers both and is checked before the disk is touched
+        long modificationTime = toEpochMilli(fileModel.get().getModificationTime());
+        String eTag = "\"" + fileModel.get().getChecksum() + "-" + modificationTime + (passthrough ? "-" + encoding : "") + "\"";
+        response.setHeader(HttpHeaders.CACHE_CONTROL, getCacheControl(fileModel.get()));
+        if (webRequest.checkNotModified(eTag, modificationTime)) {
+            return null;
+        }
+
+        // Finished when the response is complete, the body is sent after the handler returns
+        GroupModel group = fileModel.get().getGroup();
+        StorageMetrics.Transfer transfer = storageMetrics.startTransfer(StorageMetrics.DOWNLOAD, group != null ? group.getId() : null);
+        request.setAttribute(StorageMetrics.TRANSFER_ATTRIBUTE, transfer);
+
         try {
-            Resource resource = fileService.loadFile(id);
+            Resource resource = passthrough ? blobService.load(fileModel.get()) : blobService.loadContent(fileModel.get());
+            long length = resource.contentLength();
 
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(fileModel.get().getMediaType()))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileModel.get().getFilename() + "\"")
-                    .body(resource);
+            HttpHeaders headers = new HttpHeaders();
+            if (passthrough) {
+                headers.set(HttpHeaders.CONTENT_ENCODING, encoding);
+            }
+            headers.setContentType(MediaType.parseMediaType(fileModel.get().getMediaType()));
+            headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileModel.get().getFilename() + "\"");
+            headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+            // Resolve requested ranges
+            List<ResourceRegion> regions;
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(request.getHeader(HttpHeaders.RANGE));
+                regions = HttpRange.toResourceRegions(ranges, resource);
+            } catch (IllegalArgumentException ex) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                        .build();
+            }
+
+            // Content bytes to send, without multipart boundaries
+            if (regions.isEmpty()) {
+                transfer.addBytes(length);
+            }
+            for (ResourceRegion region : regions) {
+                transfer.addBytes(region.getCount());
+            }
+
+            // Whole file or a single range straight from disk
+            if (regions.isEmpty() && sendFile(request, resource, 0, length)) {
+                transfer.sendfile();
+                headers.setContentLength(length);
+                return ResponseEntity.ok().headers(headers).build();
+            }
+            if (regions.size() == 1) {
+                ResourceRegion region = regions.get(0);
+                if (sendFile(request, resource, region.getPosition(), region.getCount())) {
+                    transfer.sendfile();
+                    headers.setContentLength(region.getCount());
+                    headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + region.getPosition() + "-"
+                            + (region.getPosition() + region.getCount() - 1) + "/" + length);
+                    return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(headers).build();
+                }
+            }
+
+            // Otherwise the resource is streamed, the message converters answer a Range header
+            // with 206 and a single region or a multipart/byteranges body
+            return ResponseEntity.ok().headers(headers).body(resource);
 
         } catch (IOException ex) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body("Can not download file");
         }
     }
 
+    /**
+     * Hands a file region over to the servlet container, which transfers it with sendfile
+     * once the handler returns. Only used for files on disk above the configured threshold
+     * and when the connector supports it.
+     */
+    private boolean sendFile(HttpServletRequest request, Resource resource, long position, long count) throws IOException {
+
+        if (count < storageProperty.getSendfileThreshold().toBytes() || !resource.isFile()
+                || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE))) {
+            return false;
+        }
+
+        request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, resource.getFile().getAbsolutePath());
+        request.setAttribute(SENDFILE_START_ATTRIBUTE, position);
+        request.setAttribute(SENDFILE_END_ATTRIBUTE, position + count);
+        return true;
+    }
+
     @PostMapping("")
     @Operation(summary = "Upload file")
     @SecurityRequirement(name = "bearer")
@@ -99,22 +361,251 @@ public class FileController {
                                      @RequestParam(required = false, name = "group") String groupId,
                                      @RequestParam(required = false) String permission,
                                      @RequestParam(required = false) String mediatype,
+                                     @RequestParam(required = false) String checksum,
                                      Authentication authentication) {
 
+        return storeFile(file, file.getSize(), checksum, filename, description, groupId, permission, mediatype, authentication);
+    }
+
+    @PostMapping("batch")
+    @Operation(summary = "Upload many files in one multipart request")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity uploadFiles(@RequestParam("files") MultipartFile[] files,
+                                      @RequestParam(required = false) String description,
+                                      @RequestParam(required = false, name = "group") String groupId,
+                                      @RequestParam(required = false) String permission,
+                                      Authentication authentication) {
+
         // Check if writer
-        if (!authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_WRITER")))) {
+        if (!permissionService.isWriter(authentication)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to upload files");
         }
 
-        String id = UUID.randomUUID().toString();
+        if (files.length > storageProperty.getMaxBatchFiles()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("At most " + storageProperty.getMaxBatchFiles() + " files per request");
+        }
+
+        // Get a group
+        Optional<GroupModel> group = Optional.empty();
+        if (groupId != null) {
+            long start = System.nanoTime();
+            group = groupModelRepository.findById(groupId);
+            storageMetrics.record(StorageMetrics.Phase.METADATA, start);
+            if (group.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
+            }
+        }
+
+        // Check if permissions are correct
+        if (permission != null) {
+            if (!permissionService.arePermissionsCorrect(authentication, permission)) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong permissions format");
+            }
+        }
+
+        // Reserve the size of the whole batch at once
+        long totalSize = 0;
+        for (MultipartFile file : files) {
+            totalSize += file.getSize();
+        }
+        if (group.isPresent() && !quotaService.reserve(groupId, totalSize)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Quota reached");
+        }
 
-        String checksum = "";
+        StorageMetrics.Transfer transfer = storageMetrics.startTransfer(StorageMetrics.UPLOAD, groupId);
         try {
-            checksum = DigestUtils.sha256Hex(file.getInputStream());
+            return storeBatchFiles(files, description, groupId, group.orElse(null), permission, totalSize, transfer, authentication);
+        } finally {
+            transfer.finish(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+    }
+
+    private ResponseEntity storeBatchFiles(MultipartFile[] files,
+                                           String description,
+                                           String groupId,
+                                           GroupModel groupModel,
+                                           String permission,
+                                           long totalSize,
+                                           StorageMetrics.Transfer transfer,
+                                           Authentication authentication) {
+
+        // Write the files in parallel, each one yields a file model or a failed result
+        String owner = authentication.getPrincipal().toString();
+        List<CompletableFuture<UploadResult>> futures = new ArrayList<>(files.length);
+        for (MultipartFile file : files) {
+            futures.add(CompletableFuture.supplyAsync(
+                    () -> storeBatchFile(file, description, groupModel, permission, owner), storageExecutor));
+        }
+
+        List<UploadResult> results = new ArrayList<>(files.length);
+        List<FileModel> fileModels = new ArrayList<>(files.length);
+        long uploadedSize = 0;
+        for (CompletableFuture<UploadResult> future : futures) {
+            UploadResult result = future.join();
+            results.add(result);
+            if (result.getFile() != null) {
+                fileModels.add(result.getFile());
+                uploadedSize += result.getFile().getSize();
+            }
+        }
+
+        // Insert all file models in one batch
+        boolean saved = false;
+        try {
+            saved = quotaService.saveFiles(groupModel != null ? groupId : null, fileModels);
+        } finally {
+            if (!saved) {
+                for (FileModel fileModel : fileModels) {
+                    try {
+                        blobService.release(fileModel);
+                    } catch (IOException ioException) {
+                        log.error("Can not remove orphaned file " + fileModel.getId(), ioException);
+                    }
+                }
+                if (groupModel != null) {
+                    quotaService.release(groupId, totalSize);
+                }
+            }
+        }
+        if (!saved) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
+        }
+
+        // Give back the reservation of the failed files
+        if (groupModel != null && uploadedSize != totalSize) {
+            quotaService.release(groupId, totalSize - uploadedSize);
+        }
+
+        transfer.addBytes(uploadedSize);
+        transfer.finish(HttpStatus.OK.value());
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(results);
+    }
+
+    private UploadResult storeBatchFile(MultipartFile file,
+                                        String description,
+                                        GroupModel group,
+                                        String permission,
+                                        String owner) {
+
+        String filename = file.getOriginalFilename();
+        if (filename == null || filename.isBlank()) {
+            return new UploadResult(filename, HttpStatus.BAD_REQUEST.value(), "Filename required", null);
+        }
+
+        String mediatype = file.getContentType();
+        if (mediatype == null) {
+            mediatype = "application/octet-stream";
+        } else {
+            try {
+                MediaType.parseMediaType(mediatype);
+            } catch (InvalidMediaTypeException ex) {
+                return new UploadResult(filename, HttpStatus.BAD_REQUEST.value(), "Wrong media-type/media-type not supported", null);
+            }
+        }
+
+        String id = UUID.randomUUID().toString();
+
+        StoredFile storedFile;
+        try (InputStream inputStream = file.getInputStream()) {
+            boolean compress = compressionService.shouldCompress(group, mediatype, file.getSize());
+            storedFile = blobService.store(inputStream, id, null, compress);
         } catch (IOException ex) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+            return new UploadResult(filename, HttpStatus.INTERNAL_SERVER_ERROR.value(), ex.getMessage(), null);
+        }
+
+        FileModel fileModel = FileModel.builder()
+                .id(id)
+                .filename(filename)
+                .description(description)
+                .owner(owner)
+                .group(group)
+                .permission(permission)
+                .size(storedFile.getSize())
+                .storedSize(storedFile.getStoredSize())
+                .encoding(storedFile.getEncoding())
+                .checksum(storedFile.getChecksum())
+                .blob(storedFile.getBlob())
+                .mediaType(mediatype)
+                .created(true)
+                .build();
+
+        return new UploadResult(filename, HttpStatus.OK.value(), null, fileModel);
+    }
+
+    @PutMapping("")
+    @Operation(summary = "Upload file as a raw request body")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity uploadRawFile(@RequestParam(required = true) String filename,
+                                        @RequestParam(required = false) String description,
+                                        @RequestParam(required = false, name = "group") String groupId,
+                                        @RequestParam(required = false) String permission,
+                                        @RequestParam(required = false) String mediatype,
+                                        @RequestParam(required = false) String checksum,
+                                        HttpServletRequest request,
+                                        Authentication authentication) {
+
+        // Quota and limits are checked against the declared length before anything is read
+        long contentLength = request.getContentLengthLong();
+        if (contentLength < 0) {
+            return ResponseEntity.status(HttpStatus.LENGTH_REQUIRED).contentType(MediaType.APPLICATION_JSON).body("Content-Length required");
+        }
+        if (contentLength > storageProperty.getMaxUploadSize().toBytes()) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).contentType(MediaType.APPLICATION_JSON).body("File too large");
+        }
+
+        return storeFile(request::getInputStream, contentLength, checksum, filename, description, groupId, permission, mediatype, authentication);
+    }
+
+    public ResponseEntity storeFile(InputStreamSource source,
+                                    long declaredSize,
+                                    String expectedChecksum,
+                                    String filename,
+                                    String description,
+                                    String groupId,
+                                    String permission,
+                                    String mediatype,
+                                    Authentication authentication) {
+
+        return storeFile((id, compress) -> {
+            try (InputStream inputStream = source.getInputStream()) {
+                return blobService.store(inputStream, id, expectedChecksum, compress);
+            }
+        }, declaredSize, filename, description, groupId, permission, mediatype, authentication);
+    }
+
+    /**
+     * Stores a local file of known checksum and size, such as the assembled chunks of an
+     * upload session. The file is taken over once the upload is accepted.
+     */
+    public ResponseEntity storeFile(Path file,
+                                    StoredFile content,
+                                    String filename,
+                                    String description,
+                                    String groupId,
+                                    String permission,
+                                    String mediatype,
+                                    Authentication authentication) {
+
+        return storeFile((id, compress) -> blobService.store(file, content, id, compress),
+                content.getSize(), filename, description, groupId, permission, mediatype, authentication);
+    }
+
+    private ResponseEntity storeFile(Upload upload,
+                                     long declaredSize,
+                                     String filename,
+                                     String description,
+                                     String groupId,
+                                     String permission,
+                                     String mediatype,
+                                     Authentication authentication) {
+
+        // Check if writer
+        if (!permissionService.isWriter(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to upload files");
         }
 
+        String id = UUID.randomUUID().toString();
+
         if (mediatype == null) {
             mediatype = "application/octet-stream";
         } else {
@@ -128,23 +619,14 @@ public class FileController {
         // Get a group
         Optional<GroupModel> group = Optional.empty();
         if (groupId != null) {
+            long start = System.nanoTime();
             group = groupModelRepository.findById(groupId);
+            storageMetrics.record(StorageMetrics.Phase.METADATA, start);
             if (group.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
             }
         }
 
-        // Check quota
-        if (group.isPresent()) {
-            Long quota = group.get().getQuota();
-            if (quota != null) {
-                Long size = group.get().getSize() + file.getSize();
-                if (size > quota) {
-                    return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Quota reached");
-                }
-            }
-        }
-
         // Check if permissions are correct
         if (permission != null) {
             if (!permissionService.arePermissionsCorrect(authentication, permission)) {
@@ -152,39 +634,96 @@ public class FileController {
             }
         }
 
+        // Reserve the declared size in the group quota before anything is read
+        if (group.isPresent() && !quotaService.reserve(groupId, declaredSize)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Quota reached");
+        }
+
+        StorageMetrics.Transfer transfer = storageMetrics.startTransfer(StorageMetrics.UPLOAD, groupId);
+        int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+        boolean stored = false;
+        try {
+            ResponseEntity responseEntity = storeReservedFile(upload, declaredSize, id, filename,
+                    description, group.orElse(null), permission, mediatype, authentication);
+            status = responseEntity.getStatusCodeValue();
+            stored = responseEntity.getStatusCode().is2xxSuccessful();
+            if (stored) {
+                transfer.addBytes(declaredSize);
+            }
+            return responseEntity;
+        } finally {
+            transfer.finish(status);
+            if (!stored && group.isPresent()) {
+                quotaService.release(groupId, declaredSize);
+            }
+        }
+    }
+
+    private ResponseEntity storeReservedFile(Upload upload,
+                                             long declaredSize,
+                                             String id,
+                                             String filename,
+                                             String description,
+                                             GroupModel group,
+                                             String permission,
+                                             String mediatype,
+                                             Authentication authentication) {
+
         // Get owner
         String owner = authentication.getPrincipal().toString();
 
+        // Save file in media, the checksum and size are computed while writing
+        StoredFile storedFile;
+        try {
+            storedFile = upload.store(id, compressionService.shouldCompress(group, mediatype, declaredSize));
+        } catch (ChecksumMismatchException ex) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+        } catch (IOException ex) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+        }
+
+        // Reject truncated or overlong bodies
+        if (storedFile.getSize() != declaredSize) {
+            try {
+                blobService.release(id, storedFile.getBlob());
+            } catch (IOException ex) {
+                log.error("Can not remove incomplete file " + id, ex);
+            }
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("File size does not match the declared length");
+        }
+
         // Create File Model
         FileModel fileModel = FileModel.builder()
                 .id(id)
                 .filename(filename)
                 .description(description)
                 .owner(owner)
-                .group(group.orElse(null))
+                .group(group)
                 .permission(permission)
-                .size(file.getSize())
-                .checksum(checksum)
+                .size(storedFile.getSize())
+                .storedSize(storedFile.getStoredSize())
+                .encoding(storedFile.getEncoding())
+                .checksum(storedFile.getChecksum())
+                .blob(storedFile.getBlob())
                 .mediaType(mediatype)
+                .created(true)
                 .build();
 
         // Store File Model in database
-        fileModelRepository.save(fileModel);
-
-        // Save file in media
+        boolean saved = false;
         try {
-            fileService.saveFile(file, id);
-            group.ifPresent(groupModel -> {
-                groupModel.increaseSize(file.getSize());
-                groupModelRepository.save(groupModel);
-            });
-        } catch (IOException ex) {
-            fileModelRepository.delete(fileModel);
-            group.ifPresent(groupModel -> {
-                groupModel.decreaseSize(file.getSize());
-                groupModelRepository.save(groupModel);
-            });
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+            saved = quotaService.saveFiles(group != null ? group.getId() : null, List.of(fileModel));
+        } finally {
+            if (!saved) {
+                try {
+                    blobService.release(id, storedFile.getBlob());
+                } catch (IOException ioException) {
+                    log.error("Can not remove orphaned file " + id, ioException);
+                }
+            }
+        }
+        if (!saved) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
         }
 
         return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(fileModel);
@@ -197,7 +736,7 @@ public class FileController {
                                      Authentication authentication) {
 
         // Check if writer
-        if (!authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_WRITER")))) {
+        if (!permissionService.isWriter(authentication)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to delete files");
         }
 
@@ -211,16 +750,15 @@ public class FileController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
         }
 
-        fileModelRepository.delete(fileModel.get());
+        // Remove the row and decrease the size of the group it is in now
+        if (!quotaService.deleteFile(fileModel.get())) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No file");
+        }
+        metadataCacheService.fileChanged(id);
 
         try {
-            // Decrease group size
-            GroupModel groupModel = fileModel.get().getGroup();
-            groupModel.decreaseSize(fileModel.get().getSize());
-            groupModelRepository.save(groupModel);
-
             // Remove file
-            fileService.deleteFile(id);
+            blobService.release(fileModel.get());
 
             return ResponseEntity.ok()
                     .contentType(MediaType.APPLICATION_JSON)
@@ -243,7 +781,7 @@ public class FileController {
                                             Authentication authentication) {
 
         // Check if writer
-        if (!authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_WRITER")))) {
+        if (!permissionService.isWriter(authentication)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to update descriptions");
         }
 
@@ -262,6 +800,7 @@ public class FileController {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong permissions format");
         }
 
+        GroupModel previousGroup = null;
         if (filename != null) fileModel.get().setFilename(filename);
         if (description != null) fileModel.get().setDescription(description);
         if (groupId != null) {
@@ -270,6 +809,7 @@ public class FileController {
             if (group.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
             }
+            previousGroup = fileModel.get().getGroup();
             fileModel.get().setGroup(group.get());
         }
         if (permission != null) fileModel.get().setPermission(permission);
@@ -282,9 +822,43 @@ public class FileController {
             }
         }
 
-        fileModelRepository.save(fileModel.get());
+        // Move the size of the file to the new group together with the save
+        if (groupId != null && (previousGroup == null || !previousGroup.getId().equals(groupId))) {
+            String previousGroupId = previousGroup != null ? previousGroup.getId() : null;
+            QuotaService.MoveResult moveResult = quotaService.moveFile(fileModel.get(), previousGroupId);
+            if (moveResult == QuotaService.MoveResult.QUOTA_REACHED) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Quota reached");
+            }
+            if (moveResult == QuotaService.MoveResult.GROUP_DELETED) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
+            }
+            if (moveResult == QuotaService.MoveResult.FILE_CHANGED) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON).body("File was deleted or moved by another request");
+            }
+        } else {
+            fileModelRepository.save(fileModel.get());
+        }
+        metadataCacheService.fileChanged(id);
 
         return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(fileModel);
     }
 
+    private String getCacheControl(FileModel fileModel) {
+
+        GroupModel groupModel = fileModel.getGroup();
+        if (groupModel != null && groupModel.getCacheControl() != null && !groupModel.getCacheControl().isBlank()) {
+            return groupModel.getCacheControl();
+        }
+        return storageProperty.getCacheControl();
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+
+        return time != null ? time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : -1;
+    }
+
+    // Writes the content of an upload under the file id
+    private interface Upload {
+        StoredFile store(String id, boolean compress) throws IOException;
+    }
 }
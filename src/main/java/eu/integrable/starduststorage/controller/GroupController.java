@@ -1,24 +1,43 @@
 package eu.integrable.starduststorage.controller;
 
-import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.model.DeletionTaskModel;
+import eu.integrable.starduststorage.model.FileAccess;
+import eu.integrable.starduststorage.model.FilePage;
+import eu.integrable.starduststorage.model.FileSummary;
 import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.DeletionTaskModelRepository;
 import eu.integrable.starduststorage.repository.FileModelRepository;
 import eu.integrable.starduststorage.repository.GroupModelRepository;
+import eu.integrable.starduststorage.service.ArchiveFormat;
+import eu.integrable.starduststorage.service.ArchiveService;
+import eu.integrable.starduststorage.service.GroupDeletionService;
+import eu.integrable.starduststorage.service.MetadataCacheService;
 import eu.integrable.starduststorage.service.PermissionService;
+import eu.integrable.starduststorage.service.StorageMetrics;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 
 @RestController
 @RequestMapping("/api/v1/storage/group")
@@ -26,15 +45,35 @@ public class GroupController {
 
     private static final Logger log = LoggerFactory.getLogger(GroupController.class);
 
+    private static final LocalDateTime FIRST_CREATION_TIME = LocalDateTime.of(1970, 1, 1, 0, 0);
+
     @Autowired
     private GroupModelRepository groupModelRepository;
 
     @Autowired
-    private FileController fileController;
+    private FileModelRepository fileModelRepository;
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private DeletionTaskModelRepository deletionTaskModelRepository;
+
+    @Autowired
+    private GroupDeletionService groupDeletionService;
+
+    @Autowired
+    private MetadataCacheService metadataCacheService;
+
+    @Autowired
+    private ArchiveService archiveService;
 
     @Autowired
     private PermissionService permissionService;
 
+    @Autowired
+    private StorageMetrics storageMetrics;
+
     @GetMapping("{groupId}")
     @Operation(summary = "Get group")
     @SecurityRequirement(name = "bearer")
@@ -52,11 +91,126 @@ public class GroupController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
         }
 
+        groupModel.get().setFileCount(fileModelRepository.countByGroupId(groupId));
+
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(groupModel.get());
     }
 
+    @GetMapping("{groupId}/files")
+    @Operation(summary = "List files of the group page by page")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity getGroupFiles(@PathVariable String groupId,
+                                        @RequestParam(required = false, defaultValue = "filename") String sort,
+                                        @RequestParam(required = false) String after,
+                                        @RequestParam(required = false) Integer size,
+                                        Authentication authentication) {
+
+        // Get group model
+        Optional<GroupModel> groupModel = groupModelRepository.findById(groupId);
+        if (groupModel.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No group");
+        }
+
+        // Check access permissions
+        if (!permissionService.isAccessPermitted(authentication, groupModel.get())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        if (size == null) {
+            size = storageProperty.getPageSize();
+        } else if (size <= 0 || size > storageProperty.getMaxPageSize()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Page size must be between 1 and " + storageProperty.getMaxPageSize());
+        }
+
+        // The cursor holds the sort value and the id of the last file of the previous page
+        String afterValue = null;
+        String afterId = "";
+        if (after != null) {
+            try {
+                String cursor = new String(Base64.getUrlDecoder().decode(after), StandardCharsets.UTF_8);
+                int separator = cursor.lastIndexOf('\n');
+                afterValue = cursor.substring(0, separator);
+                afterId = cursor.substring(separator + 1);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong cursor");
+            }
+        }
+
+        List<FileSummary> files;
+        PageRequest pageRequest = PageRequest.of(0, size);
+        if (sort.equals("filename")) {
+            files = fileModelRepository.findPageOrderedByFilename(groupId,
+                    afterValue != null ? afterValue : "", afterId, pageRequest);
+        } else if (sort.equals("creationTime")) {
+            try {
+                files = fileModelRepository.findPageOrderedByCreationTime(groupId,
+                        afterValue != null ? LocalDateTime.parse(afterValue) : FIRST_CREATION_TIME, afterId, pageRequest);
+            } catch (DateTimeParseException ex) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong cursor");
+            }
+        } else {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Sort must be filename or creationTime");
+        }
+
+        // A full page may be followed by another one
+        String next = null;
+        if (files.size() == size) {
+            FileSummary last = files.get(files.size() - 1);
+            String lastValue = sort.equals("filename") ? last.getFilename() : last.getCreationTime().toString();
+            next = Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((lastValue + "\n" + last.getId()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(new FilePage(files, next));
+    }
+
+    @GetMapping("{groupId}/archive")
+    @Operation(summary = "Download files of the group as a ZIP or TAR archive")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity downloadGroupArchive(@PathVariable String groupId,
+                                               @RequestParam(required = false, defaultValue = "zip") String format,
+                                               HttpServletRequest request,
+                                               HttpServletResponse response,
+                                               Authentication authentication) {
+
+        ArchiveFormat archiveFormat = ArchiveFormat.fromExtension(format);
+        if (archiveFormat == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Format must be zip or tar");
+        }
+
+        // Get group model
+        Optional<GroupModel> groupModel = groupModelRepository.findById(groupId);
+        if (groupModel.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No group");
+        }
+
+        // Check access permissions
+        if (!permissionService.isAccessPermitted(authentication, groupModel.get())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        // Stream the archive while it is produced, files the caller may not access are left out
+        response.setContentType(archiveFormat.getMediaType());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(groupId + "." + archiveFormat.getExtension(), StandardCharsets.UTF_8)
+                .build().toString());
+        StorageMetrics.Transfer transfer = storageMetrics.startTransfer(StorageMetrics.DOWNLOAD, groupId);
+        request.setAttribute(StorageMetrics.TRANSFER_ATTRIBUTE, transfer);
+        try {
+            archiveService.writeArchive(archiveFormat, archiveService.getGroupFiles(groupId, authentication), transfer.count(response.getOutputStream()));
+        } catch (IOException ex) {
+            // The status is already sent, the client sees a truncated archive
+            log.error("Can not stream archive of group " + groupId, ex);
+            transfer.finish(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+
+        return null;
+    }
+
     @PostMapping("{groupId}")
     @Operation(summary = "Set group")
     @SecurityRequirement(name = "bearer")
@@ -64,10 +218,12 @@ public class GroupController {
                                        @RequestParam(required = false) String description,
                                        @RequestParam(required = false) String permission,
                                        @RequestParam(required = false) Long quota,
+                                       @RequestParam(required = false, name = "cachecontrol") String cacheControl,
+                                       @RequestParam(required = false) Boolean compression,
                                        Authentication authentication) {
 
         // Check if writer
-        if (!authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_WRITER")))) {
+        if (!permissionService.isWriter(authentication)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to update files");
         }
 
@@ -84,6 +240,11 @@ public class GroupController {
             }
         }
 
+        // Check the cache policy
+        if (cacheControl != null && !isCacheControlCorrect(cacheControl)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong cache control");
+        }
+
         // Get owner
         String owner = authentication.getPrincipal().toString();
 
@@ -94,10 +255,13 @@ public class GroupController {
                 .owner(owner)
                 .permission(permission)
                 .quota(quota)
+                .cacheControl(cacheControl)
+                .compression(compression)
                 .build();
 
         // Store in database
         groupModel = groupModelRepository.save(groupModel);
+        groupModel.setFileCount(0L);
 
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
@@ -111,10 +275,12 @@ public class GroupController {
                                           @RequestParam(required = false) String description,
                                           @RequestParam(required = false) String permission,
                                           @RequestParam(required = false) Long quota,
+                                          @RequestParam(required = false, name = "cachecontrol") String cacheControl,
+                                          @RequestParam(required = false) Boolean compression,
                                           Authentication authentication) {
 
         // Check if writer
-        if (!authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_WRITER")))) {
+        if (!permissionService.isWriter(authentication)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to update files");
         }
 
@@ -136,6 +302,11 @@ public class GroupController {
             }
         }
 
+        // Check the cache policy
+        if (cacheControl != null && !isCacheControlCorrect(cacheControl)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong cache control");
+        }
+
         if (description != null) {
             groupModel.get().setDescription(description);
         }
@@ -145,9 +316,17 @@ public class GroupController {
         if (quota != null) {
             groupModel.get().setQuota(quota);
         }
+        if (cacheControl != null) {
+            groupModel.get().setCacheControl(cacheControl);
+        }
+        if (compression != null) {
+            groupModel.get().setCompression(compression);
+        }
 
         // Store in database
         groupModelRepository.save(groupModel.get());
+        metadataCacheService.groupChanged(groupId);
+        groupModel.get().setFileCount(fileModelRepository.countByGroupId(groupId));
 
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
@@ -162,7 +341,7 @@ public class GroupController {
                                        Authentication authentication) {
 
         // Check if writer
-        if (!authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_WRITER")))) {
+        if (!permissionService.isWriter(authentication)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to update files");
         }
 
@@ -177,24 +356,50 @@ public class GroupController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
         }
 
-        // Get all Files
-        Set<FileModel> files = groupModel.get().getFiles();
-
-        // Remove files
-        for (FileModel file : files) {
-            ResponseEntity responseEntity = fileController.deleteFile(file.getId(), authentication);
-            if (!responseEntity.getStatusCode().is2xxSuccessful()) {
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .body("Can not delete file");
+        // Check access to every file of the group, files sharing owner and permissions are checked once
+        for (FileAccess fileAccess : fileModelRepository.findDistinctAccessByGroupId(groupId)) {
+            if (!permissionService.isAccessPermitted(authentication, fileAccess)) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access to a file of the group");
             }
         }
 
-        // Delete
-        groupModelRepository.delete(groupModel.get());
+        // Delete the metadata, the content is removed in the background
+        DeletionTaskModel deletionTaskModel = groupDeletionService.deleteGroup(groupModel.get(), authentication.getPrincipal().toString());
+        if (deletionTaskModel == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
+        }
+
+        return ResponseEntity.accepted()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(deletionTaskModel);
+    }
+
+    @GetMapping("{groupId}/deletion/{taskId}")
+    @Operation(summary = "Get progress of group deletion")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity getDeletionTask(@PathVariable String groupId,
+                                          @PathVariable String taskId,
+                                          Authentication authentication) {
+
+        Optional<DeletionTaskModel> deletionTaskModel = deletionTaskModelRepository.findById(taskId);
+        if (deletionTaskModel.isEmpty() || !deletionTaskModel.get().getGroupId().equals(groupId)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No deletion task");
+        }
+
+        // Check access permissions
+        if (!authentication.getPrincipal().toString().equals(deletionTaskModel.get().getOwner())
+                && !permissionService.isAdmin(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
 
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
-                .body("Deleted");
+                .body(deletionTaskModel.get());
+    }
+
+    private boolean isCacheControlCorrect(String cacheControl) {
+
+        // Control characters would break the header, a blank value selects the default policy
+        return cacheControl.chars().noneMatch(Character::isISOControl);
     }
 }
@@ -0,0 +1,112 @@
+package eu.integrable.starduststorage.controller;
+
+import eu.integrable.starduststorage.model.CacheEviction;
+import eu.integrable.starduststorage.service.IntegrityScrubService;
+import eu.integrable.starduststorage.service.MetadataCacheService;
+import eu.integrable.starduststorage.service.PermissionService;
+import eu.integrable.starduststorage.service.StorageLayoutService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/api/v1/storage/maintenance")
+public class MaintenanceController {
+
+    @Autowired
+    private StorageLayoutService storageLayoutService;
+
+    @Autowired
+    private PermissionService permissionService;
+
+    @Autowired
+    private MetadataCacheService metadataCacheService;
+
+    @Autowired
+    private IntegrityScrubService integrityScrubService;
+
+    @GetMapping("layout")
+    @Operation(summary = "Get storage layout migration status")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity getLayoutMigration(Authentication authentication) {
+
+        // Check if admin
+        if (!permissionService.isAdmin(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(storageLayoutService.getStatus());
+    }
+
+    @PostMapping("layout")
+    @Operation(summary = "Move files of the flat layout into the sharded layout")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity startLayoutMigration(Authentication authentication) {
+
+        // Check if admin
+        if (!permissionService.isAdmin(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        if (!storageLayoutService.startMigration()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON).body("Migration is running or there is no sharded layout");
+        }
+
+        return ResponseEntity.status(HttpStatus.ACCEPTED).contentType(MediaType.APPLICATION_JSON).body(storageLayoutService.getStatus());
+    }
+
+    @GetMapping("scrub")
+    @Operation(summary = "Get integrity scrub progress and the files failing verification")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity getScrubReport(Authentication authentication) {
+
+        // Check if admin
+        if (!permissionService.isAdmin(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(integrityScrubService.getReport());
+    }
+
+    @PostMapping("scrub")
+    @Operation(summary = "Start a new integrity scrub pass")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity startScrub(Authentication authentication) {
+
+        // Check if admin
+        if (!permissionService.isAdmin(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        if (!integrityScrubService.startScrub(true)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON).body("Scrub is running");
+        }
+
+        return ResponseEntity.status(HttpStatus.ACCEPTED).contentType(MediaType.APPLICATION_JSON).body("Scrub started");
+    }
+
+    @PostMapping("cache/evict")
+    @Operation(summary = "Evict file and group metadata from the cache of this instance")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity evictMetadata(@RequestBody CacheEviction cacheEviction,
+                                        Authentication authentication) {
+
+        // Only the eviction tokens of other instances are accepted, not user tokens of any role
+        if (!permissionService.isCacheEvictor(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        metadataCacheService.evict(cacheEviction);
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body("Evicted");
+    }
+}
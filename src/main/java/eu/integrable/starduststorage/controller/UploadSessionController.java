@@ -0,0 +1,296 @@
+package eu.integrable.starduststorage.controller;
+
+import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.model.UploadSessionModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.GroupModelRepository;
+import eu.integrable.starduststorage.repository.UploadSessionModelRepository;
+import eu.integrable.starduststorage.service.PermissionService;
+import eu.integrable.starduststorage.service.StorageMetrics;
+import eu.integrable.starduststorage.service.StoredFile;
+import eu.integrable.starduststorage.service.UploadSessionLockedException;
+import eu.integrable.starduststorage.service.UploadSessionNotFoundException;
+import eu.integrable.starduststorage.service.UploadSessionService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@RestController
+@RequestMapping("/api/v1/storage/upload")
+public class UploadSessionController {
+
+    @Autowired
+    private UploadSessionModelRepository uploadSessionModelRepository;
+
+    @Autowired
+    private GroupModelRepository groupModelRepository;
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @Autowired
+    private PermissionService permissionService;
+
+    @Autowired
+    private FileController fileController;
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    @PostMapping("")
+    @Operation(summary = "Create upload session")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity createSession(@RequestParam(required = true) String filename,
+                                        @RequestParam(required = true) Long size,
+                                        @RequestParam(required = false, name = "chunksize") Long chunkSize,
+                                        @RequestParam(required = false) String description,
+                                        @RequestParam(required = false, name = "group") String groupId,
+                                        @RequestParam(required = false) String permission,
+                                        @RequestParam(required = false) String mediatype,
+                                        Authentication authentication) {
+
+        // Check if writer
+        if (!permissionService.isWriter(authentication)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Not allowed to upload files");
+        }
+
+        if (size < 0 || size > storageProperty.getMaxUploadSize().toBytes()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong file size");
+        }
+
+        if (chunkSize == null) {
+            chunkSize = storageProperty.getChunkSize().toBytes();
+        } else if (chunkSize < storageProperty.getMinChunkSize().toBytes()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Chunk size must be at least " + storageProperty.getMinChunkSize().toBytes() + " bytes");
+        }
+
+        if (mediatype == null) {
+            mediatype = "application/octet-stream";
+        } else {
+            try {
+                MediaType.parseMediaType(mediatype);
+            } catch (InvalidMediaTypeException ex) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong media-type/media-type not supported");
+            }
+        }
+
+        // Check the group and its quota early, they are checked again on commit
+        if (groupId != null) {
+            Optional<GroupModel> group = groupModelRepository.findById(groupId);
+            if (group.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("Group does not exist");
+            }
+            Long quota = group.get().getQuota();
+            if (quota != null && group.get().getSize() + size > quota) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("Quota reached");
+            }
+        }
+
+        // Check if permissions are correct
+        if (permission != null) {
+            if (!permissionService.arePermissionsCorrect(authentication, permission)) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong permissions format");
+            }
+        }
+
+        // Create Upload Session Model
+        UploadSessionModel uploadSessionModel = UploadSessionModel.builder()
+                .id(UUID.randomUUID().toString())
+                .filename(filename)
+                .description(description)
+                .groupId(groupId)
+                .owner(authentication.getPrincipal().toString())
+                .permission(permission)
+                .mediaType(mediatype)
+                .size(size)
+                .chunkSize(chunkSize)
+                .receivedChunks(List.of())
+                .build();
+
+        try {
+            uploadSessionService.createSessionDirectory(uploadSessionModel.getId());
+        } catch (IOException ex) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+        }
+
+        uploadSessionModel = uploadSessionModelRepository.save(uploadSessionModel);
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(uploadSessionModel);
+    }
+
+    @GetMapping("{sessionId}")
+    @Operation(summary = "Get upload session with the received chunks")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity getSession(@PathVariable String sessionId,
+                                     Authentication authentication) {
+
+        Optional<UploadSessionModel> uploadSessionModel = uploadSessionModelRepository.findById(sessionId);
+        if (uploadSessionModel.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No upload session");
+        }
+
+        // Check access permissions
+        if (!isSessionOwner(authentication, uploadSessionModel.get())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        try {
+            uploadSessionModel.get().setReceivedChunks(uploadSessionService.getReceivedChunks(sessionId));
+        } catch (UploadSessionNotFoundException ex) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No upload session");
+        } catch (IOException ex) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+        }
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(uploadSessionModel.get());
+    }
+
+    @PutMapping("{sessionId}/{index}")
+    @Operation(summary = "Upload chunk as a raw request body")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity uploadChunk(@PathVariable String sessionId,
+                                      @PathVariable Integer index,
+                                      @RequestParam(required = false) String checksum,
+                                      HttpServletRequest request,
+                                      Authentication authentication) {
+
+        Optional<UploadSessionModel> uploadSessionModel = uploadSessionModelRepository.findById(sessionId);
+        if (uploadSessionModel.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No upload session");
+        }
+
+        // Check access permissions
+        if (!isSessionOwner(authentication, uploadSessionModel.get())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        if (index < 0 || index >= uploadSessionModel.get().getChunkCount()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Wrong chunk index");
+        }
+
+        long chunkLength = uploadSessionModel.get().getChunkLength(index);
+        long contentLength = request.getContentLengthLong();
+        if (contentLength >= 0 && contentLength != chunkLength) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Chunk must be " + chunkLength + " bytes long");
+        }
+
+        StorageMetrics.Transfer transfer = storageMetrics.startTransfer(StorageMetrics.UPLOAD, uploadSessionModel.get().getGroupId());
+        int status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+        try (InputStream inputStream = request.getInputStream()) {
+            if (!uploadSessionService.saveChunk(uploadSessionModel.get(), index, inputStream, checksum)) {
+                status = HttpStatus.BAD_REQUEST.value();
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body("Chunk verification failed");
+            }
+            status = HttpStatus.OK.value();
+            transfer.addBytes(chunkLength);
+        } catch (UploadSessionLockedException ex) {
+            status = HttpStatus.CONFLICT.value();
+            return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON).body("Chunk is locked by another request");
+        } catch (UploadSessionNotFoundException ex) {
+            status = HttpStatus.NOT_FOUND.value();
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No upload session");
+        } catch (IOException ex) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+        } finally {
+            transfer.finish(status);
+        }
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body("Stored");
+    }
+
+    @PostMapping("{sessionId}/commit")
+    @Operation(summary = "Assemble the chunks into a file")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity commitSession(@PathVariable String sessionId,
+                                        Authentication authentication) {
+
+        Optional<UploadSessionModel> uploadSessionModel = uploadSessionModelRepository.findById(sessionId);
+        if (uploadSessionModel.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No upload session");
+        }
+
+        // Check access permissions
+        if (!isSessionOwner(authentication, uploadSessionModel.get())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        UploadSessionModel session = uploadSessionModel.get();
+        try (UploadSessionService.Commit commit = uploadSessionService.commit(session)) {
+
+            // Check if all chunks are present
+            List<Integer> receivedChunks = commit.getReceivedChunks();
+            if (receivedChunks.size() != session.getChunkCount()) {
+                session.setReceivedChunks(receivedChunks);
+                return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON).body(session);
+            }
+
+            // The chunks were hashed while they arrived, the file they were written to becomes the stored file
+            StoredFile content = commit.digest();
+            return fileController.storeFile(
+                    commit.start(),
+                    content,
+                    session.getFilename(),
+                    session.getDescription(),
+                    session.getGroupId(),
+                    session.getPermission(),
+                    session.getMediaType(),
+                    authentication);
+
+        } catch (UploadSessionLockedException ex) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON).body("Upload session is locked by another request");
+        } catch (UploadSessionNotFoundException ex) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No upload session");
+        } catch (IOException ex) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body(ex.getMessage());
+        }
+    }
+
+    @DeleteMapping("{sessionId}")
+    @Operation(summary = "Abort upload session")
+    @SecurityRequirement(name = "bearer")
+    public ResponseEntity deleteSession(@PathVariable String sessionId,
+                                        Authentication authentication) {
+
+        Optional<UploadSessionModel> uploadSessionModel = uploadSessionModelRepository.findById(sessionId);
+        if (uploadSessionModel.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body("No upload session");
+        }
+
+        // Check access permissions
+        if (!isSessionOwner(authentication, uploadSessionModel.get())) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.APPLICATION_JSON).body("No access");
+        }
+
+        try {
+            uploadSessionService.abortSession(uploadSessionModel.get());
+        } catch (UploadSessionLockedException ex) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON).body("Upload session is locked by another request");
+        } catch (IOException ex) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).contentType(MediaType.APPLICATION_JSON).body("Can not delete upload session");
+        }
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body("Deleted");
+    }
+
+    private boolean isSessionOwner(Authentication authentication, UploadSessionModel uploadSessionModel) {
+
+        return authentication.getPrincipal().toString().equals(uploadSessionModel.getOwner())
+                || permissionService.isAdmin(authentication);
+    }
+}
@@ -0,0 +1,53 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+import org.springframework.data.domain.Persistable;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "db_blob")
+@Entity
+public class BlobModel implements Persistable<String> {
+    // SHA-256 checksum of the content
+    @Column(nullable = false)
+    @Id
+    private String id;
+
+    @Column(nullable = false)
+    private Long size;
+
+    // Bytes on disk and their content coding, as in FileModel
+    private Long storedSize;
+
+    private String encoding;
+
+    @Column(nullable = false)
+    private Long referenceCount;
+
+    @CreationTimestamp
+    private LocalDateTime creationTime;
+
+    // Set on new blobs so saving them is a real insert, a concurrent insert of the same blob fails
+    @Transient
+    @Builder.Default
+    private boolean created = false;
+
+    @Override
+    public boolean isNew() {
+        return created;
+    }
+
+    @PostPersist
+    @PostLoad
+    void markPersisted() {
+        created = false;
+    }
+}
@@ -0,0 +1,25 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.Set;
+
+/**
+ * Metadata changed on one instance that the other instances evict from their caches.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class CacheEviction {
+
+    private Set<String> files;
+
+    private Set<String> groups;
+
+    // Set after bulk changes of files
+    private boolean allFiles;
+}
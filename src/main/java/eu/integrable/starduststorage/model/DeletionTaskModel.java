@@ -0,0 +1,44 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "db_deletion_task")
+@Entity
+public class DeletionTaskModel {
+    @Column(nullable = false)
+    @Id
+    private String id;
+
+    @Column(nullable = false)
+    private String groupId;
+
+    private String owner;
+
+    @Column(nullable = false)
+    private Long fileCount;
+
+    @Builder.Default
+    @Column(nullable = false)
+    private Long removedCount = 0L;
+
+    @CreationTimestamp
+    private LocalDateTime creationTime;
+
+    @UpdateTimestamp
+    private LocalDateTime modificationTime;
+
+    public boolean isFinished() {
+        return removedCount >= fileCount;
+    }
+}
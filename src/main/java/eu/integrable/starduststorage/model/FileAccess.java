@@ -0,0 +1,11 @@
+package eu.integrable.starduststorage.model;
+
+/**
+ * Projection of the columns deciding access to a file.
+ */
+public interface FileAccess {
+
+    String getOwner();
+
+    String getPermission();
+}
@@ -0,0 +1,33 @@
+package eu.integrable.starduststorage.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Projection of the columns needed to stream the content of a file together with its access columns.
+ */
+public interface FileContent extends FileAccess {
+
+    String getId();
+
+    String getFilename();
+
+    String getMediaType();
+
+    Long getSize();
+
+    Long getStoredSize();
+
+    String getEncoding();
+
+    String getBlob();
+
+    LocalDateTime getModificationTime();
+
+    default String getStorageKey() {
+        return getBlob() != null ? getBlob() : getId();
+    }
+
+    default long getStoredLength() {
+        return getStoredSize() != null ? getStoredSize() : getSize();
+    }
+}
@@ -0,0 +1,27 @@
+package eu.integrable.starduststorage.model;
+
+/**
+ * Projection of the columns needed to verify the stored content of a file.
+ */
+public interface FileIntegrity {
+
+    String getId();
+
+    Long getSize();
+
+    Long getStoredSize();
+
+    String getEncoding();
+
+    String getChecksum();
+
+    String getBlob();
+
+    default String getStorageKey() {
+        return getBlob() != null ? getBlob() : getId();
+    }
+
+    default long getStoredLength() {
+        return getStoredSize() != null ? getStoredSize() : getSize();
+    }
+}
@@ -2,10 +2,14 @@ package eu.integrable.starduststorage.model;
 
 import com.fasterxml.jackson.annotation.JsonIdentityInfo;
 import com.fasterxml.jackson.annotation.JsonIdentityReference;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.ObjectIdGenerators;
 import lombok.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
+import org.springframework.data.domain.Persistable;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
@@ -16,9 +20,13 @@ import java.time.LocalDateTime;
 @Builder
 @AllArgsConstructor
 @NoArgsConstructor
-@Table(name = "db_file")
+@Table(name = "db_file", indexes = {
+        @Index(name = "idx_file_group_filename", columnList = "file_id, filename, id"),
+        @Index(name = "idx_file_group_creation_time", columnList = "file_id, creationTime, id")
+})
 @Entity
-public class FileModel {
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "file")
+public class FileModel implements Persistable<String> {
     @Column(nullable = false)
     @Id
     private String id;
@@ -44,12 +52,50 @@ public class FileModel {
     @Column(nullable = false)
     private Long size;
 
+    // Bytes on disk, differs from the size when the content is compressed
+    private Long storedSize;
+
+    // Content coding of the stored bytes, null when stored as uploaded
+    private String encoding;
+
     @Column(nullable = false)
     private String checksum;
 
+    // Shared content-addressed blob, null when the content is stored under the file id
+    @JsonIgnore
+    private String blob;
+
     @CreationTimestamp
     private LocalDateTime creationTime;
 
     @UpdateTimestamp
     private LocalDateTime modificationTime;
+
+    // Set on files created in this request so they are inserted without a merge lookup
+    @Transient
+    @JsonIgnore
+    @Builder.Default
+    private boolean created = false;
+
+    @Override
+    @JsonIgnore
+    public boolean isNew() {
+        return created;
+    }
+
+    @PostPersist
+    @PostLoad
+    void markPersisted() {
+        created = false;
+    }
+
+    @JsonIgnore
+    public String getStorageKey() {
+        return blob != null ? blob : id;
+    }
+
+    @JsonIgnore
+    public long getStoredLength() {
+        return storedSize != null ? storedSize : size;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * One page of a file listing. The next cursor is null on the last page.
+ */
+@Getter
+@AllArgsConstructor
+public class FilePage {
+
+    private final List<FileSummary> files;
+
+    private final String next;
+}
@@ -0,0 +1,21 @@
+package eu.integrable.starduststorage.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Projection of the file columns needed for listings, read without loading FileModel entities.
+ */
+public interface FileSummary {
+
+    String getId();
+
+    String getFilename();
+
+    String getMediaType();
+
+    Long getSize();
+
+    String getChecksum();
+
+    LocalDateTime getCreationTime();
+}
@@ -1,9 +1,9 @@
 package eu.integrable.starduststorage.model;
 
-import com.fasterxml.jackson.annotation.JsonIdentityInfo;
-import com.fasterxml.jackson.annotation.JsonIdentityReference;
-import com.fasterxml.jackson.annotation.ObjectIdGenerators;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
@@ -19,6 +19,7 @@ import java.util.Set;
 @NoArgsConstructor
 @Table(name = "db_group")
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "group")
 public class GroupModel {
     @Column(nullable = false)
     @Id
@@ -32,25 +33,28 @@ public class GroupModel {
 
     private Long quota;
 
+    // Cache-Control of downloaded files of the group, storage.cache-control when null
+    private String cacheControl;
+
+    // Compress files of the group at rest, decided by media type when null
+    private Boolean compression;
+
+    // Only changed through QuotaService, never written back from a loaded entity
     @Builder.Default
+    @Column(updatable = false)
     private Long size = 0L;
 
     @OneToMany(mappedBy = "group", cascade = CascadeType.ALL)
-    @JsonIdentityInfo(generator = ObjectIdGenerators.PropertyGenerator.class, property = "id")
-    @JsonIdentityReference(alwaysAsId = true)
+    @JsonIgnore
     private Set<FileModel> files;
 
+    // Number of files, filled in for responses instead of serializing the files
+    @Transient
+    private Long fileCount;
+
     @CreationTimestamp
     private LocalDateTime creationTime;
 
     @UpdateTimestamp
     private LocalDateTime modificationTime;
-
-    public void increaseSize(Long size) {
-        this.size += size;
-    }
-
-    public void decreaseSize(Long size) {
-        this.size -= size;
-    }
 }
\ No newline at end of file
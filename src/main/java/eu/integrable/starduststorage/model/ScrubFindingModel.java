@@ -0,0 +1,36 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.*;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * A file whose stored content failed verification, removed once the file verifies again
+ * or is no longer found by a pass.
+ */
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "db_scrub_finding")
+@Entity
+public class ScrubFindingModel {
+    @Column(nullable = false)
+    @Id
+    private String id;
+
+    @Column(nullable = false)
+    private String storageKey;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private ScrubProblem problem;
+
+    @Column(length = 1000)
+    private String detail;
+
+    @Column(nullable = false)
+    private LocalDateTime detectionTime;
+}
@@ -0,0 +1,13 @@
+package eu.integrable.starduststorage.model;
+
+public enum ScrubProblem {
+
+    // No content under the storage key
+    MISSING,
+
+    // Stored length differs from the recorded one, e.g. a truncated write
+    SIZE_MISMATCH,
+
+    // Content can not be decoded or does not match the checksum
+    CORRUPT
+}
@@ -0,0 +1,18 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class ScrubReport {
+
+    private final boolean running;
+
+    // Null before the first pass
+    private final ScrubStateModel state;
+
+    private final List<ScrubFindingModel> findings;
+}
@@ -0,0 +1,57 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.*;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Checkpoint of the integrity scrub: the pass in progress, the last verified file id,
+ * the counts of the pass and the instance running it.
+ */
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "db_scrub_state")
+@Entity
+public class ScrubStateModel {
+    @Column(nullable = false)
+    @Id
+    private String id;
+
+    @Column(nullable = false)
+    private String lastFileId;
+
+    @Column(nullable = false)
+    private LocalDateTime passStartTime;
+
+    // Null while the pass is in progress
+    private LocalDateTime passEndTime;
+
+    @Builder.Default
+    @Column(nullable = false)
+    private Long checkedCount = 0L;
+
+    @Builder.Default
+    @Column(nullable = false)
+    private Long checkedBytes = 0L;
+
+    @Builder.Default
+    @Column(nullable = false)
+    private Long missingCount = 0L;
+
+    @Builder.Default
+    @Column(nullable = false)
+    private Long corruptCount = 0L;
+
+    // Instance running the pass, the others leave it alone until the lease ends
+    private String leaseOwner;
+
+    private LocalDateTime leaseUntil;
+
+    @UpdateTimestamp
+    private LocalDateTime modificationTime;
+}
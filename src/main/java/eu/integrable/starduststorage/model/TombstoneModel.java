@@ -0,0 +1,36 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "db_tombstone")
+@Entity
+public class TombstoneModel {
+    // Id of the deleted file
+    @Column(nullable = false)
+    @Id
+    private String id;
+
+    // Shared blob of the deleted file, null when the content is stored under the file id
+    private String blob;
+
+    @Column(nullable = false)
+    private String taskId;
+
+    // Reaper run releasing the tombstone, other instances skip it until the lease ends
+    private String leaseOwner;
+
+    private LocalDateTime leaseUntil;
+
+    @CreationTimestamp
+    private LocalDateTime creationTime;
+}
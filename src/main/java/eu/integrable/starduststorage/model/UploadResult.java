@@ -0,0 +1,22 @@
+package eu.integrable.starduststorage.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Outcome of one file of a batch upload, either the stored file or the error message.
+ */
+@Getter
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UploadResult {
+
+    private final String filename;
+
+    private final int status;
+
+    private final String message;
+
+    private final FileModel file;
+}
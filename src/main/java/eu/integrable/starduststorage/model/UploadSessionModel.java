@@ -0,0 +1,61 @@
+package eu.integrable.starduststorage.model;
+
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+import java.util.List;
+
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(name = "db_upload_session")
+@Entity
+public class UploadSessionModel {
+    @Column(nullable = false)
+    @Id
+    private String id;
+
+    @Column(nullable = false)
+    private String filename;
+
+    private String description;
+
+    @Column(name = "group_id")
+    private String groupId;
+
+    private String owner;
+
+    private String permission;
+
+    @Column(nullable = false)
+    private String mediaType;
+
+    @Column(nullable = false)
+    private Long size;
+
+    @Column(nullable = false)
+    private Long chunkSize;
+
+    @Transient
+    private List<Integer> receivedChunks;
+
+    @CreationTimestamp
+    private LocalDateTime creationTime;
+
+    @UpdateTimestamp
+    private LocalDateTime modificationTime;
+
+    public int getChunkCount() {
+        return size == 0 ? 1 : (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    public long getChunkLength(int index) {
+        return Math.min(chunkSize, size - index * chunkSize);
+    }
+}
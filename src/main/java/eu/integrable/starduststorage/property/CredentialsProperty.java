@@ -4,10 +4,18 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.time.Duration;
+
 @Getter
 @Setter
 @ConfigurationProperties(prefix = "credentials")
 public class CredentialsProperty {
 
     private String jwtSecret;
+
+    // Number of verified tokens kept, 0 disables the cache
+    private long tokenCacheSize = 10000;
+
+    // Longest time a verified token is kept, tokens are never kept past their expiration
+    private Duration tokenCacheTtl = Duration.ofMinutes(10);
 }
@@ -1,13 +1,175 @@
 package eu.integrable.starduststorage.property;
 
+import eu.integrable.starduststorage.storage.BlobStoreBackend;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
 
 @Getter
 @Setter
 @ConfigurationProperties(prefix = "storage")
 public class StorageProperty {
 
+    // Where file content is kept, "local" stores it in the directory and "segment" packs small files into segments there
+    // The segment index lives in the memory of one instance, instances sharing the directory must use "local"
+    private BlobStoreBackend backend = BlobStoreBackend.LOCAL;
+
+    // Stored files up to this size are packed into segments of the segment size
+    private DataSize segmentMaxFileSize = DataSize.ofKilobytes(64);
+
+    private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+    // Sync every group of appended files to disk before the uploads complete
+    private boolean segmentSync = true;
+
+    // Share of deleted bytes at which a segment is compacted
+    private double segmentCompactionThreshold = 0.5;
+
     private String directory;
+
+    // Number of two-character directory levels derived from the file name, 0 keeps a flat directory
+    private int shardDepth = 2;
+
+    // Move files of the flat layout into the sharded layout in the background after startup
+    private boolean migrateLayoutOnStartup = false;
+
+    // Store identical content once, as a reference counted blob named by its checksum
+    private boolean deduplication = false;
+
+    // Size of a single transfer buffer in bytes
+    private int bufferSize = 64 * 1024;
+
+    // Number of transfer buffers kept for reuse
+    private int bufferPoolSize = 64;
+
+    // Threads reading and writing stored files in parallel within a request
+    private int ioThreads = 8;
+
+    // Largest raw-body upload accepted by PUT /api/v1/storage/file
+    private DataSize maxUploadSize = DataSize.ofMegabytes(500);
+
+    // Keep small files in memory, weighed by length against the cache size
+    private boolean blobCacheEnabled = false;
+
+    private DataSize blobCacheSize = DataSize.ofMegabytes(64);
+
+    private DataSize blobCacheMaxFileSize = DataSize.ofKilobytes(256);
+
+    // Second-level cache of file and group metadata, changes are sent to the other instances when broadcast is on.
+    // Off by default: quota updates on upload and bulk file deletes invalidate a whole region, so it pays off for
+    // read-mostly deployments only
+    private boolean metadataCacheEnabled = false;
+
+    private long metadataCacheSize = 10000;
+
+    private Duration metadataCacheTtl = Duration.ofSeconds(30);
+
+    private boolean metadataCacheBroadcast = true;
+
+    // Parsed permission lists kept by PermissionService, one entry per distinct permission JSON
+    private long permissionCacheSize = 10000;
+
+    // Compress files of the listed media types at rest, groups can switch compression on or off for all their files
+    private boolean compression = false;
+
+    private List<String> compressionMediaTypes = List.of(
+            "text/*", "application/json", "application/*+json", "application/x-ndjson",
+            "application/xml", "application/*+xml", "application/javascript", "application/yaml",
+            "application/x-yaml", "application/sql", "image/svg+xml", "image/bmp", "image/tiff");
+
+    // Smaller files are stored as uploaded
+    private DataSize compressionMinSize = DataSize.ofKilobytes(1);
+
+    // Deflate level, low levels are fast and still shrink text well
+    private int compressionLevel = 1;
+
+    // Downloads at least this large are transferred with sendfile when the connector supports it
+    private DataSize sendfileThreshold = DataSize.ofKilobytes(64);
+
+    // Cache-Control of downloaded files unless their group defines one
+    private String cacheControl = "private, no-cache";
+
+    // Media types whose content is already compressed and is not compressed again
+    private List<String> compressedMediaTypes = List.of(
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/avif", "video/*",
+            "audio/mpeg", "audio/aac", "audio/ogg", "audio/opus", "application/pdf",
+            "application/zip", "application/*+zip", "application/gzip", "application/x-gzip",
+            "application/x-bzip2", "application/x-xz", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/zstd");
+
+    // Largest number of files uploaded in one multipart request, or downloaded in one multipart/mixed response or archive
+    private int maxBatchFiles = 1000;
+
+    // Number of files of a batch download read ahead of the one being sent, and the largest file read ahead
+    private int prefetchWindow = 16;
+
+    private DataSize prefetchMaxSize = DataSize.ofMegabytes(1);
+
+    // Default and largest number of files in a page of a listing
+    private int pageSize = 100;
+
+    private int maxPageSize = 1000;
+
+    // Directory holding chunks of unfinished upload sessions, defaults to <directory>/.sessions
+    private String uploadSessionDirectory;
+
+    // Default chunk size of an upload session
+    private DataSize chunkSize = DataSize.ofMegabytes(8);
+
+    // Smallest chunk size accepted for an upload session, every chunk costs a request and a marker file
+    private DataSize minChunkSize = DataSize.ofMegabytes(1);
+
+    // Upload sessions not committed within this time are removed
+    private Duration uploadSessionTimeout = Duration.ofHours(24);
+
+    // Background removal of the content of deleted groups
+    private int reaperThreads = 4;
+
+    private int reaperBatchSize = 500;
+
+    // Files removed per second, 0 for no limit
+    private double reaperRate = 200;
+
+    // Tombstones claimed by an instance are left to it this long, longer than a batch takes to release
+    private Duration reaperLease = Duration.ofMinutes(5);
+
+    // Finished deletion tasks are kept for polling this long
+    private Duration deletionTaskRetention = Duration.ofDays(7);
+
+    // Tag transfer metrics by group, one series per group and outcome
+    private boolean metricsGroupTag = false;
+
+    // Fraction of requests timed by phase, 0 disables the breakdown
+    private double requestTimingSampleRate = 0.01;
+
+    // Answer timed requests of every caller with a Server-Timing header, admins always get it
+    private boolean serverTiming = false;
+
+    // Requests taking longer are logged with their phases, 0 disables the log
+    private Duration slowRequestThreshold = Duration.ofSeconds(1);
+
+    // Verify stored content against the checksum and size of each file in the background
+    private boolean scrubEnabled = true;
+
+    // Time from the end of a scrub pass to the start of the next
+    private Duration scrubPassInterval = Duration.ofDays(7);
+
+    // Milliseconds between checks whether a scrub pass is due or was left unfinished
+    private long scrubCheckInterval = 60000;
+
+    // A pass is run by one instance at a time, the others take it over when the lease ends.
+    // Renewed after every batch, longer than a batch takes to verify
+    private Duration scrubLease = Duration.ofMinutes(10);
+
+    // Stored bytes read per second by all scrub threads, 0 for no limit
+    private DataSize scrubBandwidth = DataSize.ofMegabytes(8);
+
+    private int scrubThreads = 2;
+
+    // Files verified between two checkpoints
+    private int scrubBatchSize = 100;
 }
@@ -0,0 +1,35 @@
+package eu.integrable.starduststorage.repository;
+
+import eu.integrable.starduststorage.model.BlobModel;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.LockModeType;
+import java.util.Optional;
+
+public interface BlobModelRepository extends JpaRepository<BlobModel, String> {
+
+    // Row lock held until the end of the surrounding transaction, it orders referencing and releasing across instances
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from BlobModel b where b.id = :id")
+    Optional<BlobModel> findByIdForUpdate(@Param("id") String id);
+
+    @Transactional
+    @Modifying
+    @Query("update BlobModel b set b.referenceCount = b.referenceCount + 1 where b.id = :id")
+    int incrementReferences(@Param("id") String id);
+
+    @Transactional
+    @Modifying
+    @Query("update BlobModel b set b.referenceCount = b.referenceCount - 1 where b.id = :id")
+    int decrementReferences(@Param("id") String id);
+
+    @Transactional
+    @Modifying
+    @Query("delete from BlobModel b where b.id = :id and b.referenceCount <= 0")
+    int deleteIfUnreferenced(@Param("id") String id);
+}
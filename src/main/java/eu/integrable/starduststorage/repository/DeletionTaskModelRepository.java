@@ -0,0 +1,24 @@
+package eu.integrable.starduststorage.repository;
+
+import eu.integrable.starduststorage.model.DeletionTaskModel;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface DeletionTaskModelRepository extends JpaRepository<DeletionTaskModel, String> {
+
+    @Transactional
+    @Modifying
+    @Query("update DeletionTaskModel t set t.removedCount = t.removedCount + :count, " +
+            "t.modificationTime = current_timestamp where t.id = :id")
+    int increaseRemovedCount(@Param("id") String id, @Param("count") long count);
+
+    @Transactional
+    @Modifying
+    @Query("delete from DeletionTaskModel t where t.removedCount >= t.fileCount and t.modificationTime < :time")
+    int deleteFinishedBefore(@Param("time") LocalDateTime time);
+}
@@ -1,8 +1,75 @@
 package eu.integrable.starduststorage.repository;
 
+import eu.integrable.starduststorage.model.FileAccess;
+import eu.integrable.starduststorage.model.FileContent;
+import eu.integrable.starduststorage.model.FileIntegrity;
 import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.model.FileSummary;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.QueryHint;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 
 public interface FileModelRepository extends JpaRepository<FileModel, String> {
 
-}
\ No newline at end of file
+    long countByGroupId(String groupId);
+
+    // Group of the stored row, an empty string for none, locked until the transaction ends. Unsaved changes are not flushed first
+    @QueryHints(@QueryHint(name = org.hibernate.annotations.QueryHints.FLUSH_MODE, value = "COMMIT"))
+    @Query(value = "select coalesce(file_id, '') from db_file where id = :id for update", nativeQuery = true)
+    Optional<String> findGroupIdForUpdate(@Param("id") String id);
+
+    @Query("select distinct f.owner as owner, f.permission as permission from FileModel f where f.group.id = :groupId")
+    List<FileAccess> findDistinctAccessByGroupId(@Param("groupId") String groupId);
+
+    // Only the rows tombstoned by the task, a row without a tombstone keeps the group from being deleted
+    @Modifying
+    @Query(value = "delete from db_file where id in (select id from db_tombstone where task_id = :taskId)", nativeQuery = true)
+    int deleteTombstoned(@Param("taskId") String taskId);
+
+    @Query("select f.id as id, f.filename as filename, f.mediaType as mediaType, f.size as size, " +
+            "f.checksum as checksum, f.creationTime as creationTime from FileModel f " +
+            "where f.group.id = :groupId and (f.filename > :filename or (f.filename = :filename and f.id > :id)) " +
+            "order by f.filename, f.id")
+    List<FileSummary> findPageOrderedByFilename(@Param("groupId") String groupId,
+                                                @Param("filename") String filename,
+                                                @Param("id") String id,
+                                                Pageable pageable);
+
+    @Query("select f.id as id, f.filename as filename, f.mediaType as mediaType, f.size as size, " +
+            "f.checksum as checksum, f.creationTime as creationTime from FileModel f " +
+            "where f.group.id = :groupId and (f.creationTime > :creationTime or (f.creationTime = :creationTime and f.id > :id)) " +
+            "order by f.creationTime, f.id")
+    List<FileSummary> findPageOrderedByCreationTime(@Param("groupId") String groupId,
+                                                    @Param("creationTime") LocalDateTime creationTime,
+                                                    @Param("id") String id,
+                                                    Pageable pageable);
+
+    @Query("select f.id as id, f.filename as filename, f.mediaType as mediaType, f.size as size, f.storedSize as storedSize, " +
+            "f.encoding as encoding, f.blob as blob, f.owner as owner, f.permission as permission, " +
+            "f.modificationTime as modificationTime from FileModel f " +
+            "where f.group.id = :groupId and (f.filename > :filename or (f.filename = :filename and f.id > :id)) " +
+            "order by f.filename, f.id")
+    List<FileContent> findContentPageOrderedByFilename(@Param("groupId") String groupId,
+                                                       @Param("filename") String filename,
+                                                       @Param("id") String id,
+                                                       Pageable pageable);
+
+    @Query("select f.id as id, f.filename as filename, f.mediaType as mediaType, f.size as size, f.storedSize as storedSize, " +
+            "f.encoding as encoding, f.blob as blob, f.owner as owner, f.permission as permission, " +
+            "f.modificationTime as modificationTime from FileModel f " +
+            "where f.id in :ids")
+    List<FileContent> findContentByIdIn(@Param("ids") Collection<String> ids);
+
+    @Query("select f.id as id, f.size as size, f.storedSize as storedSize, f.encoding as encoding, " +
+            "f.checksum as checksum, f.blob as blob from FileModel f where f.id > :id order by f.id")
+    List<FileIntegrity> findIntegrityPage(@Param("id") String id, Pageable pageable);
+}
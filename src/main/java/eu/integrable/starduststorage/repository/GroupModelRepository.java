@@ -2,7 +2,30 @@ package eu.integrable.starduststorage.repository;
 
 import eu.integrable.starduststorage.model.GroupModel;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.QueryHint;
+import java.util.Optional;
 
 public interface GroupModelRepository extends JpaRepository<GroupModel, String> {
 
-}
\ No newline at end of file
+    @Transactional
+    @Modifying
+    @Query("update GroupModel g set g.size = g.size + :size " +
+            "where g.id = :id and (g.quota is null or g.size + :size <= g.quota)")
+    int increaseSizeWithinQuota(@Param("id") String id, @Param("size") long size);
+
+    @Transactional
+    @Modifying
+    @Query("update GroupModel g set g.size = g.size - :size where g.id = :id")
+    int decreaseSize(@Param("id") String id, @Param("size") long size);
+
+    // Id of the group when it still exists, locked until the transaction ends. Unsaved changes are not flushed first
+    @QueryHints(@QueryHint(name = org.hibernate.annotations.QueryHints.FLUSH_MODE, value = "COMMIT"))
+    @Query(value = "select id from db_group where id = :id for update", nativeQuery = true)
+    Optional<String> lockById(@Param("id") String id);
+}
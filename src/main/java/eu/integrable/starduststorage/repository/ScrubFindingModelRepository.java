@@ -0,0 +1,18 @@
+package eu.integrable.starduststorage.repository;
+
+import eu.integrable.starduststorage.model.ScrubFindingModel;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface ScrubFindingModelRepository extends JpaRepository<ScrubFindingModel, String> {
+
+    @Transactional
+    @Modifying
+    @Query("delete from ScrubFindingModel f where f.detectionTime < :time")
+    int deleteDetectedBefore(@Param("time") LocalDateTime time);
+}
@@ -0,0 +1,26 @@
+package eu.integrable.starduststorage.repository;
+
+import eu.integrable.starduststorage.model.ScrubStateModel;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface ScrubStateModelRepository extends JpaRepository<ScrubStateModel, String> {
+
+    // Claims or renews the lease on the state unless another instance holds it
+    @Transactional
+    @Modifying
+    @Query("update ScrubStateModel s set s.leaseOwner = :owner, s.leaseUntil = :until " +
+            "where s.id = :id and (s.leaseOwner = :owner or s.leaseUntil is null or s.leaseUntil < :now)")
+    int claim(@Param("id") String id, @Param("owner") String owner,
+              @Param("now") LocalDateTime now, @Param("until") LocalDateTime until);
+
+    @Transactional
+    @Modifying
+    @Query("update ScrubStateModel s set s.leaseOwner = null, s.leaseUntil = null where s.id = :id and s.leaseOwner = :owner")
+    int unclaim(@Param("id") String id, @Param("owner") String owner);
+}
@@ -0,0 +1,44 @@
+package eu.integrable.starduststorage.repository;
+
+import eu.integrable.starduststorage.model.TombstoneModel;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+public interface TombstoneModelRepository extends JpaRepository<TombstoneModel, String> {
+
+    @Query("select t from TombstoneModel t where t.id > :id and (t.leaseUntil is null or t.leaseUntil < :now) order by t.id")
+    List<TombstoneModel> findUnclaimedAfter(@Param("id") String id, @Param("now") LocalDateTime now, Pageable pageable);
+
+    List<TombstoneModel> findByLeaseOwner(String leaseOwner);
+
+    // Claims the tombstones no other instance holds a lease on
+    @Transactional
+    @Modifying
+    @Query("update TombstoneModel t set t.leaseOwner = :owner, t.leaseUntil = :until " +
+            "where t.id in :ids and (t.leaseUntil is null or t.leaseUntil < :now)")
+    int claim(@Param("ids") Collection<String> ids, @Param("owner") String owner,
+              @Param("now") LocalDateTime now, @Param("until") LocalDateTime until);
+
+    @Transactional
+    @Modifying
+    @Query("update TombstoneModel t set t.leaseOwner = null, t.leaseUntil = null where t.id in :ids and t.leaseOwner = :owner")
+    int unclaim(@Param("ids") Collection<String> ids, @Param("owner") String owner);
+
+    @Transactional
+    @Modifying
+    @Query("delete from TombstoneModel t where t.id in :ids and t.leaseOwner = :owner")
+    int deleteClaimed(@Param("ids") Collection<String> ids, @Param("owner") String owner);
+
+    @Modifying
+    @Query(value = "insert into db_tombstone (id, blob, task_id, creation_time) " +
+            "select id, blob, :taskId, current_timestamp from db_file where file_id = :groupId", nativeQuery = true)
+    int insertForGroup(@Param("groupId") String groupId, @Param("taskId") String taskId);
+}
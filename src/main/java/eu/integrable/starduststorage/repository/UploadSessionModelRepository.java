@@ -0,0 +1,12 @@
+package eu.integrable.starduststorage.repository;
+
+import eu.integrable.starduststorage.model.UploadSessionModel;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface UploadSessionModelRepository extends JpaRepository<UploadSessionModel, String> {
+
+    List<UploadSessionModel> findByCreationTimeBefore(LocalDateTime creationTime);
+}
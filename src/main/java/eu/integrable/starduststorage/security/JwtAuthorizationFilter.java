@@ -3,6 +3,12 @@ package eu.integrable.starduststorage.security;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.Claim;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import eu.integrable.starduststorage.property.CredentialsProperty;
+import eu.integrable.starduststorage.service.StorageMetrics;
+import eu.integrable.starduststorage.tracing.RequestTiming;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -15,15 +21,49 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 public class JwtAuthorizationFilter extends OncePerRequestFilter {
 
+    private static final GrantedAuthority ADMIN_AUTHORITY = new SimpleGrantedAuthority("ROLE_ADMIN");
+
     private JwtTokenService jwtTokenService;
 
-    public JwtAuthorizationFilter(JwtTokenService jwtTokenService) {
+    private StorageMetrics storageMetrics;
+
+    // Verified tokens, each entry expires together with its token
+    private Cache<String, CachedAuthentication> authenticationCache;
+
+    private long tokenCacheTtl;
+
+    public JwtAuthorizationFilter(JwtTokenService jwtTokenService, CredentialsProperty credentialsProperty, StorageMetrics storageMetrics) {
         this.jwtTokenService = jwtTokenService;
+        this.storageMetrics = storageMetrics;
+        this.tokenCacheTtl = credentialsProperty.getTokenCacheTtl().toMillis();
+        this.authenticationCache = Caffeine.newBuilder()
+                .maximumSize(credentialsProperty.getTokenCacheSize())
+                .expireAfter(new Expiry<String, CachedAuthentication>() {
+                    @Override
+                    public long expireAfterCreate(String token, CachedAuthentication cachedAuthentication, long currentTime) {
+                        long remaining = cachedAuthentication.expiresAt - System.currentTimeMillis();
+                        return TimeUnit.MILLISECONDS.toNanos(Math.max(remaining, 0));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String token, CachedAuthentication cachedAuthentication, long currentTime, long currentDuration) {
+                        return expireAfterCreate(token, cachedAuthentication, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String token, CachedAuthentication cachedAuthentication, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
     }
 
     @Override
@@ -53,12 +93,25 @@ public class JwtAuthorizationFilter extends OncePerRequestFilter {
         
         UsernamePasswordAuthenticationToken authentication = getAuthentication(token);
 
+        // Admins see the phase times of their sampled requests
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null && authentication != null && authentication.getAuthorities().contains(ADMIN_AUTHORITY)) {
+            timing.expose();
+        }
+
         SecurityContextHolder.getContext().setAuthentication(authentication);
         filterChain.doFilter(httpServletRequest, httpServletResponse);
     }
 
     private UsernamePasswordAuthenticationToken getAuthentication(String token) {
 
+        // Skip verification of tokens seen before, every request gets its own authentication
+        CachedAuthentication cachedAuthentication = authenticationCache.getIfPresent(token);
+        if (cachedAuthentication != null) {
+            return new UsernamePasswordAuthenticationToken(cachedAuthentication.user, null, cachedAuthentication.authorities);
+        }
+
+        long start = System.nanoTime();
         try {
             // Decode token
             DecodedJWT decodedJWT = jwtTokenService.getDecodedJwt(token);
@@ -84,14 +137,46 @@ public class JwtAuthorizationFilter extends OncePerRequestFilter {
             if (!claimIsWriter.isNull()) isWriter = claimIsWriter.asBoolean();
             if (isWriter == true) authorities.add(new SimpleGrantedAuthority("ROLE_WRITER"));
 
+            // Check if sent by another instance to evict cached metadata
+            Claim claimCacheEviction = decodedJWT.getClaim("cacheEviction");
+            if (!claimCacheEviction.isNull() && Boolean.TRUE.equals(claimCacheEviction.asBoolean())) {
+                authorities.add(new SimpleGrantedAuthority("ROLE_CACHE_EVICTION"));
+            }
+
             if (user != null) {
+
+                // Cache until the token expires, but not longer than the configured time
+                long expiresAt = System.currentTimeMillis() + tokenCacheTtl;
+                Date expiresAtClaim = decodedJWT.getExpiresAt();
+                if (expiresAtClaim != null) {
+                    expiresAt = Math.min(expiresAt, expiresAtClaim.getTime());
+                }
+                authenticationCache.put(token, new CachedAuthentication(user, authorities, expiresAt));
+
                 return new UsernamePasswordAuthenticationToken(user, null, authorities);
             }
 
         } catch (JWTVerificationException ex) {
             System.out.println("Can not verify JWT token");
+        } finally {
+            storageMetrics.record(StorageMetrics.Phase.JWT_VERIFY, start);
         }
 
         return null;
     }
+
+    private static class CachedAuthentication {
+
+        private final String user;
+
+        private final List<GrantedAuthority> authorities;
+
+        private final long expiresAt;
+
+        private CachedAuthentication(String user, List<GrantedAuthority> authorities, long expiresAt) {
+            this.user = user;
+            this.authorities = Collections.unmodifiableList(authorities);
+            this.expiresAt = expiresAt;
+        }
+    }
 }
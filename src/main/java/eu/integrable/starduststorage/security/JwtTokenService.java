@@ -9,21 +9,44 @@ import eu.integrable.starduststorage.property.CredentialsProperty;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Date;
+
 @Service
 public class JwtTokenService {
 
     @Autowired
     private CredentialsProperty credentialsProperty;
 
-    public DecodedJWT getDecodedJwt(String token) throws JWTVerificationException {
+    private JWTVerifier jwtVerifier;
+
+    private Algorithm algorithm;
+
+    @PostConstruct
+    public void init() {
 
         // Get secret
         String secret = credentialsProperty.getJwtSecret();
 
-        // Build JWT verifier
-        JWTVerifier jwtVerifier = JWT.require(Algorithm.HMAC256(secret.getBytes())).build();
+        // Build JWT verifier, it is immutable and shared by all requests
+        algorithm = Algorithm.HMAC256(secret.getBytes());
+        jwtVerifier = JWT.require(algorithm).build();
+    }
+
+    public DecodedJWT getDecodedJwt(String token) throws JWTVerificationException {
 
         // Return decoded token
         return jwtVerifier.verify(token);
     }
+
+    public String createCacheEvictionToken(String subject, Duration lifetime) {
+
+        // Token for cache evictions sent between instances sharing the secret, it grants nothing else
+        return JWT.create()
+                .withSubject(subject)
+                .withClaim("cacheEviction", true)
+                .withExpiresAt(new Date(System.currentTimeMillis() + lifetime.toMillis()))
+                .sign(algorithm);
+    }
 }
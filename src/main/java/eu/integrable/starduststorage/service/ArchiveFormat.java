@@ -0,0 +1,26 @@
+package eu.integrable.starduststorage.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public enum ArchiveFormat {
+
+    ZIP("zip", "application/zip"),
+    TAR("tar", "application/x-tar");
+
+    private final String extension;
+
+    private final String mediaType;
+
+    public static ArchiveFormat fromExtension(String extension) {
+
+        for (ArchiveFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
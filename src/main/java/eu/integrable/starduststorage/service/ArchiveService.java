@@ -0,0 +1,181 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.FileContent;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.FileModelRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams files as a ZIP or TAR archive while it is being produced. Files are read one
+ * after another and copied through a pooled buffer, groups are paged from the database,
+ * so memory does not depend on the size of the archive. Content of already compressed
+ * media types is stored in the ZIP without being deflated again.
+ */
+@Service
+public class ArchiveService {
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private FileModelRepository fileModelRepository;
+
+    @Autowired
+    private BlobService blobService;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private PermissionService permissionService;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    /**
+     * Iterates over the files of the group the caller may access, one page at a time.
+     */
+    public Iterator<FileContent> getGroupFiles(String groupId, Authentication authentication) {
+
+        return new Iterator<>() {
+
+            private final int pageSize = storageProperty.getPageSize();
+
+            private Iterator<FileContent> page = List.<FileContent>of().iterator();
+
+            private FileContent last;
+
+            private boolean exhausted;
+
+            private FileContent next;
+
+            @Override
+            public boolean hasNext() {
+
+                while (next == null) {
+                    if (!page.hasNext()) {
+                        if (exhausted) {
+                            return false;
+                        }
+                        List<FileContent> files = fileModelRepository.findContentPageOrderedByFilename(groupId,
+                                last != null ? last.getFilename() : "", last != null ? last.getId() : "",
+                                PageRequest.of(0, pageSize));
+                        exhausted = files.size() < pageSize;
+                        page = files.iterator();
+                        continue;
+                    }
+                    last = page.next();
+                    if (permissionService.isAccessPermitted(authentication, last)) {
+                        next = last;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public FileContent next() {
+
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                FileContent file = next;
+                next = null;
+                return file;
+            }
+        };
+    }
+
+    public void writeArchive(ArchiveFormat format, Iterator<FileContent> files, OutputStream outputStream) throws IOException {
+
+        if (format == ArchiveFormat.ZIP) {
+            writeZip(files, outputStream);
+        } else {
+            writeTar(files, outputStream);
+        }
+    }
+
+    private void writeZip(Iterator<FileContent> files, OutputStream outputStream) throws IOException {
+
+        ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+        EntryNames entryNames = new EntryNames();
+        while (files.hasNext()) {
+            FileContent file = files.next();
+
+            // Deflating compressed content costs time without saving space
+            zipOutputStream.setLevel(compressionService.isCompressed(file.getMediaType()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+
+            ZipEntry zipEntry = new ZipEntry(entryNames.get(file));
+            if (file.getModificationTime() != null) {
+                zipEntry.setTimeLocal(file.getModificationTime());
+            }
+            zipOutputStream.putNextEntry(zipEntry);
+            try (InputStream inputStream = blobService.loadContent(file).getInputStream()) {
+                fileService.copy(inputStream, zipOutputStream);
+            }
+            zipOutputStream.closeEntry();
+        }
+        zipOutputStream.finish();
+        zipOutputStream.flush();
+    }
+
+    private void writeTar(Iterator<FileContent> files, OutputStream outputStream) throws IOException {
+
+        TarOutputStream tarOutputStream = new TarOutputStream(outputStream);
+        EntryNames entryNames = new EntryNames();
+        while (files.hasNext()) {
+            FileContent file = files.next();
+
+            long modificationTime = file.getModificationTime() != null
+                    ? file.getModificationTime().atZone(ZoneId.systemDefault()).toEpochSecond() : 0;
+            tarOutputStream.putEntry(entryNames.get(file), file.getSize(), modificationTime);
+            try (InputStream inputStream = blobService.loadContent(file).getInputStream()) {
+                fileService.copy(inputStream, tarOutputStream);
+            }
+            tarOutputStream.closeEntry();
+        }
+        tarOutputStream.finish();
+    }
+
+    /**
+     * Turns file names into safe, unique relative entry names. Files sharing a name get
+     * their id as a prefix.
+     */
+    private static class EntryNames {
+
+        private final Set<String> used = new HashSet<>();
+
+        private String get(FileContent file) {
+
+            List<String> segments = new ArrayList<>();
+            for (String segment : file.getFilename().replace('\\', '/').split("/")) {
+                if (!segment.isEmpty() && !segment.equals(".") && !segment.equals("..")) {
+                    segments.add(segment);
+                }
+            }
+            String name = segments.isEmpty() ? file.getId() : String.join("/", segments);
+
+            if (!used.add(name)) {
+                name = file.getId() + "-" + name.replace('/', '_');
+                used.add(name);
+            }
+            return name;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes files as the parts of a multipart/mixed body. Small files a few positions ahead
+ * of the part being written are read in parallel, so the response is not stalled by one
+ * read after another, while the prefetch window keeps the memory per request bounded.
+ * Larger files are streamed when their turn comes.
+ */
+@Service
+public class BatchDownloadService {
+
+    public static final String CHECKSUM_HEADER = "X-Checksum-Sha256";
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private BlobService blobService;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private ExecutorService storageExecutor;
+
+    public void writeMultipart(List<FileModel> files, String boundary, OutputStream outputStream) throws IOException {
+
+        int window = storageProperty.getPrefetchWindow();
+        long prefetchMaxSize = storageProperty.getPrefetchMaxSize().toBytes();
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<byte[]>[] prefetched = new CompletableFuture[files.size()];
+        int scheduled = 0;
+
+        try {
+            for (int i = 0; i < files.size(); i++) {
+
+                // Keep the window ahead of the current part filled
+                for (; scheduled < files.size() && scheduled <= i + window; scheduled++) {
+                    FileModel file = files.get(scheduled);
+                    if (file.getSize() <= prefetchMaxSize) {
+                        prefetched[scheduled] = CompletableFuture.supplyAsync(() -> readFile(file), storageExecutor);
+                    }
+                }
+
+                FileModel file = files.get(i);
+                writePartHeaders(file, boundary, outputStream);
+                if (prefetched[i] != null) {
+                    outputStream.write(prefetched[i].join());
+                    prefetched[i] = null;
+                } else {
+                    try (InputStream inputStream = blobService.loadContent(file).getInputStream()) {
+                        fileService.copy(inputStream, outputStream);
+                    }
+                }
+                outputStream.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            throw ex;
+        } finally {
+            for (CompletableFuture<byte[]> future : prefetched) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        outputStream.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+    }
+
+    private void writePartHeaders(FileModel file, String boundary, OutputStream outputStream) throws IOException {
+
+        String headers = "--" + boundary + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + file.getMediaType() + "\r\n"
+                + HttpHeaders.CONTENT_LENGTH + ": " + file.getSize() + "\r\n"
+                + HttpHeaders.CONTENT_DISPOSITION + ": " + ContentDisposition.attachment()
+                        .filename(file.getFilename(), StandardCharsets.UTF_8).build() + "\r\n"
+                + "Content-ID: <" + file.getId() + ">\r\n"
+                + CHECKSUM_HEADER + ": " + file.getChecksum() + "\r\n"
+                + "\r\n";
+        outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private byte[] readFile(FileModel file) {
+
+        try (InputStream inputStream = blobService.loadContent(file).getInputStream()) {
+            return inputStream.readAllBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
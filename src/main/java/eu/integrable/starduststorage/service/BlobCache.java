@@ -0,0 +1,93 @@
+package eu.integrable.starduststorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import eu.integrable.starduststorage.property.StorageProperty;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Optional on-heap cache of small stored files keyed by their storage key. Entries are
+ * weighed by their length against storage.blob-cache-size, concurrent misses on the same
+ * key wait for a single read of the file, and entries are invalidated whenever the content
+ * under their key is written or removed. Statistics are published as the "blob" cache metrics.
+ */
+@Service
+public class BlobCache {
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, byte[]> cache;
+
+    private long maxFileSize;
+
+    @PostConstruct
+    public void init() {
+
+        if (!storageProperty.isBlobCacheEnabled()) {
+            return;
+        }
+
+        maxFileSize = storageProperty.getBlobCacheMaxFileSize().toBytes();
+        cache = Caffeine.newBuilder()
+                .maximumWeight(storageProperty.getBlobCacheSize().toBytes())
+                .<String, byte[]>weigher((key, content) -> content.length)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "blob");
+        Gauge.builder("cache.weight", cache, c -> c.policy().eviction()
+                        .map(eviction -> eviction.weightedSize().orElse(0))
+                        .orElse(0L))
+                .tag("cache", "blob")
+                .baseUnit("bytes")
+                .description("Bytes held by the cache")
+                .register(meterRegistry);
+    }
+
+    public Resource load(String storageKey, long size) throws IOException {
+
+        if (cache == null || size > maxFileSize) {
+            return fileService.loadFile(storageKey);
+        }
+
+        try {
+            return new ByteArrayResource(cache.get(storageKey, this::read));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    public void invalidate(String storageKey) {
+
+        if (cache != null) {
+            cache.invalidate(storageKey);
+        }
+    }
+
+    private byte[] read(String storageKey) {
+
+        try (InputStream inputStream = fileService.loadFile(storageKey).getInputStream()) {
+            return inputStream.readAllBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.BlobModel;
+import eu.integrable.starduststorage.model.FileContent;
+import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.BlobModelRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Stores file content either under the file id or, with storage.deduplication enabled,
+ * as content-addressed blobs shared by all files with the same checksum. Blob references
+ * are counted in db_blob and a blob is removed together with its last reference. Content
+ * may be stored compressed, a shared blob keeps the encoding of its first upload.
+ *
+ * Instances share db_blob, so referencing and releasing a blob lock its row and keep the
+ * lock while the blob file is moved into place or deleted. A new blob is a real insert,
+ * an instance losing the race for it references the winner's blob instead.
+ */
+@Service
+public class BlobService {
+
+    // Attempts to insert a new blob row that keeps conflicting with other instances
+    private static final int PUBLISH_ATTEMPTS = 3;
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private BlobModelRepository blobModelRepository;
+
+    @Autowired
+    private BlobCache blobCache;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    public StoredFile store(InputStream inputStream, String fileId, String expectedChecksum) throws IOException {
+
+        return store(inputStream, fileId, expectedChecksum, false);
+    }
+
+    public StoredFile store(InputStream inputStream, String fileId, String expectedChecksum, boolean compress) throws IOException {
+
+        if (!storageProperty.isDeduplication()) {
+            blobCache.invalidate(fileId);
+            StoredFile storedFile = fileService.saveFile(inputStream, fileId, compress);
+            if (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(storedFile.getChecksum())) {
+                fileService.deleteFile(fileId);
+                throw new ChecksumMismatchException(expectedChecksum, storedFile.getChecksum());
+            }
+            return storedFile;
+        }
+
+        // The client announced content that is already stored, verify it without writing
+        Optional<BlobModel> existing = expectedChecksum != null
+                ? blobModelRepository.findById(expectedChecksum.toLowerCase()) : Optional.empty();
+        if (existing.isPresent()) {
+            StoredFile digest = fileService.digest(inputStream);
+            if (!expectedChecksum.equalsIgnoreCase(digest.getChecksum())) {
+                throw new ChecksumMismatchException(expectedChecksum, digest.getChecksum());
+            }
+            // The referenced row may have been replaced since it was read, its encoding is the one that counts
+            String blob = digest.getChecksum();
+            Optional<BlobModel> blobModel = inTransaction(() -> reference(blob));
+            if (blobModel.isEmpty()) {
+                throw new IOException("Blob " + blob + " was removed during the upload");
+            }
+            return toStoredFile(blobModel.get(), digest.getSize());
+        }
+
+        // Write to a temporary file first, the blob name is only known at the end
+        String temporaryName = ".upload-" + UUID.randomUUID();
+        StoredFile storedFile = fileService.saveFile(inputStream, temporaryName, compress);
+        if (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(storedFile.getChecksum())) {
+            fileService.deleteFile(temporaryName);
+            throw new ChecksumMismatchException(expectedChecksum, storedFile.getChecksum());
+        }
+
+        return publish(temporaryName, storedFile);
+    }
+
+    /**
+     * Stores a local file whose checksum and size are known, the file is taken over instead
+     * of copied. Only compressed storage reads the file, to encode it.
+     */
+    public StoredFile store(Path file, StoredFile content, String fileId, boolean compress) throws IOException {
+
+        if (compress) {
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                return store(inputStream, fileId, content.getChecksum(), true);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        if (!storageProperty.isDeduplication()) {
+            blobCache.invalidate(fileId);
+            fileService.putFile(fileId, file);
+            return content;
+        }
+
+        String temporaryName = ".upload-" + UUID.randomUUID();
+        fileService.putFile(temporaryName, file);
+        return publish(temporaryName, content);
+    }
+
+    /**
+     * Stored bytes of the file, compressed when the file has an encoding.
+     */
+    public Resource load(FileModel fileModel) throws IOException {
+
+        return load(fileModel.getStorageKey(), fileModel.getStoredLength());
+    }
+
+    /**
+     * Original content of the file, decompressed while it is read.
+     */
+    public Resource loadContent(FileModel fileModel) throws IOException {
+
+        return decode(load(fileModel), fileModel.getSize(), fileModel.getEncoding());
+    }
+
+    public Resource loadContent(FileContent file) throws IOException {
+
+        return decode(load(file.getStorageKey(), file.getStoredLength()), file.getSize(), file.getEncoding());
+    }
+
+    public Resource load(String storageKey, long size) throws IOException {
+
+        // Opening the stored file, or reading it on a blob cache miss
+        long start = System.nanoTime();
+        try {
+            return blobCache.load(storageKey, size);
+        } finally {
+            storageMetrics.record(StorageMetrics.Phase.DISK_READ, start);
+        }
+    }
+
+    public void release(FileModel fileModel) throws IOException {
+
+        release(fileModel.getId(), fileModel.getBlob());
+    }
+
+    public void release(String fileId, String blob) throws IOException {
+
+        if (blob == null) {
+            blobCache.invalidate(fileId);
+            fileService.deleteFile(fileId);
+            return;
+        }
+
+        // The file goes while the row is locked, a concurrent upload of the same content waits and stores it anew
+        inTransaction(() -> {
+            if (blobModelRepository.findByIdForUpdate(blob).isEmpty()) {
+                return null;
+            }
+            blobModelRepository.decrementReferences(blob);
+            if (blobModelRepository.deleteIfUnreferenced(blob) > 0) {
+                blobCache.invalidate(blob);
+                try {
+                    fileService.deleteFile(blob);
+                } catch (NoSuchFileException ex) {
+                    // Already gone, the row still has to go with it
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Turns the temporary file into the blob named by its checksum, or references the
+     * existing blob and drops the temporary file.
+     */
+    private StoredFile publish(String temporaryName, StoredFile storedFile) throws IOException {
+
+        String blob = storedFile.getChecksum();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Optional<BlobModel> blobModel = inTransaction(() -> {
+                    Optional<BlobModel> existing = reference(blob);
+                    if (existing.isEmpty()) {
+
+                        // Inserted before the file is moved, the move rolls the row back when it fails
+                        blobModelRepository.saveAndFlush(BlobModel.builder()
+                                .id(blob)
+                                .size(storedFile.getSize())
+                                .storedSize(storedFile.getStoredSize())
+                                .encoding(storedFile.getEncoding())
+                                .referenceCount(1L)
+                                .created(true)
+                                .build());
+                        blobCache.invalidate(blob);
+                        fileService.moveFile(temporaryName, blob);
+                    }
+                    return existing;
+                });
+
+                // The upload is only dropped once the blob it now references is known, with its own size and encoding
+                if (blobModel.isPresent()) {
+                    fileService.deleteFile(temporaryName);
+                    return toStoredFile(blobModel.get(), storedFile.getSize());
+                }
+                return new StoredFile(blob, storedFile.getSize(), blob, storedFile.getStoredSize(), storedFile.getEncoding());
+            } catch (DataIntegrityViolationException | ConcurrencyFailureException ex) {
+
+                // Inserted concurrently by another instance, reference its blob on the next attempt
+                if (attempt == PUBLISH_ATTEMPTS) {
+                    fileService.deleteFile(temporaryName);
+                    throw new IOException("Blob " + blob + " could not be stored", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a reference to the blob when it exists, its row stays locked until the
+     * surrounding transaction ends.
+     */
+    private Optional<BlobModel> reference(String blob) {
+
+        Optional<BlobModel> blobModel = blobModelRepository.findByIdForUpdate(blob);
+        if (blobModel.isPresent()) {
+            blobModelRepository.incrementReferences(blob);
+        }
+        return blobModel;
+    }
+
+    private Resource decode(Resource resource, long size, String encoding) throws IOException {
+
+        if (encoding == null) {
+            return resource;
+        }
+        if (!CompressionService.GZIP.equals(encoding)) {
+            throw new IOException("Unsupported encoding " + encoding);
+        }
+        return new GzipResource(resource, size, storageProperty.getBufferSize());
+    }
+
+    private static StoredFile toStoredFile(BlobModel blobModel, long size) {
+
+        String blob = blobModel.getId();
+        long storedSize = blobModel.getStoredSize() != null ? blobModel.getStoredSize() : size;
+        return new StoredFile(blob, size, blob, storedSize, blobModel.getEncoding());
+    }
+
+    private <T> T inTransaction(BlobWork<T> work) throws IOException {
+
+        try {
+            return transactionTemplate.execute(status -> {
+                try {
+                    return work.run();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    // Database and file work done in one transaction, an exception rolls the database work back
+    private interface BlobWork<T> {
+        T run() throws IOException;
+    }
+}
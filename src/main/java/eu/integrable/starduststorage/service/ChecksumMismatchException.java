@@ -0,0 +1,13 @@
+package eu.integrable.starduststorage.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when uploaded content does not match the checksum announced by the client.
+ */
+public class ChecksumMismatchException extends IOException {
+
+    public ChecksumMismatchException(String expected, String actual) {
+        super("Checksum mismatch, expected " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,108 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which files are compressed at rest and which clients can take the stored
+ * bytes as they are. Files are compressed with gzip, the encoding every HTTP client
+ * understands, so a download accepting it is served straight from disk.
+ */
+@Service
+public class CompressionService {
+
+    public static final String GZIP = "gzip";
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    private List<MediaType> compressedMediaTypes;
+
+    private List<MediaType> compressibleMediaTypes;
+
+    @PostConstruct
+    public void init() {
+
+        compressedMediaTypes = MediaType.parseMediaTypes(storageProperty.getCompressedMediaTypes());
+        compressibleMediaTypes = MediaType.parseMediaTypes(storageProperty.getCompressionMediaTypes());
+    }
+
+    /**
+     * A group with compression switched on compresses all files that are not compressed
+     * already, otherwise storage.compression compresses files of the listed media types.
+     */
+    public boolean shouldCompress(GroupModel group, String mediaType, long size) {
+
+        if (size < storageProperty.getCompressionMinSize().toBytes()) {
+            return false;
+        }
+
+        if (group != null && group.getCompression() != null) {
+            return group.getCompression() && !isCompressed(mediaType);
+        }
+
+        return storageProperty.isCompression() && matches(compressibleMediaTypes, mediaType);
+    }
+
+    public boolean isCompressed(String mediaType) {
+
+        return matches(compressedMediaTypes, mediaType);
+    }
+
+    public boolean acceptsGzip(String acceptEncoding) {
+
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        // Accept-Encoding: gzip;q=1.0, identity; q=0.5, *;q=0
+        boolean accepted = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            if (!name.equals(GZIP) && !name.equals("x-gzip") && !name.equals("*")) {
+                continue;
+            }
+            boolean rejected = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        rejected = Double.parseDouble(parameter.substring(2)) <= 0;
+                    } catch (NumberFormatException ex) {
+                        rejected = true;
+                    }
+                }
+            }
+            // An explicit gzip entry wins over the wildcard
+            if (!name.equals("*")) {
+                return !rejected;
+            }
+            accepted = !rejected;
+        }
+        return accepted;
+    }
+
+    private static boolean matches(List<MediaType> mediaTypes, String mediaType) {
+
+        try {
+            MediaType type = MediaType.parseMediaType(mediaType);
+            for (MediaType candidate : mediaTypes) {
+                if (candidate.includes(type)) {
+                    return true;
+                }
+            }
+        } catch (InvalidMediaTypeException ex) {
+            return false;
+        }
+        return false;
+    }
+}
@@ -1,66 +1,307 @@
 package eu.integrable.starduststorage.service;
 
 import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.storage.BlobOutputStream;
+import eu.integrable.starduststorage.storage.BlobStore;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.FileInputStream;
+import javax.annotation.PostConstruct;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Writes and reads stored files through the configured blob store. Content is hashed,
+ * counted and optionally compressed in the single pass that writes it.
+ */
 @Service
 public class FileService {
 
     @Autowired
     private StorageProperty storageProperty;
 
-    public void saveFile(MultipartFile file, String filename) throws IOException {
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
 
-        final Path fileStorageLocation = Paths.get(storageProperty.getDirectory()).toAbsolutePath().normalize();
-        Path filePath = fileStorageLocation.resolve(filename);
-        Files.copy(file.getInputStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
+    private BufferPool bufferPool;
+
+    @PostConstruct
+    public void init() {
+        bufferPool = new BufferPool(storageProperty.getBufferSize(), storageProperty.getBufferPoolSize());
     }
 
-    public Resource loadFile(String filename) throws IOException {
+    public StoredFile saveFile(MultipartFile file, String filename) throws IOException {
+
+        try (InputStream inputStream = file.getInputStream()) {
+            return saveFile(inputStream, filename);
+        }
+    }
+
+    public StoredFile saveFile(InputStream inputStream, String filename) throws IOException {
 
-        final Path fileStorageLocation = Paths.get(storageProperty.getDirectory()).toAbsolutePath().normalize();
-        Path filePath = fileStorageLocation.resolve(filename);
-        Resource resource = new UrlResource(filePath.toUri());
+        return saveFile(inputStream, filename, false);
+    }
+
+    public StoredFile saveFile(InputStream inputStream, String filename, boolean compress) throws IOException {
+
+        // A failed write is not committed, earlier content of the key stays
+        return write(inputStream, blobStore.create(filename), compress);
+    }
+
+    /**
+     * Writes the stream to the channel from position on, hashing it and also feeding it to
+     * the given digest unless that is null. Nothing beyond limit bytes is written, a longer
+     * stream is read one byte past the limit and reported with a size above it.
+     */
+    public StoredFile writeRegion(InputStream inputStream, FileChannel channel, long position, long limit,
+                                  MessageDigest digest) throws IOException {
 
-        if (resource.exists()) {
-            return resource;
-        } else {
-            throw new IOException("Resource does not exist in physical form");
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        long size = 0;
+        long digestNanos = 0;
+        long writeNanos = 0;
+        byte[] buffer = bufferPool.acquire();
+        try {
+            int read;
+            while ((read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, limit - size + 1))) != -1) {
+                if (size + read > limit) {
+                    size += read;
+                    break;
+                }
+
+                long start = System.nanoTime();
+                messageDigest.update(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                long digested = System.nanoTime();
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer, position + size + byteBuffer.position());
+                }
+                writeNanos += System.nanoTime() - digested;
+                digestNanos += digested - start;
+                size += read;
+            }
+        } finally {
+            bufferPool.release(buffer);
         }
+
+        storageMetrics.recordChecksum(size, digestNanos);
+        storageMetrics.recordNanos(StorageMetrics.Phase.DISK_WRITE, writeNanos);
+        return new StoredFile(Hex.encodeHexString(messageDigest.digest()), size, null);
+    }
+
+    /**
+     * Feeds length bytes of the channel from position on to the digest.
+     */
+    public void digestRegion(FileChannel channel, long position, long length, MessageDigest messageDigest) throws IOException {
+
+        long end = position + length;
+        byte[] buffer = bufferPool.acquire();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (position < end) {
+                byteBuffer.clear().limit((int) Math.min(buffer.length, end - position));
+                int read = channel.read(byteBuffer, position);
+                if (read == -1) {
+                    throw new EOFException("Region ends at " + position + " instead of " + end);
+                }
+                messageDigest.update(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    public StoredFile digest(InputStream inputStream) throws IOException {
+
+        // Hash and count the stream without storing it
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        long size = 0;
+        long digestNanos = 0;
+        byte[] buffer = bufferPool.acquire();
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                long start = System.nanoTime();
+                messageDigest.update(buffer, 0, read);
+                digestNanos += System.nanoTime() - start;
+                size += read;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+
+        storageMetrics.recordChecksum(size, digestNanos);
+        return new StoredFile(Hex.encodeHexString(messageDigest.digest()), size, null);
+    }
+
+    public long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+
+        long size = 0;
+        byte[] buffer = bufferPool.acquire();
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+
+        return size;
+    }
+
+    public void putFile(String filename, Path file) throws IOException {
+
+        blobStore.putFile(filename, file);
+    }
+
+    public void moveFile(String source, String target) throws IOException {
+
+        blobStore.move(source, target);
+    }
+
+    public Resource loadFile(String filename) throws IOException {
+
+        return blobStore.getResource(filename);
     }
 
     public void deleteFile(String filename) throws IOException {
 
-        final Path fileStorageLocation = Paths.get(storageProperty.getDirectory()).toAbsolutePath().normalize();
-        Path filePath = fileStorageLocation.resolve(filename);
-        Files.delete(filePath);
+        blobStore.delete(filename);
     }
 
     public String calculateChecksum(String filename) throws IOException {
 
-        final Path fileStorageLocation = Paths.get(storageProperty.getDirectory()).toAbsolutePath().normalize();
-        Path filePath = fileStorageLocation.resolve(filename);
-        String checksum = DigestUtils.sha256Hex(new FileInputStream(filePath.toFile()));
-        return checksum;
+        try (InputStream inputStream = blobStore.get(filename)) {
+            return DigestUtils.sha256Hex(inputStream);
+        }
+    }
+
+    /**
+     * Checksum and length of the content stored under filename, decoded when it has an encoding.
+     * The stored bytes are read at the pace of the throttle and nothing is recorded in the metrics.
+     */
+    public StoredFile calculateChecksum(String filename, String encoding, Throttle throttle) throws IOException {
+
+        if (encoding != null && !CompressionService.GZIP.equals(encoding)) {
+            throw new IOException("Unsupported encoding " + encoding);
+        }
+
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        long size = 0;
+        byte[] buffer = bufferPool.acquire();
+        InputStream stored = new ThrottledInputStream(blobStore.get(filename), throttle);
+        try (InputStream inputStream = encoding != null ? new GZIPInputStream(stored, buffer.length) : stored) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            stored.close();
+            bufferPool.release(buffer);
+        }
+
+        return new StoredFile(Hex.encodeHexString(messageDigest.digest()), size, null);
     }
 
     public Long calculateSize(String filename) throws IOException {
 
-        final Path fileStorageLocation = Paths.get(storageProperty.getDirectory()).toAbsolutePath().normalize();
-        Path filePath = fileStorageLocation.resolve(filename);
-        long size = Files.size(filePath);
-        return size;
+        return blobStore.size(filename);
+    }
+
+    private StoredFile write(InputStream inputStream, BlobOutputStream target, boolean compress) throws IOException {
+
+        // Hash, count and write the stream in a single pass, the checksum and size are of the uncompressed content.
+        // Hashing and writing are timed apart from reading the stream, which waits for the client
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        long size = 0;
+        long digestNanos = 0;
+        long writeNanos = 0;
+        CountingOutputStream countingOutputStream = new CountingOutputStream(target);
+        byte[] buffer = bufferPool.acquire();
+        try (target; OutputStream outputStream = compress ? openGzip(countingOutputStream) : countingOutputStream) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                long start = System.nanoTime();
+                messageDigest.update(buffer, 0, read);
+                long digested = System.nanoTime();
+                outputStream.write(buffer, 0, read);
+                writeNanos += System.nanoTime() - digested;
+                digestNanos += digested - start;
+                size += read;
+            }
+
+            // Committing flushes and may sync, it is part of the write. Only complete content is committed
+            long start = System.nanoTime();
+            if (outputStream instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) outputStream).finish();
+            }
+            target.commit();
+            writeNanos += System.nanoTime() - start;
+        } finally {
+            bufferPool.release(buffer);
+        }
+
+        storageMetrics.recordChecksum(size, digestNanos);
+        storageMetrics.recordNanos(StorageMetrics.Phase.DISK_WRITE, writeNanos);
+
+        String checksum = Hex.encodeHexString(messageDigest.digest());
+        if (compress) {
+            return new StoredFile(checksum, size, null, countingOutputStream.count, CompressionService.GZIP);
+        }
+        return new StoredFile(checksum, size, null);
+    }
+
+    private OutputStream openGzip(OutputStream outputStream) throws IOException {
+
+        int level = storageProperty.getCompressionLevel();
+        return new GZIPOutputStream(outputStream, storageProperty.getBufferSize()) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            out.write(value);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
     }
 }
@@ -0,0 +1,185 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.DeletionTaskModel;
+import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.model.TombstoneModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.DeletionTaskModelRepository;
+import eu.integrable.starduststorage.repository.FileModelRepository;
+import eu.integrable.starduststorage.repository.GroupModelRepository;
+import eu.integrable.starduststorage.repository.TombstoneModelRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes groups in two steps. The file rows of the group are replaced by tombstones in a
+ * single transaction, so the group disappears at once. The reaper then releases the stored
+ * content of the tombstones in the background, in parallel and throttled, and records the
+ * progress in the deletion task of the group. Instances claim a batch of tombstones with a
+ * lease before releasing it, so the content of a tombstone is released by one of them only.
+ */
+@Service
+public class GroupDeletionService {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupDeletionService.class);
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private BlobService blobService;
+
+    @Autowired
+    private GroupModelRepository groupModelRepository;
+
+    @Autowired
+    private FileModelRepository fileModelRepository;
+
+    @Autowired
+    private TombstoneModelRepository tombstoneModelRepository;
+
+    @Autowired
+    private DeletionTaskModelRepository deletionTaskModelRepository;
+
+    @Autowired
+    private MetadataCacheService metadataCacheService;
+
+    private ExecutorService executorService;
+
+    private Throttle throttle;
+
+    @PostConstruct
+    public void init() {
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executorService = Executors.newFixedThreadPool(storageProperty.getReaperThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "reaper-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        throttle = new Throttle(storageProperty.getReaperRate());
+    }
+
+    @PreDestroy
+    public void destroy() {
+
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Replaces the files of the group by tombstones and removes the group, null when the group
+     * was deleted by a concurrent request. The group row is locked first, files are added to or
+     * moved into a group only while holding the same lock, so none of them can slip in between
+     * tombstoning the files and removing them.
+     */
+    @Transactional
+    public DeletionTaskModel deleteGroup(GroupModel groupModel, String owner) {
+
+        if (groupModelRepository.lockById(groupModel.getId()).isEmpty()) {
+            return null;
+        }
+
+        String taskId = UUID.randomUUID().toString();
+
+        // Tombstone and remove all file rows of the group at once
+        long fileCount = tombstoneModelRepository.insertForGroup(groupModel.getId(), taskId);
+        fileModelRepository.deleteTombstoned(taskId);
+        groupModelRepository.delete(groupModel);
+        metadataCacheService.groupChanged(groupModel.getId());
+        metadataCacheService.allFilesChanged();
+
+        return deletionTaskModelRepository.save(DeletionTaskModel.builder()
+                .id(taskId)
+                .groupId(groupModel.getId())
+                .owner(owner)
+                .fileCount(fileCount)
+                .build());
+    }
+
+    @Scheduled(fixedDelayString = "${storage.reaper-interval:5000}")
+    public void reap() {
+
+        // Walk the tombstones once per run, failed ones are retried in the next run
+        String lastId = "";
+        List<TombstoneModel> candidates;
+        while (!(candidates = tombstoneModelRepository.findUnclaimedAfter(
+                lastId, LocalDateTime.now(), PageRequest.of(0, storageProperty.getReaperBatchSize()))).isEmpty()) {
+
+            lastId = candidates.get(candidates.size() - 1).getId();
+
+            // Only the tombstones this run won are released, the others belong to another instance
+            String owner = UUID.randomUUID().toString();
+            LocalDateTime now = LocalDateTime.now();
+            List<String> candidateIds = new ArrayList<>(candidates.size());
+            candidates.forEach(tombstone -> candidateIds.add(tombstone.getId()));
+            if (tombstoneModelRepository.claim(candidateIds, owner, now, now.plus(storageProperty.getReaperLease())) == 0) {
+                continue;
+            }
+            List<TombstoneModel> tombstones = tombstoneModelRepository.findByLeaseOwner(owner);
+
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>(tombstones.size());
+            for (TombstoneModel tombstone : tombstones) {
+                futures.add(CompletableFuture.supplyAsync(() -> release(tombstone), executorService));
+            }
+
+            List<String> failed = new ArrayList<>();
+            Map<String, List<String>> removedByTask = new HashMap<>();
+            for (int i = 0; i < tombstones.size(); i++) {
+                TombstoneModel tombstone = tombstones.get(i);
+                if (futures.get(i).join()) {
+                    removedByTask.computeIfAbsent(tombstone.getTaskId(), taskId -> new ArrayList<>()).add(tombstone.getId());
+                } else {
+                    failed.add(tombstone.getId());
+                }
+            }
+
+            // Counted by the tombstones still held, a lease that ran out is not counted twice
+            removedByTask.forEach((taskId, removed) -> deletionTaskModelRepository.increaseRemovedCount(
+                    taskId, (long) tombstoneModelRepository.deleteClaimed(removed, owner)));
+            if (!failed.isEmpty()) {
+                tombstoneModelRepository.unclaim(failed, owner);
+            }
+        }
+
+        deletionTaskModelRepository.deleteFinishedBefore(
+                LocalDateTime.now().minus(storageProperty.getDeletionTaskRetention()));
+    }
+
+    private boolean release(TombstoneModel tombstone) {
+
+        try {
+            throttle.acquire(1);
+            blobService.release(tombstone.getId(), tombstone.getBlob());
+            return true;
+        } catch (NoSuchFileException ex) {
+            // Already removed by an earlier run
+            return true;
+        } catch (IOException ex) {
+            log.error("Can not remove file " + tombstone.getId(), ex);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package eu.integrable.starduststorage.service;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Content of a file stored with gzip, decompressed while it is read. The length is the
+ * length of the original content, so ranges and Content-Length refer to the decompressed bytes.
+ */
+public class GzipResource extends AbstractResource {
+
+    private final Resource resource;
+
+    private final long size;
+
+    private final int bufferSize;
+
+    public GzipResource(Resource resource, long size, int bufferSize) {
+        this.resource = resource;
+        this.size = size;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public boolean exists() {
+        return resource.exists();
+    }
+
+    @Override
+    public long contentLength() {
+        return size;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new GZIPInputStream(resource.getInputStream(), bufferSize);
+    }
+
+    @Override
+    public String getDescription() {
+        return "gzip [" + resource.getDescription() + "]";
+    }
+}
@@ -0,0 +1,387 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.FileIntegrity;
+import eu.integrable.starduststorage.model.ScrubFindingModel;
+import eu.integrable.starduststorage.model.ScrubProblem;
+import eu.integrable.starduststorage.model.ScrubReport;
+import eu.integrable.starduststorage.model.ScrubStateModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.FileModelRepository;
+import eu.integrable.starduststorage.repository.ScrubFindingModelRepository;
+import eu.integrable.starduststorage.repository.ScrubStateModelRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the stored content of all files against their recorded size and checksum, to
+ * find missing, truncated or rotten content before it is downloaded. A pass walks the files
+ * in id order in batches verified in parallel, reading at most storage.scrub-bandwidth bytes
+ * per second, and checkpoints the last verified id after every batch so a restarted instance
+ * resumes the pass. Failed files are kept as findings and counted in the metrics. One
+ * instance at a time runs the pass, it holds a lease on the checkpoint row and renews it
+ * at every checkpoint, another instance resumes the pass once the lease ends.
+ */
+@Service
+public class IntegrityScrubService {
+
+    private static final Logger log = LoggerFactory.getLogger(IntegrityScrubService.class);
+
+    private static final String STATE_ID = "scrub";
+
+    // Owner of the lease on the scrub state held by this instance
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private FileModelRepository fileModelRepository;
+
+    @Autowired
+    private ScrubStateModelRepository scrubStateModelRepository;
+
+    @Autowired
+    private ScrubFindingModelRepository scrubFindingModelRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService executorService;
+
+    private Throttle throttle;
+
+    private Counter verifiedCounter;
+
+    private final Map<ScrubProblem, Counter> problemCounters = new EnumMap<>(ScrubProblem.class);
+
+    private Counter bytesCounter;
+
+    private volatile boolean running;
+
+    private volatile boolean stopping;
+
+    @PostConstruct
+    public void init() {
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executorService = Executors.newFixedThreadPool(storageProperty.getScrubThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "scrub-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        throttle = new Throttle(storageProperty.getScrubBandwidth().toBytes());
+
+        verifiedCounter = Counter.builder("storage.scrub.files")
+                .tag("result", "verified")
+                .description("Files checked by the integrity scrub")
+                .register(meterRegistry);
+        for (ScrubProblem problem : ScrubProblem.values()) {
+            problemCounters.put(problem, Counter.builder("storage.scrub.files")
+                    .tag("result", problem.name().toLowerCase(Locale.ROOT))
+                    .description("Files checked by the integrity scrub")
+                    .register(meterRegistry));
+        }
+        bytesCounter = Counter.builder("storage.scrub.bytes")
+                .baseUnit("bytes")
+                .description("Stored bytes read by the integrity scrub")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+
+        stopping = true;
+        executorService.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${storage.scrub-check-interval:60000}")
+    public void scheduleScrub() {
+
+        if (!storageProperty.isScrubEnabled() || running) {
+            return;
+        }
+
+        // Resume an interrupted pass or start the next one when it is due
+        Optional<ScrubStateModel> state = scrubStateModelRepository.findById(STATE_ID);
+        if (state.isEmpty() || isDue(state.get())) {
+            startScrub(false);
+        }
+    }
+
+    /**
+     * Runs the scrub in the background, a new pass restarts from the first file. Returns
+     * false while this or another instance runs it.
+     */
+    public synchronized boolean startScrub(boolean newPass) {
+
+        if (running || !claim()) {
+            return false;
+        }
+
+        running = true;
+        Thread thread = new Thread(() -> scrub(newPass), "integrity-scrub");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public ScrubReport getReport() {
+
+        List<ScrubFindingModel> findings = scrubFindingModelRepository.findAll(
+                PageRequest.of(0, storageProperty.getMaxPageSize(), Sort.by("id"))).getContent();
+
+        // Running on any instance while the lease lasts
+        ScrubStateModel state = scrubStateModelRepository.findById(STATE_ID).orElse(null);
+        boolean active = running || (state != null && state.getLeaseUntil() != null && state.getLeaseUntil().isAfter(LocalDateTime.now()));
+        return new ScrubReport(active, state, findings);
+    }
+
+    private void scrub(boolean newPass) {
+
+        try {
+            ScrubStateModel state = scrubStateModelRepository.findById(STATE_ID).orElseThrow();
+
+            // Another instance may have finished the pass before this one took over
+            if (!newPass && !isDue(state)) {
+                return;
+            }
+
+            if (state.getPassEndTime() != null || newPass) {
+                state = scrubStateModelRepository.save(ScrubStateModel.builder()
+                        .id(STATE_ID)
+                        .lastFileId("")
+                        .passStartTime(LocalDateTime.now())
+                        .leaseOwner(state.getLeaseOwner())
+                        .leaseUntil(state.getLeaseUntil())
+                        .build());
+                log.info("Integrity scrub pass started");
+            } else if (state.getLastFileId().isEmpty()) {
+                log.info("Integrity scrub pass started");
+            } else {
+                log.info("Integrity scrub pass resumed after file " + state.getLastFileId());
+            }
+
+            while (!stopping) {
+                List<FileIntegrity> files = fileModelRepository.findIntegrityPage(
+                        state.getLastFileId(), PageRequest.of(0, storageProperty.getScrubBatchSize()));
+                if (files.isEmpty()) {
+                    finishPass(state);
+                    return;
+                }
+                if (!verifyBatch(state, files)) {
+                    return;
+                }
+            }
+        } catch (RuntimeException ex) {
+            log.error("Integrity scrub failed, it is resumed by the next run", ex);
+        } finally {
+            try {
+                scrubStateModelRepository.unclaim(STATE_ID, instanceId);
+            } catch (RuntimeException ex) {
+                log.warn("Can not release the integrity scrub lease, it ends by itself", ex);
+            } finally {
+                running = false;
+            }
+        }
+    }
+
+    private boolean verifyBatch(ScrubStateModel state, List<FileIntegrity> files) {
+
+        List<CompletableFuture<Result>> futures = new ArrayList<>(files.size());
+        for (FileIntegrity file : files) {
+            futures.add(CompletableFuture.supplyAsync(() -> verify(file), executorService));
+        }
+
+        List<String> verified = new ArrayList<>();
+        List<ScrubFindingModel> findings = new ArrayList<>();
+        for (CompletableFuture<Result> future : futures) {
+            Result result = future.join();
+
+            // Interrupted by a shutdown, the batch is verified again after the restart
+            if (result == null) {
+                return false;
+            }
+
+            state.setCheckedCount(state.getCheckedCount() + 1);
+            state.setCheckedBytes(state.getCheckedBytes() + result.bytes);
+            bytesCounter.increment(result.bytes);
+            if (result.problem == null) {
+                verified.add(result.file.getId());
+                verifiedCounter.increment();
+                continue;
+            }
+
+            problemCounters.get(result.problem).increment();
+            if (result.problem == ScrubProblem.MISSING) {
+                state.setMissingCount(state.getMissingCount() + 1);
+            } else {
+                state.setCorruptCount(state.getCorruptCount() + 1);
+            }
+            log.warn("Integrity scrub found " + result.problem + " content of file " + result.file.getId() + ": " + result.detail);
+            findings.add(ScrubFindingModel.builder()
+                    .id(result.file.getId())
+                    .storageKey(result.file.getStorageKey())
+                    .problem(result.problem)
+                    .detail(result.detail)
+                    .detectionTime(LocalDateTime.now())
+                    .build());
+        }
+
+        // Checkpoint, findings of files verified again are resolved
+        if (!renew(state)) {
+            return false;
+        }
+        scrubFindingModelRepository.deleteAllByIdInBatch(verified);
+        scrubFindingModelRepository.saveAll(findings);
+        state.setLastFileId(files.get(files.size() - 1).getId());
+        scrubStateModelRepository.save(state);
+        return true;
+    }
+
+    private void finishPass(ScrubStateModel state) {
+
+        // Findings not seen again belong to removed files
+        if (!renew(state)) {
+            return;
+        }
+        scrubFindingModelRepository.deleteDetectedBefore(state.getPassStartTime());
+        state.setPassEndTime(LocalDateTime.now());
+        scrubStateModelRepository.save(state);
+        log.info("Integrity scrub pass finished, checked " + state.getCheckedCount() + " files, "
+                + state.getMissingCount() + " missing, " + state.getCorruptCount() + " corrupt");
+    }
+
+    private boolean isDue(ScrubStateModel state) {
+
+        return state.getPassEndTime() == null
+                || !state.getPassEndTime().plus(storageProperty.getScrubPassInterval()).isAfter(LocalDateTime.now());
+    }
+
+    /**
+     * Takes the lease on the scrub state, creating the state for the first pass.
+     */
+    private boolean claim() {
+
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime until = now.plus(storageProperty.getScrubLease());
+        if (scrubStateModelRepository.claim(STATE_ID, instanceId, now, until) > 0) {
+            return true;
+        }
+        if (scrubStateModelRepository.existsById(STATE_ID)) {
+            return false;
+        }
+
+        // Instances starting the first pass together insert the same row, one of them wins
+        try {
+            scrubStateModelRepository.saveAndFlush(ScrubStateModel.builder()
+                    .id(STATE_ID)
+                    .lastFileId("")
+                    .passStartTime(now)
+                    .leaseOwner(instanceId)
+                    .leaseUntil(until)
+                    .build());
+            return true;
+        } catch (DataIntegrityViolationException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Extends the lease before a checkpoint is written, an instance that lost it stops.
+     */
+    private boolean renew(ScrubStateModel state) {
+
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime until = now.plus(storageProperty.getScrubLease());
+        if (scrubStateModelRepository.claim(STATE_ID, instanceId, now, until) == 0) {
+            log.warn("Integrity scrub lease expired, the pass is left to the instance holding it");
+            return false;
+        }
+        state.setLeaseOwner(instanceId);
+        state.setLeaseUntil(until);
+        return true;
+    }
+
+    private Result verify(FileIntegrity file) {
+
+        String storageKey = file.getStorageKey();
+        try {
+            long storedSize = fileService.calculateSize(storageKey);
+            if (storedSize != file.getStoredLength()) {
+                return problem(file, ScrubProblem.SIZE_MISMATCH, 0,
+                        "Expected " + file.getStoredLength() + " stored bytes, found " + storedSize);
+            }
+
+            StoredFile content = fileService.calculateChecksum(storageKey, file.getEncoding(), throttle);
+            if (content.getSize() != file.getSize() || !content.getChecksum().equalsIgnoreCase(file.getChecksum())) {
+                return problem(file, ScrubProblem.CORRUPT, storedSize, "Expected checksum " + file.getChecksum()
+                        + " of " + file.getSize() + " bytes, found " + content.getChecksum() + " of " + content.getSize() + " bytes");
+            }
+            return new Result(file, null, storedSize, null);
+
+        } catch (NoSuchFileException ex) {
+            return problem(file, ScrubProblem.MISSING, 0, "No content under " + storageKey);
+        } catch (InterruptedIOException ex) {
+            return null;
+        } catch (IOException ex) {
+            return problem(file, ScrubProblem.CORRUPT, 0, ex.getClass().getSimpleName() + ": " + ex.getMessage());
+        }
+    }
+
+    private Result problem(FileIntegrity file, ScrubProblem problem, long bytes, String detail) {
+
+        // The file may have been removed while it was verified
+        if (!fileModelRepository.existsById(file.getId())) {
+            return new Result(file, null, bytes, null);
+        }
+        return new Result(file, problem, bytes, detail.length() > 1000 ? detail.substring(0, 1000) : detail);
+    }
+
+    private static class Result {
+
+        private final FileIntegrity file;
+
+        // Null when the content is intact
+        private final ScrubProblem problem;
+
+        private final long bytes;
+
+        private final String detail;
+
+        private Result(FileIntegrity file, ScrubProblem problem, long bytes, String detail) {
+            this.file = file;
+            this.problem = problem;
+            this.bytes = bytes;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package eu.integrable.starduststorage.service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Progress of moving files from the flat storage directory into the sharded layout.
+ */
+@Getter
+@Setter
+public class LayoutMigrationStatus {
+
+    private volatile boolean running;
+
+    private volatile long moved;
+
+    private volatile long failed;
+
+    private volatile LocalDateTime startTime;
+
+    private volatile LocalDateTime endTime;
+}
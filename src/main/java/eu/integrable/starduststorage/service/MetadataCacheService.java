@@ -0,0 +1,181 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.CacheEviction;
+import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.security.JwtTokenService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.serviceregistry.Registration;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evicts metadata from the second-level cache. Hibernate evicts entries changed on this
+ * instance by itself, the changes are collected here and periodically sent to the other
+ * instances registered in Eureka, authenticated with a short-lived token signed with the
+ * shared secret. The token only grants cache eviction, it is sent over https to instances
+ * registered with a secure port.
+ */
+@Service
+public class MetadataCacheService {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataCacheService.class);
+
+    private static final Duration TOKEN_LIFETIME = Duration.ofMinutes(10);
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private JwtTokenService jwtTokenService;
+
+    @Autowired
+    private ObjectProvider<DiscoveryClient> discoveryClient;
+
+    @Autowired
+    private ObjectProvider<Registration> registration;
+
+    @Value("${spring.application.name}")
+    private String applicationName;
+
+    private final Set<String> changedFiles = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> changedGroups = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean allFilesChanged;
+
+    private RestTemplate restTemplate;
+
+    private String token;
+
+    private long tokenRenewal;
+
+    @PostConstruct
+    public void init() {
+
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(2000);
+        requestFactory.setReadTimeout(5000);
+        restTemplate = new RestTemplate(requestFactory);
+    }
+
+    public void fileChanged(String fileId) {
+
+        if (isBroadcasting()) {
+            changedFiles.add(fileId);
+        }
+    }
+
+    public void groupChanged(String groupId) {
+
+        if (isBroadcasting()) {
+            changedGroups.add(groupId);
+        }
+    }
+
+    public void allFilesChanged() {
+
+        if (isBroadcasting()) {
+            allFilesChanged = true;
+        }
+    }
+
+    public void evict(CacheEviction cacheEviction) {
+
+        if (!storageProperty.isMetadataCacheEnabled()) {
+            return;
+        }
+
+        javax.persistence.Cache cache = entityManagerFactory.getCache();
+        if (cacheEviction.isAllFiles()) {
+            cache.evict(FileModel.class);
+        } else if (cacheEviction.getFiles() != null) {
+            cacheEviction.getFiles().forEach(id -> cache.evict(FileModel.class, id));
+        }
+        if (cacheEviction.getGroups() != null) {
+            cacheEviction.getGroups().forEach(id -> cache.evict(GroupModel.class, id));
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${storage.metadata-cache-broadcast-interval:200}")
+    public void broadcast() {
+
+        if (!isBroadcasting() || (changedFiles.isEmpty() && changedGroups.isEmpty() && !allFilesChanged)) {
+            return;
+        }
+
+        // Take the collected changes, changes made meanwhile go with the next broadcast
+        CacheEviction cacheEviction = new CacheEviction(drain(changedFiles), drain(changedGroups), allFilesChanged);
+        allFilesChanged = false;
+
+        DiscoveryClient client = discoveryClient.getIfAvailable();
+        if (client == null) {
+            return;
+        }
+
+        Registration self = registration.getIfAvailable();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(getToken());
+        HttpEntity<CacheEviction> request = new HttpEntity<>(cacheEviction, headers);
+
+        for (ServiceInstance instance : client.getInstances(applicationName)) {
+            if (self != null && instance.getInstanceId() != null && instance.getInstanceId().equals(self.getInstanceId())) {
+                continue;
+            }
+            try {
+                restTemplate.postForEntity(instance.getUri() + "/api/v1/storage/maintenance/cache/evict", request, String.class);
+            } catch (RestClientException ex) {
+                log.warn("Can not send cache eviction to " + instance.getUri() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private boolean isBroadcasting() {
+
+        return storageProperty.isMetadataCacheEnabled() && storageProperty.isMetadataCacheBroadcast();
+    }
+
+    private String getToken() {
+
+        // Renew the token well before it expires
+        long now = System.currentTimeMillis();
+        if (token == null || now > tokenRenewal) {
+            token = jwtTokenService.createCacheEvictionToken(applicationName, TOKEN_LIFETIME);
+            tokenRenewal = now + TOKEN_LIFETIME.toMillis() / 2;
+        }
+        return token;
+    }
+
+    private static Set<String> drain(Set<String> changes) {
+
+        Set<String> drained = new HashSet<>();
+        for (String change : changes) {
+            if (changes.remove(change)) {
+                drained.add(change);
+            }
+        }
+        return drained;
+    }
+}
@@ -1,106 +1,171 @@
 package eu.integrable.starduststorage.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import eu.integrable.starduststorage.model.FileAccess;
 import eu.integrable.starduststorage.model.FileModel;
 import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 @Service
 public class PermissionService {
 
+    private static final String ROLE_ADMIN = "ROLE_ADMIN";
+
+    private static final String ROLE_WRITER = "ROLE_WRITER";
+
+    private static final String ROLE_CACHE_EVICTION = "ROLE_CACHE_EVICTION";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private StorageMetrics storageMetrics;
+
+    // Parsed permission lists keyed by their JSON, a changed permission is a new key
+    private Cache<String, PermissionSet> permissionSets;
+
+    @PostConstruct
+    public void init() {
+
+        permissionSets = Caffeine.newBuilder()
+                .maximumSize(storageProperty.getPermissionCacheSize())
+                .build();
+    }
+
     public boolean isAccessPermitted(Authentication authentication, FileModel fileModel) {
 
-        // Allow if permission not defined
-        if (fileModel.getPermission() == null || fileModel.getPermission().isBlank()) {
-            return true;
-        }
+        return isAccessPermitted(authentication, fileModel.getOwner(), fileModel.getPermission());
+    }
 
-        // Allow admin
-        if (authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_ADMIN")))) {
-            return true;
-        }
+    public boolean isAccessPermitted(Authentication authentication, FileAccess fileAccess) {
 
-        // Allow the owner
-        if (authentication.getPrincipal().toString().equals(fileModel.getOwner())) {
-            return true;
-        }
+        return isAccessPermitted(authentication, fileAccess.getOwner(), fileAccess.getPermission());
+    }
 
-        // Check the permission list
-        try {
-            String username = authentication.getPrincipal().toString();
-            String permissionsJson = fileModel.getPermission();
-            ObjectMapper objectMapper = new ObjectMapper();
-            List<String> permissions = (List<String>)objectMapper.readValue(permissionsJson, List.class);
+    public boolean isAccessPermitted(Authentication authentication, GroupModel groupModel) {
 
-            if (permissions.stream().anyMatch(permission -> permission.equals(username))) {
-                return true;
-            } else {
-                return false;
-            }
+        return isAccessPermitted(authentication, groupModel.getOwner(), groupModel.getPermission());
+    }
 
-        } catch (IOException ex) {
-            ex.printStackTrace();
+    public boolean arePermissionsCorrect(Authentication authentication, String permissionsJson) {
+
+        if (permissionsJson == null) {
             return false;
         }
+
+        PermissionSet permissionSet = getPermissionSet(permissionsJson);
+        return permissionSet.valid && permissionSet.users.contains(authentication.getPrincipal().toString());
     }
 
-    public boolean isAccessPermitted(Authentication authentication, GroupModel groupModel) {
+    public boolean isAdmin(Authentication authentication) {
+
+        return hasAuthority(authentication, ROLE_ADMIN);
+    }
+
+    public boolean isWriter(Authentication authentication) {
+
+        return hasAuthority(authentication, ROLE_WRITER);
+    }
+
+    public boolean isCacheEvictor(Authentication authentication) {
+
+        return hasAuthority(authentication, ROLE_CACHE_EVICTION);
+    }
+
+    private boolean isAccessPermitted(Authentication authentication, String owner, String permissionsJson) {
+
+        long start = System.nanoTime();
+        try {
+            return checkAccess(authentication, owner, permissionsJson);
+        } finally {
+            storageMetrics.record(StorageMetrics.Phase.PERMISSION, start);
+        }
+    }
+
+    private boolean checkAccess(Authentication authentication, String owner, String permissionsJson) {
 
         // Allow if permission not defined
-        if (groupModel.getPermission() == null || groupModel.getPermission().isBlank()) {
+        if (permissionsJson == null || permissionsJson.isBlank()) {
             return true;
         }
 
         // Allow admin
-        if (authentication.getAuthorities().stream().anyMatch(grantedAuthority -> grantedAuthority.equals(new SimpleGrantedAuthority("ROLE_ADMIN")))) {
+        if (isAdmin(authentication)) {
             return true;
         }
 
         // Allow the owner
-        if (authentication.getPrincipal().toString().equals(groupModel.getOwner())) {
+        String username = authentication.getPrincipal().toString();
+        if (username.equals(owner)) {
             return true;
         }
 
         // Check the permission list
+        return getPermissionSet(permissionsJson).users.contains(username);
+    }
+
+    private PermissionSet getPermissionSet(String permissionsJson) {
+
+        return permissionSets.get(permissionsJson, PermissionService::parsePermissionSet);
+    }
+
+    private static PermissionSet parsePermissionSet(String permissionsJson) {
+
         try {
-            String username = authentication.getPrincipal().toString();
-            String permissionsJson = groupModel.getPermission();
-            ObjectMapper objectMapper = new ObjectMapper();
-            List<String> permissions = (List<String>)objectMapper.readValue(permissionsJson, List.class);
+            List<?> permissions = objectMapper.readValue(permissionsJson, List.class);
+            if (permissions == null) {
+                return PermissionSet.INVALID;
+            }
 
-            if (permissions.stream().anyMatch(permission -> permission.equals(username))) {
-                return true;
-            } else {
-                return false;
+            Set<String> users = new HashSet<>();
+            for (Object permission : permissions) {
+                if (permission instanceof String) {
+                    users.add((String) permission);
+                }
             }
+            return new PermissionSet(Set.copyOf(users), true);
 
         } catch (IOException ex) {
             ex.printStackTrace();
-            return false;
+            return PermissionSet.INVALID;
         }
     }
 
-    public boolean arePermissionsCorrect(Authentication authentication, String permissionsJson) {
-
-        try {
-            String username = authentication.getPrincipal().toString();
-            ObjectMapper objectMapper = new ObjectMapper();
-            List<String> permissions = (List<String>)objectMapper.readValue(permissionsJson, List.class);
+    private static boolean hasAuthority(Authentication authentication, String authority) {
 
-            if (permissions.stream().anyMatch(permission -> permission.equals(username))) {
+        for (GrantedAuthority grantedAuthority : authentication.getAuthorities()) {
+            if (authority.equals(grantedAuthority.getAuthority())) {
                 return true;
-            } else {
-                return false;
             }
+        }
+        return false;
+    }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return false;
+    private static class PermissionSet {
+
+        private static final PermissionSet INVALID = new PermissionSet(Set.of(), false);
+
+        private final Set<String> users;
+
+        private final boolean valid;
+
+        private PermissionSet(Set<String> users, boolean valid) {
+            this.users = users;
+            this.valid = valid;
         }
     }
 }
@@ -0,0 +1,155 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.repository.FileModelRepository;
+import eu.integrable.starduststorage.repository.GroupModelRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keeps the size of groups within their quota. Bytes are reserved before an upload starts
+ * with a single conditional update, so concurrent uploads into a group can neither overshoot
+ * the quota nor lose size updates, and the row is locked only for that statement instead
+ * of for the whole transfer. A reservation stays as the size of the stored file or is
+ * released when the upload fails. A file moving to another group takes its size along in
+ * the transaction that saves it, a deleted file gives its size back to the group it was in
+ * when its row was removed. File rows are written into a group only while its row is locked,
+ * the lock a group deletion takes first, so a file can not end up in a group that is being
+ * deleted without being tombstoned with it.
+ */
+@Service
+public class QuotaService {
+
+    public enum MoveResult {
+        MOVED,
+        QUOTA_REACHED,
+        // Deleted or moved to another group by a concurrent request
+        FILE_CHANGED,
+        // The new group was deleted by a concurrent request
+        GROUP_DELETED
+    }
+
+    @Autowired
+    private GroupModelRepository groupModelRepository;
+
+    @Autowired
+    private FileModelRepository fileModelRepository;
+
+    @Autowired
+    private MetadataCacheService metadataCacheService;
+
+    public boolean reserve(String groupId, long size) {
+
+        if (groupModelRepository.increaseSizeWithinQuota(groupId, size) == 0) {
+            return false;
+        }
+        metadataCacheService.groupChanged(groupId);
+        return true;
+    }
+
+    public void release(String groupId, long size) {
+
+        groupModelRepository.decreaseSize(groupId, size);
+        metadataCacheService.groupChanged(groupId);
+    }
+
+    /**
+     * Inserts new files into the group, false without writing anything when the group was
+     * deleted meanwhile.
+     */
+    @Transactional
+    public boolean saveFiles(String groupId, List<FileModel> fileModels) {
+
+        if (groupId != null && groupModelRepository.lockById(groupId).isEmpty()) {
+            return false;
+        }
+        fileModelRepository.saveAll(fileModels);
+        return true;
+    }
+
+    /**
+     * Saves a file that changed its group and moves its size from the previous group to the
+     * new one. The file row stays locked until the save commits, nothing changes unless the
+     * result is MOVED.
+     */
+    @Transactional
+    public MoveResult moveFile(FileModel fileModel, String previousGroupId) {
+
+        // Groups before the file row like a group deletion, in the same order for concurrent moves
+        String groupId = fileModel.getGroup().getId();
+        if (previousGroupId != null && previousGroupId.compareTo(groupId) < 0
+                && groupModelRepository.lockById(previousGroupId).isEmpty()) {
+            return MoveResult.FILE_CHANGED;
+        }
+        if (groupModelRepository.lockById(groupId).isEmpty()) {
+            return MoveResult.GROUP_DELETED;
+        }
+        if (previousGroupId != null && previousGroupId.compareTo(groupId) > 0
+                && groupModelRepository.lockById(previousGroupId).isEmpty()) {
+            return MoveResult.FILE_CHANGED;
+        }
+
+        // The file may be a changed entity of the request, it is only written when the move succeeds
+        Optional<String> currentGroupId = fileModelRepository.findGroupIdForUpdate(fileModel.getId());
+        if (currentGroupId.isEmpty() || !currentGroupId.get().equals(previousGroupId != null ? previousGroupId : "")) {
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return MoveResult.FILE_CHANGED;
+        }
+
+        long size = fileModel.getSize();
+        if (groupModelRepository.increaseSizeWithinQuota(groupId, size) == 0) {
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return MoveResult.QUOTA_REACHED;
+        }
+        if (previousGroupId != null) {
+            groupModelRepository.decreaseSize(previousGroupId, size);
+        }
+        fileModelRepository.save(fileModel);
+        groupsChangedAfterCommit(groupId, previousGroupId);
+        return MoveResult.MOVED;
+    }
+
+    /**
+     * Removes the file row and its size from the group stored with it, false when the file
+     * was already deleted.
+     */
+    @Transactional
+    public boolean deleteFile(FileModel fileModel) {
+
+        // The group before the file row like a group deletion, a deleted group took the file along
+        if (fileModel.getGroup() != null && groupModelRepository.lockById(fileModel.getGroup().getId()).isEmpty()) {
+            return false;
+        }
+        Optional<String> groupId = fileModelRepository.findGroupIdForUpdate(fileModel.getId());
+        if (groupId.isEmpty()) {
+            return false;
+        }
+        fileModelRepository.delete(fileModel);
+        if (!groupId.get().isEmpty()) {
+            groupModelRepository.decreaseSize(groupId.get(), fileModel.getSize());
+            groupsChangedAfterCommit(groupId.get(), null);
+        }
+        return true;
+    }
+
+    // Evicted once the new sizes are visible, an earlier eviction could cache the old ones again
+    private void groupsChangedAfterCommit(String groupId, String otherGroupId) {
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                metadataCacheService.groupChanged(groupId);
+                if (otherGroupId != null) {
+                    metadataCacheService.groupChanged(otherGroupId);
+                }
+            }
+        });
+    }
+}
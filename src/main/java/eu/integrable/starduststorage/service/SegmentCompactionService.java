@@ -0,0 +1,41 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.SegmentBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+
+/**
+ * Reclaims the space of deleted packed files by compacting segments in the background.
+ */
+@Service
+public class SegmentCompactionService {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentCompactionService.class);
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Scheduled(fixedDelayString = "${storage.segment-compaction-interval:60000}")
+    public void compact() {
+
+        if (!(blobStore instanceof SegmentBlobStore)) {
+            return;
+        }
+
+        try {
+            ((SegmentBlobStore) blobStore).compact(storageProperty.getSegmentCompactionThreshold());
+        } catch (IOException ex) {
+            log.error("Segment compaction failed", ex);
+        }
+    }
+}
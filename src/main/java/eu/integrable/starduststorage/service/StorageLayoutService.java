@@ -0,0 +1,149 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.LocalBlobStore;
+import eu.integrable.starduststorage.storage.SegmentBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+
+/**
+ * Moves files stored in the flat storage directory into the sharded layout. The migration
+ * runs in the background while the service keeps serving: new files are always written to
+ * the sharded layout and reads fall back to the flat directory until a file is moved.
+ * Only files of the local blob store have a layout. Temporary files of writes interrupted
+ * by a crash are removed in the background on startup.
+ */
+@Service
+public class StorageLayoutService {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageLayoutService.class);
+
+    // Temporary files not modified for this long belong to writes that never completed
+    private static final Duration TEMPORARY_FILE_AGE = Duration.ofHours(1);
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    private final LayoutMigrationStatus status = new LayoutMigrationStatus();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateOnStartup() {
+
+        if (storageProperty.isMigrateLayoutOnStartup()) {
+            startMigration();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void deleteTemporaryFilesOnStartup() {
+
+        LocalBlobStore localBlobStore = getLocalBlobStore();
+        if (localBlobStore == null) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                long deleted = localBlobStore.deleteTemporaryFiles(Instant.now().minus(TEMPORARY_FILE_AGE));
+                log.info("Deleted " + deleted + " temporary files of interrupted writes");
+            } catch (IOException ex) {
+                log.error("Can not delete temporary files of interrupted writes", ex);
+            }
+        }, "temporary-file-sweep");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized boolean startMigration() {
+
+        if (status.isRunning() || storageProperty.getShardDepth() == 0 || getLocalBlobStore() == null) {
+            return false;
+        }
+
+        status.setRunning(true);
+        status.setMoved(0);
+        status.setFailed(0);
+        status.setStartTime(LocalDateTime.now());
+        status.setEndTime(null);
+
+        Thread thread = new Thread(this::migrate, "layout-migration");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public LayoutMigrationStatus getStatus() {
+        return status;
+    }
+
+    private void migrate() {
+
+        log.info("Storage layout migration started");
+        try {
+            // Entries moved while the directory is listed may be skipped, so repeat until a pass moves nothing
+            long movedInPass;
+            do {
+                movedInPass = migratePass();
+            } while (movedInPass > 0);
+        } catch (IOException ex) {
+            log.error("Storage layout migration failed", ex);
+        } finally {
+            status.setEndTime(LocalDateTime.now());
+            status.setRunning(false);
+        }
+        log.info("Storage layout migration finished, moved " + status.getMoved() + ", failed " + status.getFailed());
+    }
+
+    private long migratePass() throws IOException {
+
+        LocalBlobStore localBlobStore = getLocalBlobStore();
+        long moved = 0;
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(localBlobStore.getStorageLocation())) {
+            for (Path path : directoryStream) {
+                String filename = path.getFileName().toString();
+                if (filename.startsWith(".") || !Files.isRegularFile(path)) {
+                    continue;
+                }
+
+                Path target = localBlobStore.getFilePath(filename);
+                if (target.equals(path)) {
+                    continue;
+                }
+
+                try {
+                    localBlobStore.createParentDirectories(target);
+                    Files.move(path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    status.setMoved(status.getMoved() + 1);
+                    moved++;
+                } catch (IOException ex) {
+                    log.error("Can not move " + filename + " into the sharded layout", ex);
+                    status.setFailed(status.getFailed() + 1);
+                }
+            }
+        }
+        return moved;
+    }
+
+    private LocalBlobStore getLocalBlobStore() {
+
+        BlobStore store = blobStore instanceof SegmentBlobStore ? ((SegmentBlobStore) blobStore).getDelegate() : blobStore;
+        return store instanceof LocalBlobStore ? (LocalBlobStore) store : null;
+    }
+}
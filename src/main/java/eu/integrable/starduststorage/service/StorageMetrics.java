@@ -0,0 +1,204 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.tracing.RequestTiming;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.http.Outcome;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the transfer hot paths: time spent in each phase of a request, bytes hashed,
+ * and duration, bytes and number in flight of uploads and downloads by outcome. Transfers
+ * are tagged by group only with storage.metrics-group-tag, group ids are user defined.
+ */
+@Service
+public class StorageMetrics {
+
+    public static final String UPLOAD = "upload";
+
+    public static final String DOWNLOAD = "download";
+
+    // Request attribute holding a download that finishes after the handler returns
+    public static final String TRANSFER_ATTRIBUTE = StorageMetrics.class.getName() + ".transfer";
+
+    public enum Phase {
+        JWT_VERIFY, METADATA, PERMISSION, DISK_READ, DISK_WRITE, CHECKSUM
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    private final Map<Phase, Timer> phaseTimers = new EnumMap<>(Phase.class);
+
+    private final AtomicInteger activeUploads = new AtomicInteger();
+
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+
+    private Counter checksumBytes;
+
+    @PostConstruct
+    public void init() {
+
+        // Phases range from microseconds for a permission check to seconds for a large write
+        for (Phase phase : Phase.values()) {
+            phaseTimers.put(phase, Timer.builder("storage.phase")
+                    .tag("phase", phase.name().toLowerCase(Locale.ROOT))
+                    .description("Time spent in a phase of a transfer")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(1000))
+                    .maximumExpectedValue(Duration.ofMinutes(1))
+                    .register(meterRegistry));
+        }
+
+        checksumBytes = Counter.builder("storage.checksum.bytes")
+                .baseUnit("bytes")
+                .description("Bytes hashed, divided by the checksum phase time this is the checksum throughput")
+                .register(meterRegistry);
+
+        Gauge.builder("storage.transfers.active", activeUploads, AtomicInteger::get)
+                .tag("direction", UPLOAD)
+                .description("Transfers in flight")
+                .register(meterRegistry);
+        Gauge.builder("storage.transfers.active", activeDownloads, AtomicInteger::get)
+                .tag("direction", DOWNLOAD)
+                .description("Transfers in flight")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records the time since startNanos, taken from System.nanoTime().
+     */
+    public void record(Phase phase, long startNanos) {
+
+        recordNanos(phase, System.nanoTime() - startNanos);
+    }
+
+    public void recordNanos(Phase phase, long nanos) {
+
+        phaseTimers.get(phase).record(nanos, TimeUnit.NANOSECONDS);
+
+        // Also part of the Server-Timing breakdown of a sampled request
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null) {
+            timing.add(phase, nanos);
+        }
+    }
+
+    public void recordChecksum(long bytes, long nanos) {
+
+        checksumBytes.increment(bytes);
+        recordNanos(Phase.CHECKSUM, nanos);
+    }
+
+    public Transfer startTransfer(String direction, String groupId) {
+
+        counter(direction).incrementAndGet();
+        return new Transfer(direction, groupId);
+    }
+
+    private AtomicInteger counter(String direction) {
+
+        return UPLOAD.equals(direction) ? activeUploads : activeDownloads;
+    }
+
+    /**
+     * An upload or download in flight, counted until it is finished with the response status.
+     * Downloads handed to sendfile are sent by the container after the request completes:
+     * their duration is not recorded and their bytes count as sent even if the client aborts.
+     */
+    public class Transfer {
+
+        private final String direction;
+
+        private final String groupId;
+
+        private final long startNanos = System.nanoTime();
+
+        private long bytes;
+
+        private boolean sendfile;
+
+        private boolean finished;
+
+        private Transfer(String direction, String groupId) {
+            this.direction = direction;
+            this.groupId = groupId;
+        }
+
+        public void addBytes(long bytes) {
+            this.bytes += bytes;
+        }
+
+        public void sendfile() {
+            sendfile = true;
+        }
+
+        /**
+         * Counts the bytes written to the stream, for bodies whose length is not known up front.
+         */
+        public OutputStream count(OutputStream outputStream) {
+
+            return new FilterOutputStream(outputStream) {
+                @Override
+                public void write(int value) throws IOException {
+                    out.write(value);
+                    addBytes(1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    out.write(buffer, offset, length);
+                    addBytes(length);
+                }
+            };
+        }
+
+        public synchronized void finish(int status) {
+
+            if (finished) {
+                return;
+            }
+            finished = true;
+            counter(direction).decrementAndGet();
+
+            Tags tags = Tags.of("direction", direction, "outcome", Outcome.forStatus(status).name());
+            if (storageProperty.isMetricsGroupTag()) {
+                tags = tags.and("group", groupId != null ? groupId : "none");
+            }
+
+            if (!sendfile) {
+                Timer.builder("storage.transfer")
+                        .tags(tags)
+                        .description("Duration of uploads and downloads")
+                        .publishPercentileHistogram()
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+            Counter.builder("storage.transfer.bytes")
+                    .tags(tags)
+                    .baseUnit("bytes")
+                    .description("Bytes received by uploads and sent by downloads")
+                    .register(meterRegistry)
+                    .increment(bytes);
+        }
+    }
+}
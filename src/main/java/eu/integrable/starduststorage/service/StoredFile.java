@@ -0,0 +1,30 @@
+package eu.integrable.starduststorage.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Result of writing a file to the storage: SHA-256 checksum and length of the content,
+ * number of bytes on disk and their encoding and, in deduplicating mode, the key of the
+ * shared blob holding the content.
+ */
+@Getter
+@AllArgsConstructor
+public class StoredFile {
+
+    private final String checksum;
+
+    private final long size;
+
+    // Null when the content is stored under the file id
+    private final String blob;
+
+    private final long storedSize;
+
+    // Null when the content is stored as uploaded
+    private final String encoding;
+
+    public StoredFile(String checksum, long size, String blob) {
+        this(checksum, size, blob, size, null);
+    }
+}
@@ -0,0 +1,171 @@
+package eu.integrable.starduststorage.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming writer of POSIX ustar archives. Entries are regular files whose size
+ * is known up front, names that do not fit the ustar header are written as a pax extended
+ * header and sizes of 8 GiB and more use the base-256 size encoding.
+ */
+public class TarOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final byte[] padding = new byte[BLOCK_SIZE];
+
+    private long entryRemaining;
+
+    private long entrySize;
+
+    public TarOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    public void putEntry(String name, long size, long modificationTime) throws IOException {
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100 || nameBytes.length != name.length()) {
+            writePaxHeader(name, modificationTime);
+            nameBytes = Arrays.copyOf(asciiName(name).getBytes(StandardCharsets.US_ASCII), Math.min(100, name.length()));
+        }
+
+        out.write(header(nameBytes, size, modificationTime, (byte) '0'));
+        entrySize = size;
+        entryRemaining = size;
+    }
+
+    public void closeEntry() throws IOException {
+
+        if (entryRemaining != 0) {
+            throw new IOException("Entry is " + entrySize + " bytes long, " + entryRemaining + " bytes missing");
+        }
+        pad(entrySize);
+    }
+
+    public void finish() throws IOException {
+
+        // Two empty blocks end the archive
+        out.write(padding);
+        out.write(padding);
+        out.flush();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        if (entryRemaining < 1) {
+            throw new IOException("Entry is longer than " + entrySize + " bytes");
+        }
+        out.write(b);
+        entryRemaining--;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        if (len > entryRemaining) {
+            throw new IOException("Entry is longer than " + entrySize + " bytes");
+        }
+        out.write(b, off, len);
+        entryRemaining -= len;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        out.close();
+    }
+
+    private void writePaxHeader(String name, long modificationTime) throws IOException {
+
+        // A pax record is "<length> path=<name>\n", the length counts its own digits
+        byte[] value = (" path=" + name + "\n").getBytes(StandardCharsets.UTF_8);
+        int length = value.length;
+        while (length != value.length + String.valueOf(length).length()) {
+            length = value.length + String.valueOf(length).length();
+        }
+        byte[] record = (length + new String(value, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+
+        byte[] headerName = Arrays.copyOf("PaxHeaders/entry".getBytes(StandardCharsets.US_ASCII), 16);
+        out.write(header(headerName, record.length, modificationTime, (byte) 'x'));
+        out.write(record);
+        pad(record.length);
+    }
+
+    private byte[] header(byte[] name, long size, long modificationTime, byte type) {
+
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        writeOctal(header, 100, 8, 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        writeSize(header, size);
+        writeOctal(header, 136, 12, Math.max(0, modificationTime));
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // The checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        writeOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+
+        return header;
+    }
+
+    private static void writeSize(byte[] header, long size) {
+
+        if (size <= MAX_OCTAL_SIZE) {
+            writeOctal(header, 124, 12, size);
+            return;
+        }
+
+        // Base-256: the first byte flags the encoding, the rest holds the size big-endian
+        header[124] = (byte) 0x80;
+        for (int i = 135; i > 124; i--) {
+            header[i] = (byte) size;
+            size >>>= 8;
+        }
+    }
+
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+
+        // Zero padded octal digits terminated by NUL
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            header[offset + i] = (byte) (index >= 0 ? octal.charAt(index) : '0');
+        }
+        header[offset + digits] = 0;
+    }
+
+    private static String asciiName(String name) {
+
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            builder.append(c < 0x80 ? c : '_');
+        }
+        return builder.toString();
+    }
+
+    private void pad(long size) throws IOException {
+
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(padding, 0, BLOCK_SIZE - remainder);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package eu.integrable.starduststorage.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces work to a number of permits per second shared by all calling threads, e.g. files
+ * or bytes per second. Each caller reserves the next free time slot and sleeps until it
+ * starts, so bursts are smoothed out instead of being rejected. A rate of zero or less
+ * disables the throttle.
+ */
+public class Throttle {
+
+    private final double permitsPerSecond;
+
+    private long nextFreeNanos = System.nanoTime();
+
+    public Throttle(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public void acquire(long permits) throws InterruptedException {
+
+        if (permitsPerSecond <= 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + (long) (permits * 1_000_000_000d / permitsPerSecond);
+            waitNanos = start - now;
+        }
+
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
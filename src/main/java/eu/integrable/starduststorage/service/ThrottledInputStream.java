@@ -0,0 +1,49 @@
+package eu.integrable.starduststorage.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Reads at the pace of a throttle counting bytes.
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+    private final Throttle throttle;
+
+    ThrottledInputStream(InputStream inputStream, Throttle throttle) {
+        super(inputStream);
+        this.throttle = throttle;
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        int value = super.read();
+        if (value != -1) {
+            acquire(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            acquire(read);
+        }
+        return read;
+    }
+
+    private void acquire(long permits) throws InterruptedIOException {
+
+        try {
+            throttle.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package eu.integrable.starduststorage.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a chunk or the whole upload session is locked by another request.
+ */
+public class UploadSessionLockedException extends IOException {
+
+    public UploadSessionLockedException(String sessionId) {
+        super("Upload session " + sessionId + " is locked by another request");
+    }
+}
@@ -0,0 +1,13 @@
+package eu.integrable.starduststorage.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the files of an upload session are gone, removed by an abort or commit.
+ */
+public class UploadSessionNotFoundException extends IOException {
+
+    public UploadSessionNotFoundException(String sessionId) {
+        super("Upload session " + sessionId + " does not exist");
+    }
+}
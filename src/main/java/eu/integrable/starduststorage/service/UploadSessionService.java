@@ -0,0 +1,489 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.UploadSessionModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.UploadSessionModelRepository;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the chunks of upload sessions. Chunks have fixed offsets and are written straight
+ * into the data file of the session, which becomes the stored file on commit without being
+ * copied. A received chunk is marked by a file named by its index holding the checksum of
+ * the chunk. The checksum of the whole file is computed while the chunks arrive: a chunk
+ * continuing the hashed prefix is hashed as it is written, chunks arriving ahead of it are
+ * read back once the gap before them is filled. A chunk upload locks its index in the lock
+ * file of the session and a commit or abort locks all of it, which keeps them apart also
+ * across instances sharing the session directory.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadSessionService.class);
+
+    private static final String DATA_FILE = "data";
+
+    private static final String LOCK_FILE = "lock";
+
+    // Present while a commit may take over the data file
+    private static final String COMMIT_FILE = "commit";
+
+    @Autowired
+    private StorageProperty storageProperty;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private UploadSessionModelRepository uploadSessionModelRepository;
+
+    // Lock files open in this instance, closing any channel of a file drops all locks of the process on it
+    private final Map<String, LockFile> lockFiles = new HashMap<>();
+
+    // Checksum of the hashed prefix of chunks by session
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+
+    public void createSessionDirectory(String sessionId) throws IOException {
+
+        Files.createDirectories(getSessionDirectory(sessionId));
+    }
+
+    /**
+     * Writes a chunk of the session at its offset in the data file. The chunk only counts
+     * as received once its length and, when given, its SHA-256 checksum are verified.
+     */
+    @SuppressWarnings("try")
+    public boolean saveChunk(UploadSessionModel uploadSessionModel, int index, InputStream inputStream,
+                             String expectedChecksum) throws IOException {
+
+        String sessionId = uploadSessionModel.getId();
+        Path sessionDirectory = getSessionDirectory(sessionId);
+        long length = uploadSessionModel.getChunkLength(index);
+
+        try (SessionLock lock = lock(sessionId, index, 1)) {
+
+            // The data file is or was taken over by a commit
+            if (Files.exists(sessionDirectory.resolve(COMMIT_FILE))) {
+                throw new UploadSessionLockedException(sessionId);
+            }
+
+            // An earlier upload of the chunk is no longer valid once its bytes are overwritten
+            Files.deleteIfExists(sessionDirectory.resolve(String.valueOf(index)));
+
+            // A chunk continuing the hashed prefix is hashed while it is written
+            Progress sessionProgress = progress.computeIfAbsent(sessionId, id -> new Progress());
+            MessageDigest prefixDigest = null;
+            int generation;
+            synchronized (sessionProgress) {
+                generation = sessionProgress.generation;
+                if (sessionProgress.checksums.size() == index) {
+                    prefixDigest = copy(sessionProgress.digest);
+                }
+            }
+
+            try (FileChannel channel = FileChannel.open(sessionDirectory.resolve(DATA_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                StoredFile chunk = fileService.writeRegion(inputStream, channel,
+                        index * uploadSessionModel.getChunkSize(), length, prefixDigest);
+                if (chunk.getSize() != length
+                        || (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(chunk.getChecksum()))) {
+                    return false;
+                }
+
+                writeMarker(sessionDirectory, index, chunk.getChecksum());
+
+                synchronized (sessionProgress) {
+                    List<String> checksums = sessionProgress.checksums;
+                    if (index < checksums.size() && !checksums.get(index).equals(chunk.getChecksum())) {
+                        // Replaced by other content after it was hashed
+                        sessionProgress.reset();
+                    } else if (index == checksums.size() && prefixDigest != null && generation == sessionProgress.generation) {
+                        sessionProgress.digest = prefixDigest;
+                        checksums.add(chunk.getChecksum());
+                    }
+                    advance(uploadSessionModel, sessionProgress, channel);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    public List<Integer> getReceivedChunks(String sessionId) throws IOException {
+
+        List<Integer> chunks = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(getSessionDirectory(sessionId))) {
+            for (Path path : directoryStream) {
+                String name = path.getFileName().toString();
+                if (name.chars().allMatch(Character::isDigit)) {
+                    chunks.add(Integer.parseInt(name));
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            throw new UploadSessionNotFoundException(sessionId);
+        }
+        Collections.sort(chunks);
+        return chunks;
+    }
+
+    /**
+     * Locks the whole session for its commit, fails while chunks are uploaded or another
+     * commit runs.
+     */
+    public Commit commit(UploadSessionModel uploadSessionModel) throws IOException {
+
+        String sessionId = uploadSessionModel.getId();
+        Path sessionDirectory = getSessionDirectory(sessionId);
+
+        SessionLock lock = lock(sessionId, 0, Long.MAX_VALUE);
+        try {
+            // A commit that did not finish may have taken over the data file, its chunks have to be uploaded again
+            Path commitPath = sessionDirectory.resolve(COMMIT_FILE);
+            if (Files.exists(commitPath)) {
+                if (!Files.exists(sessionDirectory.resolve(DATA_FILE))) {
+                    log.warn("Upload session " + sessionId + " lost its chunks in an unfinished commit");
+                    for (int index : getReceivedChunks(sessionId)) {
+                        Files.deleteIfExists(sessionDirectory.resolve(String.valueOf(index)));
+                    }
+                    progress.remove(sessionId);
+                }
+                Files.delete(commitPath);
+            }
+            return new Commit(uploadSessionModel, sessionDirectory, lock);
+        } catch (IOException | RuntimeException ex) {
+            lock.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Removes the session unless a chunk is uploaded or the session is committed meanwhile.
+     * A session whose files are already gone only loses its row.
+     */
+    @SuppressWarnings("try")
+    public void abortSession(UploadSessionModel uploadSessionModel) throws IOException {
+
+        try (SessionLock lock = lock(uploadSessionModel.getId(), 0, Long.MAX_VALUE)) {
+            deleteSession(uploadSessionModel);
+        } catch (UploadSessionNotFoundException ex) {
+            deleteSession(uploadSessionModel);
+        }
+    }
+
+    public void deleteSession(UploadSessionModel uploadSessionModel) throws IOException {
+
+        uploadSessionModelRepository.delete(uploadSessionModel);
+        progress.remove(uploadSessionModel.getId());
+        FileSystemUtils.deleteRecursively(getSessionDirectory(uploadSessionModel.getId()));
+    }
+
+    @Scheduled(fixedDelayString = "${storage.upload-session-cleanup-interval:3600000}")
+    public void removeExpiredSessions() {
+
+        LocalDateTime expiration = LocalDateTime.now().minus(storageProperty.getUploadSessionTimeout());
+        for (UploadSessionModel uploadSessionModel : uploadSessionModelRepository.findByCreationTimeBefore(expiration)) {
+            try {
+                deleteSession(uploadSessionModel);
+                log.info("Removed expired upload session " + uploadSessionModel.getId());
+            } catch (IOException ex) {
+                log.error("Can not remove expired upload session " + uploadSessionModel.getId(), ex);
+            }
+        }
+
+        // Sessions committed or removed through other instances
+        progress.keySet().removeIf(sessionId -> !uploadSessionModelRepository.existsById(sessionId));
+    }
+
+    /**
+     * Hashes the received chunks following the hashed prefix, reading them from the data file.
+     */
+    private void advance(UploadSessionModel uploadSessionModel, Progress sessionProgress, FileChannel channel) throws IOException {
+
+        Path sessionDirectory = getSessionDirectory(uploadSessionModel.getId());
+        try {
+            while (sessionProgress.checksums.size() < uploadSessionModel.getChunkCount()) {
+                int index = sessionProgress.checksums.size();
+                String checksum = readMarker(sessionDirectory, index);
+                if (checksum == null) {
+                    return;
+                }
+                fileService.digestRegion(channel, index * uploadSessionModel.getChunkSize(),
+                        uploadSessionModel.getChunkLength(index), sessionProgress.digest);
+                sessionProgress.checksums.add(checksum);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // The digest may hold part of a chunk
+            sessionProgress.reset();
+            throw ex;
+        }
+    }
+
+    private static void writeMarker(Path sessionDirectory, int index, String checksum) throws IOException {
+
+        Path temporaryPath = sessionDirectory.resolve(index + ".part-" + UUID.randomUUID());
+        Files.writeString(temporaryPath, checksum);
+        Files.move(temporaryPath, sessionDirectory.resolve(String.valueOf(index)),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readMarker(Path sessionDirectory, int index) throws IOException {
+
+        try {
+            return Files.readString(sessionDirectory.resolve(String.valueOf(index)));
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Locks a range of the lock file of the session, fails with UploadSessionNotFoundException
+     * once the session was removed, also when it was removed while the lock was acquired.
+     */
+    private SessionLock lock(String sessionId, long position, long size) throws IOException {
+
+        Path lockPath = getSessionDirectory(sessionId).resolve(LOCK_FILE);
+        LockFile lockFile;
+        synchronized (lockFiles) {
+            lockFile = lockFiles.get(sessionId);
+            if (lockFile == null) {
+                try {
+                    lockFile = new LockFile(FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+                } catch (NoSuchFileException ex) {
+                    throw new UploadSessionNotFoundException(sessionId);
+                }
+                lockFiles.put(sessionId, lockFile);
+            }
+            lockFile.users++;
+        }
+
+        FileLock fileLock = null;
+        try {
+            fileLock = lockFile.channel.tryLock(position, size, false);
+        } catch (OverlappingFileLockException ex) {
+            // Held by another request of this instance
+        } finally {
+            if (fileLock == null) {
+                release(sessionId, lockFile);
+            }
+        }
+
+        if (fileLock == null) {
+            throw new UploadSessionLockedException(sessionId);
+        }
+        SessionLock lock = new SessionLock(sessionId, lockFile, fileLock);
+
+        // The lock of an abort held until the session was removed
+        if (!Files.exists(lockPath)) {
+            lock.close();
+            throw new UploadSessionNotFoundException(sessionId);
+        }
+        return lock;
+    }
+
+    private void release(String sessionId, LockFile lockFile) {
+
+        synchronized (lockFiles) {
+            if (--lockFile.users > 0) {
+                return;
+            }
+            lockFiles.remove(sessionId);
+            try {
+                lockFile.channel.close();
+            } catch (IOException ex) {
+                log.warn("Can not close lock file of upload session " + sessionId, ex);
+            }
+        }
+    }
+
+    private Path getSessionDirectory(String sessionId) {
+
+        String directory = storageProperty.getUploadSessionDirectory();
+        if (directory == null) {
+            return Paths.get(storageProperty.getDirectory(), ".sessions", sessionId).toAbsolutePath().normalize();
+        }
+        return Paths.get(directory, sessionId).toAbsolutePath().normalize();
+    }
+
+    /**
+     * A session locked for its commit. Once the data file is taken over the session is
+     * removed when the commit is closed, whether the file was stored or not.
+     */
+    public class Commit implements Closeable {
+
+        private final UploadSessionModel uploadSessionModel;
+
+        private final Path sessionDirectory;
+
+        private final SessionLock lock;
+
+        private boolean started;
+
+        private Commit(UploadSessionModel uploadSessionModel, Path sessionDirectory, SessionLock lock) {
+            this.uploadSessionModel = uploadSessionModel;
+            this.sessionDirectory = sessionDirectory;
+            this.lock = lock;
+        }
+
+        public List<Integer> getReceivedChunks() throws IOException {
+
+            return UploadSessionService.this.getReceivedChunks(uploadSessionModel.getId());
+        }
+
+        /**
+         * Checksum and size of the assembled file, only chunks that were not hashed while
+         * they arrived are read.
+         */
+        public StoredFile digest() throws IOException {
+
+            Progress sessionProgress = progress.computeIfAbsent(uploadSessionModel.getId(), id -> new Progress());
+            synchronized (sessionProgress) {
+
+                // Chunks replaced through other instances are hashed again
+                List<String> checksums = sessionProgress.checksums;
+                for (int index = 0; index < checksums.size(); index++) {
+                    if (!checksums.get(index).equals(readMarker(sessionDirectory, index))) {
+                        sessionProgress.reset();
+                        break;
+                    }
+                }
+
+                try (FileChannel channel = FileChannel.open(sessionDirectory.resolve(DATA_FILE), StandardOpenOption.READ)) {
+                    advance(uploadSessionModel, sessionProgress, channel);
+                }
+                if (checksums.size() != uploadSessionModel.getChunkCount()) {
+                    throw new IOException("Upload session " + uploadSessionModel.getId() + " misses chunks");
+                }
+
+                MessageDigest digest = copy(sessionProgress.digest);
+                String checksum = Hex.encodeHexString(digest != null ? digest.digest() : sessionProgress.digest.digest());
+                if (digest == null) {
+                    sessionProgress.reset();
+                }
+                return new StoredFile(checksum, uploadSessionModel.getSize(), null);
+            }
+        }
+
+        /**
+         * Returns the data file to be taken over, chunks can no longer be uploaded.
+         */
+        public Path start() throws IOException {
+
+            Files.createFile(sessionDirectory.resolve(COMMIT_FILE));
+            started = true;
+            return sessionDirectory.resolve(DATA_FILE);
+        }
+
+        @Override
+        public void close() {
+
+            try {
+                if (!started) {
+                    return;
+                }
+                if (Files.exists(sessionDirectory.resolve(DATA_FILE))) {
+                    Files.delete(sessionDirectory.resolve(COMMIT_FILE));
+                } else {
+                    deleteSession(uploadSessionModel);
+                }
+            } catch (IOException ex) {
+                log.error("Can not finish commit of upload session " + uploadSessionModel.getId(), ex);
+            } finally {
+                lock.close();
+            }
+        }
+    }
+
+    private class SessionLock implements Closeable {
+
+        private final String sessionId;
+
+        private final LockFile lockFile;
+
+        private final FileLock fileLock;
+
+        private SessionLock(String sessionId, LockFile lockFile, FileLock fileLock) {
+            this.sessionId = sessionId;
+            this.lockFile = lockFile;
+            this.fileLock = fileLock;
+        }
+
+        @Override
+        public void close() {
+
+            try {
+                fileLock.release();
+            } catch (IOException ex) {
+                log.warn("Can not release lock of upload session " + sessionId, ex);
+            } finally {
+                UploadSessionService.this.release(sessionId, lockFile);
+            }
+        }
+    }
+
+    private static class LockFile {
+
+        private final FileChannel channel;
+
+        private int users;
+
+        private LockFile(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Progress {
+
+        private MessageDigest digest = DigestUtils.getSha256Digest();
+
+        // Checksums of the hashed chunks in order
+        private final List<String> checksums = new ArrayList<>();
+
+        // Changes whenever hashing starts over
+        private int generation;
+
+        private void reset() {
+            digest = DigestUtils.getSha256Digest();
+            checksums.clear();
+            generation++;
+        }
+    }
+}
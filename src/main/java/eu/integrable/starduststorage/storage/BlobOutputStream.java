@@ -0,0 +1,15 @@
+package eu.integrable.starduststorage.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream writing the content of a key. The content replaces earlier content of the key
+ * only when the stream is committed, closing it without a commit discards what was
+ * written, so a write failing halfway leaves the key as it was.
+ */
+public abstract class BlobOutputStream extends OutputStream {
+
+    // Completes the write and closes the stream, the content is visible afterwards
+    public abstract void commit() throws IOException;
+}
@@ -0,0 +1,57 @@
+package eu.integrable.starduststorage.storage;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Storage of content under string keys. Content is streamed in both directions and
+ * replaces earlier content of the key once its output stream is committed. Operations on
+ * a key without content fail with NoSuchFileException.
+ */
+public interface BlobStore {
+
+    BlobOutputStream create(String key) throws IOException;
+
+    default long put(String key, InputStream inputStream) throws IOException {
+
+        try (BlobOutputStream outputStream = create(key)) {
+            long size = inputStream.transferTo(outputStream);
+            outputStream.commit();
+            return size;
+        }
+    }
+
+    /**
+     * Takes over a local file as the content of key, the file is gone afterwards. Stores
+     * keeping content on the same file system move it instead of copying it.
+     */
+    default void putFile(String key, Path file) throws IOException {
+
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            put(key, inputStream);
+        }
+        Files.delete(file);
+    }
+
+    InputStream get(String key) throws IOException;
+
+    // Reads at most length bytes starting at offset
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    boolean exists(String key);
+
+    long size(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+
+    void move(String source, String target) throws IOException;
+
+    default Resource getResource(String key) throws IOException {
+
+        return new BlobStoreResource(this, key, size(key));
+    }
+}
@@ -0,0 +1,13 @@
+package eu.integrable.starduststorage.storage;
+
+/**
+ * Implementations of the blob store selected with storage.backend.
+ */
+public enum BlobStoreBackend {
+
+    // Files in storage.directory
+    LOCAL,
+
+    // Files in storage.directory, small files packed into segments
+    SEGMENT
+}
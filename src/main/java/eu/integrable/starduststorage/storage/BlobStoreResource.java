@@ -0,0 +1,44 @@
+package eu.integrable.starduststorage.storage;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of a blob store key as a resource that can be read more than once.
+ */
+public class BlobStoreResource extends AbstractResource {
+
+    private final BlobStore blobStore;
+
+    private final String key;
+
+    private final long size;
+
+    public BlobStoreResource(BlobStore blobStore, String key, long size) {
+        this.blobStore = blobStore;
+        this.key = key;
+        this.size = size;
+    }
+
+    @Override
+    public boolean exists() {
+        return blobStore.exists(key);
+    }
+
+    @Override
+    public long contentLength() {
+        return size;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return blobStore.get(key);
+    }
+
+    @Override
+    public String getDescription() {
+        return "blob [" + key + "]";
+    }
+}
@@ -0,0 +1,109 @@
+package eu.integrable.starduststorage.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Blob store keeping all content on the heap, for tests and benchmarks. It can not be
+ * selected with storage.backend, content would be lost on restart while the database
+ * still references it.
+ */
+public class InMemoryBlobStore implements BlobStore {
+
+    private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+    @Override
+    public BlobOutputStream create(String key) {
+
+        // The content becomes visible at once when the stream is committed
+        return new BlobOutputStream() {
+
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            private boolean closed;
+
+            @Override
+            public void write(int value) {
+                buffer.write(value);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                buffer.write(bytes, offset, length);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                closed = true;
+                blobs.put(key, buffer.toByteArray());
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        };
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+
+        return new ByteArrayInputStream(getContent(key));
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+
+        byte[] content = getContent(key);
+        int start = (int) Math.min(offset, content.length);
+        int count = (int) Math.min(length, content.length - start);
+        return new ByteArrayInputStream(content, start, count);
+    }
+
+    @Override
+    public boolean exists(String key) {
+
+        return blobs.containsKey(key);
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+
+        return getContent(key).length;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+
+        if (blobs.remove(key) == null) {
+            throw new NoSuchFileException(key);
+        }
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+
+        byte[] content = blobs.remove(source);
+        if (content == null) {
+            throw new NoSuchFileException(source);
+        }
+        blobs.put(target, content);
+    }
+
+    private byte[] getContent(String key) throws IOException {
+
+        byte[] content = blobs.get(key);
+        if (content == null) {
+            throw new NoSuchFileException(key);
+        }
+        return content;
+    }
+}
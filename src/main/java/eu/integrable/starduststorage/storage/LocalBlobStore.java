@@ -0,0 +1,270 @@
+package eu.integrable.starduststorage.storage;
+
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blob store writing every key to its own file below the storage directory. Resources
+ * are files on disk, so downloads can be sent with sendfile. Content is written to a
+ * temporary file next to the target and moved over it when complete, readers see either
+ * the old or the new file, never a partial one. A write that is not committed removes its
+ * temporary file, files left by a crash are removed with deleteTemporaryFiles.
+ */
+public class LocalBlobStore implements BlobStore {
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path storageLocation;
+
+    private final int shardDepth;
+
+    // Shard directories known to exist
+    private final Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+
+    public LocalBlobStore(Path directory, int shardDepth) {
+        this.storageLocation = directory.toAbsolutePath().normalize();
+        this.shardDepth = shardDepth;
+    }
+
+    @Override
+    public BlobOutputStream create(String key) throws IOException {
+
+        Path filePath = getFilePath(key);
+        createParentDirectories(filePath);
+        Path temporaryPath = filePath.resolveSibling("." + filePath.getFileName() + "." + UUID.randomUUID() + TEMPORARY_SUFFIX);
+        OutputStream outputStream = Files.newOutputStream(temporaryPath);
+        return new BlobOutputStream() {
+
+            private boolean closed;
+
+            @Override
+            public void write(int value) throws IOException {
+                outputStream.write(value);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                outputStream.write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (!closed) {
+                    outputStream.flush();
+                }
+            }
+
+            @Override
+            public void commit() throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                closed = true;
+                try {
+                    outputStream.close();
+                    Files.move(temporaryPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(temporaryPath);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    outputStream.close();
+                } finally {
+                    Files.deleteIfExists(temporaryPath);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void putFile(String key, Path file) throws IOException {
+
+        Path filePath = getFilePath(key);
+        createParentDirectories(filePath);
+        try {
+            Files.move(file, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            // On another file system
+            BlobStore.super.putFile(key, file);
+        }
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+
+        return onFile(key, Files::newInputStream);
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+
+        FileChannel channel = onFile(key, filePath -> FileChannel.open(filePath, StandardOpenOption.READ));
+        try {
+            channel.position(offset);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new BoundedInputStream(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public boolean exists(String key) {
+
+        return Files.exists(getFilePath(key)) || Files.exists(storageLocation.resolve(key));
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+
+        return onFile(key, Files::size);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+
+        onFile(key, filePath -> {
+            Files.delete(filePath);
+            return null;
+        });
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+
+        Path targetPath = getFilePath(target);
+        createParentDirectories(targetPath);
+        onFile(source, filePath -> Files.move(filePath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+    }
+
+    @Override
+    public Resource getResource(String key) throws IOException {
+
+        return onFile(key, filePath -> {
+            Files.readAttributes(filePath, BasicFileAttributes.class);
+            return new FileSystemResource(filePath);
+        });
+    }
+
+    /**
+     * Deletes the temporary files of writes that never completed, in the storage root and
+     * the shard directories. Files modified after the given time may belong to a write in
+     * progress and are kept. Returns the number of deleted files.
+     */
+    public long deleteTemporaryFiles(Instant modifiedBefore) throws IOException {
+
+        AtomicLong deleted = new AtomicLong();
+        Files.walkFileTree(storageLocation, Set.of(), shardDepth + 1, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                // Directories of other stores, like the segments, are hidden
+                boolean hidden = !directory.equals(storageLocation) && directory.getFileName().toString().startsWith(".");
+                return hidden ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String filename = file.getFileName().toString();
+                if (filename.startsWith(".") && filename.endsWith(TEMPORARY_SUFFIX) && attributes.isRegularFile()
+                        && attributes.lastModifiedTime().toInstant().isBefore(modifiedBefore)
+                        && Files.deleteIfExists(file)) {
+                    deleted.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                // Removed or moved meanwhile
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deleted.get();
+    }
+
+    public Path getStorageLocation() {
+        return storageLocation;
+    }
+
+    /**
+     * Path of a stored file in the sharded layout: with a shard depth of 2 the file
+     * 3fa585c3-... is stored as 3f/a5/3fa585c3-... Names that are too short or start
+     * with a dot (temporary files) stay in the storage root.
+     */
+    public Path getFilePath(String filename) {
+
+        Path filePath = storageLocation;
+        if (filename.startsWith(".") || filename.length() < 2 * shardDepth) {
+            return filePath.resolve(filename);
+        }
+        for (int level = 0; level < shardDepth; level++) {
+            filePath = filePath.resolve(filename.substring(2 * level, 2 * level + 2));
+        }
+        return filePath.resolve(filename);
+    }
+
+    public void createParentDirectories(Path filePath) throws IOException {
+
+        Path parent = filePath.getParent();
+        if (createdDirectories.contains(parent)) {
+            return;
+        }
+        Files.createDirectories(parent);
+        createdDirectories.add(parent);
+    }
+
+    /**
+     * Runs the operation on the sharded path of the key, falling back to the flat layout
+     * for files that were not migrated yet. A file moved by the migration between the two
+     * attempts is found on a second try of the sharded path.
+     */
+    private <T> T onFile(String key, FileOperation<T> operation) throws IOException {
+
+        Path filePath = getFilePath(key);
+        try {
+            return operation.apply(filePath);
+        } catch (NoSuchFileException ex) {
+            Path legacyPath = storageLocation.resolve(key);
+            if (legacyPath.equals(filePath)) {
+                throw ex;
+            }
+            try {
+                return operation.apply(legacyPath);
+            } catch (NoSuchFileException legacyEx) {
+                return operation.apply(filePath);
+            }
+        }
+    }
+
+    private interface FileOperation<T> {
+        T apply(Path filePath) throws IOException;
+    }
+}
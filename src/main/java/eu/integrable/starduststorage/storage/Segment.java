@@ -0,0 +1,109 @@
+package eu.integrable.starduststorage.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only file of records, mapped into memory at its full capacity. Records are
+ * appended through the channel and read through the mapping.
+ */
+class Segment {
+
+    private final long id;
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    // Bytes of valid records, new records are appended here
+    private volatile long length;
+
+    // Bytes of records that were replaced or deleted
+    private final AtomicLong deadBytes = new AtomicLong();
+
+    private Segment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static Segment open(long id, Path path, long capacity) throws IOException {
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = Math.max(capacity, channel.size());
+            return new Segment(id, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    long getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getCapacity() {
+        return buffer.capacity();
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    long getDeadBytes() {
+        return deadBytes.get();
+    }
+
+    void addDeadBytes(long bytes) {
+        deadBytes.addAndGet(bytes);
+    }
+
+    ByteBuffer slice(long offset, int count) {
+
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) offset + count);
+        return slice.slice();
+    }
+
+    void append(ByteBuffer[] records, long end) throws IOException {
+
+        channel.position(length);
+        long remaining = end - length;
+        while (remaining > 0) {
+            remaining -= channel.write(records);
+        }
+        length = end;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
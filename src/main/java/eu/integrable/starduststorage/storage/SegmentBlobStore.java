@@ -0,0 +1,767 @@
+package eu.integrable.starduststorage.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Blob store packing small content into append-only segment files and keeping larger
+ * content in another store. Every write or delete of packed content is a record appended
+ * to the active segment: magic, type, key, content length, content and a CRC32 of all but
+ * the magic. Writers queue their records and whoever holds the commit lock appends all
+ * queued records with a single write and sync, so concurrent small uploads share one
+ * fsync. The index of keys to record positions lives on the heap and is rebuilt by
+ * scanning the segments on startup, a torn record at the end of the last segment ends
+ * the scan. Segments are mapped into memory and packed content is read as a slice of the
+ * mapping. Compaction copies the live records of sealed segments with much dead space to
+ * the active segment and deletes them.
+ * <p>
+ * The index and the commit lock are private to one process, so a segment directory has a
+ * single writer: the store holds a lock on a file in the directory while it is open and
+ * fails to open while another process holds it. Instances sharing the storage directory
+ * can not use this backend.
+ */
+public class SegmentBlobStore implements BlobStore, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentBlobStore.class);
+
+    private static final int MAGIC = 0x53454731;
+
+    private static final byte PUT = 1;
+
+    private static final byte DELETE = 2;
+
+    // Magic, type, key length, content length and checksum
+    private static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4 + 4;
+
+    private static final int MAX_KEY_LENGTH = 0xffff;
+
+    // Records copied together during compaction
+    private static final int COMPACTION_BATCH_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String LOCK_FILE = "lock";
+
+    private final BlobStore delegate;
+
+    private final Path directory;
+
+    private final long segmentSize;
+
+    private final int maxPackedSize;
+
+    private final boolean sync;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final Queue<Batch> pendingBatches = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    private volatile Segment activeSegment;
+
+    // Holds the lock on the segment directory until closed
+    private FileChannel lockChannel;
+
+    public SegmentBlobStore(BlobStore delegate, Path directory, long segmentSize, int maxPackedSize, boolean sync) throws IOException {
+
+        if (segmentSize > Integer.MAX_VALUE || maxPackedSize + RECORD_OVERHEAD + MAX_KEY_LENGTH > segmentSize) {
+            throw new IllegalArgumentException("Segment size must hold the largest packed record and be below 2 GB");
+        }
+
+        this.delegate = delegate;
+        this.directory = directory.toAbsolutePath().normalize();
+        this.segmentSize = segmentSize;
+        this.maxPackedSize = maxPackedSize;
+        this.sync = sync;
+
+        Files.createDirectories(this.directory);
+        lockDirectory();
+        try {
+            recover();
+        } catch (IOException | RuntimeException ex) {
+            lockChannel.close();
+            throw ex;
+        }
+    }
+
+    public BlobStore getDelegate() {
+        return delegate;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public int getPackedCount() {
+        return index.size();
+    }
+
+    public long getDeadBytes() {
+        return segments.values().stream().mapToLong(Segment::getDeadBytes).sum();
+    }
+
+    @Override
+    public BlobOutputStream create(String key) {
+
+        return new PackingOutputStream(key);
+    }
+
+    @Override
+    public void putFile(String key, Path file) throws IOException {
+
+        if (Files.size(file) > maxPackedSize || key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_LENGTH) {
+            delegate.putFile(key, file);
+            deletePacked(key);
+            return;
+        }
+
+        putPacked(key, Files.readAllBytes(file));
+        Files.delete(file);
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+
+        ByteBuffer content = read(key);
+        return content != null ? new ByteBufferInputStream(content) : delegate.get(key);
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+
+        ByteBuffer content = read(key);
+        if (content == null) {
+            return delegate.get(key, offset, length);
+        }
+        int start = (int) Math.min(offset, content.remaining());
+        int count = (int) Math.min(length, content.remaining() - start);
+        content.position(start);
+        content.limit(start + count);
+        return new ByteBufferInputStream(content.slice());
+    }
+
+    @Override
+    public boolean exists(String key) {
+
+        return index.containsKey(key) || delegate.exists(key);
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+
+        Location location = index.get(key);
+        return location != null ? location.contentLength : delegate.size(key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+
+        Location location = index.get(key);
+        if (location == null) {
+            delegate.delete(key);
+            return;
+        }
+
+        Record record = Record.delete(key, location);
+        append(List.of(record));
+        if (!record.written) {
+            throw new NoSuchFileException(key);
+        }
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+
+        Location location = index.get(source);
+        if (location == null) {
+            delegate.move(source, target);
+            deletePacked(target);
+            return;
+        }
+
+        ByteBuffer content = read(source);
+        if (content == null) {
+            throw new NoSuchFileException(source);
+        }
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+
+        // Both records are appended together, the source disappears with the target written
+        append(List.of(Record.put(target, bytes), Record.delete(source, location)));
+        deleteQuietly(target);
+    }
+
+    @Override
+    public Resource getResource(String key) throws IOException {
+
+        ByteBuffer content = read(key);
+        return content != null ? new SliceResource(content, key) : delegate.getResource(key);
+    }
+
+    /**
+     * Rewrites sealed segments whose share of dead bytes reached the threshold and
+     * returns the number of segments removed.
+     */
+    public synchronized int compact(double threshold) throws IOException {
+
+        int compacted = 0;
+        for (Segment segment : List.copyOf(segments.values())) {
+            if (segment.getId() >= activeSegment.getId() || segment.getLength() == 0
+                    || (double) segment.getDeadBytes() / segment.getLength() < threshold) {
+                continue;
+            }
+            compactSegment(segment);
+            compacted++;
+        }
+        return compacted;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        commitLock.lock();
+        try {
+            activeSegment.force();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            commitLock.unlock();
+            lockChannel.close();
+        }
+    }
+
+    private void lockDirectory() throws IOException {
+
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Held by another store of this process
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Segment directory " + directory + " is in use by another store");
+        }
+    }
+
+    private void recover() throws IOException {
+
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : directoryStream) {
+                String name = path.getFileName().toString();
+                long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, Segment.open(id, path, segmentSize));
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            long length = scan(segment, (type, key, location) -> {
+                if (type == PUT) {
+                    updateIndex(key, location);
+                } else {
+                    updateIndex(key, null);
+                    segment.addDeadBytes(location.recordLength);
+                }
+            });
+            segment.setLength(length);
+        }
+
+        if (segments.isEmpty()) {
+            Segment segment = createSegment(1);
+            segments.put(segment.getId(), segment);
+        }
+        activeSegment = segments.lastEntry().getValue();
+
+        log.info("Opened " + segments.size() + " segments with " + index.size() + " packed files");
+    }
+
+    /**
+     * Visits the valid records of a segment in order and returns the end of the last one.
+     */
+    private long scan(Segment segment, RecordVisitor visitor) {
+
+        long capacity = segment.getCapacity();
+        long position = 0;
+        while (position + RECORD_OVERHEAD <= capacity) {
+            ByteBuffer header = segment.slice(position, (int) Math.min(capacity - position, RECORD_OVERHEAD + MAX_KEY_LENGTH));
+            if (header.getInt() != MAGIC) {
+                break;
+            }
+            byte type = header.get();
+            int keyLength = header.getShort() & 0xffff;
+            if ((type != PUT && type != DELETE) || keyLength == 0 || position + RECORD_OVERHEAD + keyLength > capacity) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            header.get(key);
+            int contentLength = header.getInt();
+            long recordLength = (long) RECORD_OVERHEAD + keyLength + contentLength;
+            if (contentLength < 0 || position + recordLength > capacity) {
+                break;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(segment.slice(position + 4, (int) recordLength - 8));
+            if (segment.slice(position + recordLength - 4, 4).getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            long contentOffset = position + RECORD_OVERHEAD - 4 + keyLength;
+            visitor.visit(type, new String(key, StandardCharsets.UTF_8),
+                    new Location(segment.getId(), position, (int) recordLength, contentOffset, contentLength));
+            position += recordLength;
+        }
+        return position;
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+
+        List<Record> records = new ArrayList<>();
+        Set<String> deletedKeys = new HashSet<>();
+        scan(segment, (type, key, location) -> {
+            if (type == PUT) {
+                Location current = index.get(key);
+                if (current != null && current.segmentId == location.segmentId && current.recordOffset == location.recordOffset) {
+                    records.add(Record.copy(key, current));
+                }
+            } else if (!index.containsKey(key)) {
+                deletedKeys.add(key);
+            }
+        });
+
+        // Tombstones only matter while an older segment still holds content of the deleted key
+        Set<String> shadowedKeys = new HashSet<>();
+        if (!deletedKeys.isEmpty()) {
+            for (Segment older : segments.headMap(segment.getId()).values()) {
+                scan(older, (type, key, location) -> {
+                    if (type == PUT && deletedKeys.contains(key)) {
+                        shadowedKeys.add(key);
+                    }
+                });
+            }
+        }
+        for (String key : shadowedKeys) {
+            records.add(Record.tombstone(key));
+        }
+
+        List<Record> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (Record record : records) {
+            if (record.type == PUT) {
+                ByteBuffer content = segment.slice(record.expected.contentOffset, record.expected.contentLength);
+                record.content = new byte[content.remaining()];
+                content.get(record.content);
+            }
+            batch.add(record);
+            batchBytes += record.getLength();
+            if (batchBytes >= COMPACTION_BATCH_BYTES) {
+                append(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            append(batch);
+        }
+
+        // The copies must be on disk before the originals go
+        if (!sync) {
+            commitLock.lock();
+            try {
+                activeSegment.force();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+
+        segments.remove(segment.getId());
+        segment.delete();
+        log.info("Compacted segment " + segment.getId() + ", copied " + records.size() + " records");
+    }
+
+    private ByteBuffer read(String key) {
+
+        // A location may point to a segment that compaction just removed, the index then already points to the copy
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = segments.get(location.segmentId);
+            if (segment != null) {
+                return segment.slice(location.contentOffset, location.contentLength);
+            }
+        }
+        return null;
+    }
+
+    private void putPacked(String key, byte[] content) throws IOException {
+
+        append(List.of(Record.put(key, content)));
+        deleteQuietly(key);
+    }
+
+    private void deletePacked(String key) throws IOException {
+
+        Location location = index.get(key);
+        if (location != null) {
+            append(List.of(Record.delete(key, location)));
+        }
+    }
+
+    private void deleteQuietly(String key) {
+
+        try {
+            if (delegate.exists(key)) {
+                delegate.delete(key);
+            }
+        } catch (IOException ex) {
+            log.warn("Can not remove replaced file " + key, ex);
+        }
+    }
+
+    /**
+     * Queues the records and waits until they are appended, either by this thread or by
+     * the thread that held the commit lock meanwhile.
+     */
+    private void append(List<Record> records) throws IOException {
+
+        Batch batch = new Batch(records);
+        pendingBatches.add(batch);
+
+        commitLock.lock();
+        try {
+            if (!batch.done) {
+                commitPending();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+
+        if (batch.failure != null) {
+            throw new IOException("Can not append to segment", batch.failure);
+        }
+    }
+
+    private void commitPending() {
+
+        List<Batch> batches = new ArrayList<>();
+        Batch pending;
+        while ((pending = pendingBatches.poll()) != null) {
+            batches.add(pending);
+        }
+
+        try {
+            // Changes of this commit, checked by later records of the same commit
+            Map<String, Location> changes = new HashMap<>();
+            List<Record> written = new ArrayList<>();
+            List<ByteBuffer> buffers = new ArrayList<>();
+            long position = activeSegment.getLength();
+
+            for (Batch batch : batches) {
+                for (Record record : batch.records) {
+                    Location current = changes.containsKey(record.key) ? changes.get(record.key) : index.get(record.key);
+                    if ((record.expected != null && current != record.expected) || (record.absent && current != null)) {
+                        continue;
+                    }
+
+                    ByteBuffer buffer = record.encode();
+                    if (position + buffer.remaining() > activeSegment.getCapacity()) {
+                        activeSegment.append(buffers.toArray(new ByteBuffer[0]), position);
+                        buffers.clear();
+                        roll();
+                        position = 0;
+                    }
+
+                    record.location = new Location(activeSegment.getId(), position, buffer.remaining(),
+                            position + RECORD_OVERHEAD - 4 + record.keyBytes.length, record.content != null ? record.content.length : 0);
+                    changes.put(record.key, record.type == PUT ? record.location : null);
+                    written.add(record);
+                    buffers.add(buffer);
+                    position += buffer.remaining();
+                }
+            }
+
+            activeSegment.append(buffers.toArray(new ByteBuffer[0]), position);
+            if (sync) {
+                activeSegment.force();
+            }
+
+            // Publish the new positions only once the records are stored
+            for (Record record : written) {
+                if (record.type == PUT) {
+                    updateIndex(record.key, record.location);
+                } else {
+                    updateIndex(record.key, null);
+                    addDeadBytes(record.location);
+                }
+                record.written = true;
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (Batch batch : batches) {
+                batch.failure = ex;
+            }
+        } finally {
+            for (Batch batch : batches) {
+                batch.done = true;
+            }
+        }
+    }
+
+    private void updateIndex(String key, Location location) {
+
+        Location previous = location != null ? index.put(key, location) : index.remove(key);
+        if (previous != null) {
+            addDeadBytes(previous);
+        }
+    }
+
+    private void addDeadBytes(Location location) {
+
+        Segment segment = segments.get(location.segmentId);
+        if (segment != null) {
+            segment.addDeadBytes(location.recordLength);
+        }
+    }
+
+    private void roll() throws IOException {
+
+        activeSegment.force();
+        Segment segment = createSegment(activeSegment.getId() + 1);
+        segments.put(segment.getId(), segment);
+        activeSegment = segment;
+    }
+
+    private Segment createSegment(long id) throws IOException {
+
+        return Segment.open(id, directory.resolve(String.format("%016d", id) + SEGMENT_SUFFIX), segmentSize);
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, String key, Location location);
+    }
+
+    private static class Location {
+
+        private final long segmentId;
+
+        private final long recordOffset;
+
+        private final int recordLength;
+
+        private final long contentOffset;
+
+        private final int contentLength;
+
+        private Location(long segmentId, long recordOffset, int recordLength, long contentOffset, int contentLength) {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.contentOffset = contentOffset;
+            this.contentLength = contentLength;
+        }
+    }
+
+    private static class Record {
+
+        private final byte type;
+
+        private final String key;
+
+        private final byte[] keyBytes;
+
+        private byte[] content;
+
+        // Written only while the key is still at this location
+        private Location expected;
+
+        // Written only while the key has no content
+        private boolean absent;
+
+        private Location location;
+
+        private boolean written;
+
+        private Record(byte type, String key, byte[] content) {
+            this.type = type;
+            this.key = key;
+            this.keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            this.content = content;
+        }
+
+        static Record put(String key, byte[] content) {
+            return new Record(PUT, key, content);
+        }
+
+        static Record delete(String key, Location expected) {
+            Record record = new Record(DELETE, key, null);
+            record.expected = expected;
+            return record;
+        }
+
+        static Record copy(String key, Location expected) {
+            Record record = new Record(PUT, key, null);
+            record.expected = expected;
+            return record;
+        }
+
+        static Record tombstone(String key) {
+            Record record = new Record(DELETE, key, null);
+            record.absent = true;
+            return record;
+        }
+
+        int getLength() {
+            return RECORD_OVERHEAD + keyBytes.length + (content != null ? content.length : 0);
+        }
+
+        ByteBuffer encode() {
+
+            int contentLength = content != null ? content.length : 0;
+            ByteBuffer buffer = ByteBuffer.allocate(getLength());
+            buffer.putInt(MAGIC);
+            buffer.put(type);
+            buffer.putShort((short) keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.putInt(contentLength);
+            if (content != null) {
+                buffer.put(content);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 4, buffer.position() - 4);
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static class Batch {
+
+        private final List<Record> records;
+
+        private volatile boolean done;
+
+        private volatile Exception failure;
+
+        private Batch(List<Record> records) {
+            this.records = records;
+        }
+    }
+
+    /**
+     * Buffers content up to the packing limit, larger content is handed to the other store
+     * as soon as it exceeds the limit.
+     */
+    private class PackingOutputStream extends BlobOutputStream {
+
+        private final String key;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private BlobOutputStream spilled;
+
+        private boolean closed;
+
+        private PackingOutputStream(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+
+            if (spilled == null && buffer.size() + length > maxPackedSize) {
+                spilled = delegate.create(key);
+                buffer.writeTo(spilled);
+                buffer = null;
+            }
+            if (spilled != null) {
+                spilled.write(bytes, offset, length);
+            } else {
+                buffer.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!closed && spilled != null) {
+                spilled.flush();
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            closed = true;
+
+            if (spilled != null) {
+                spilled.commit();
+                deletePacked(key);
+            } else if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_LENGTH) {
+                try (BlobOutputStream outputStream = delegate.create(key)) {
+                    buffer.writeTo(outputStream);
+                    outputStream.commit();
+                }
+            } else {
+                putPacked(key, buffer.toByteArray());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // Nothing was packed yet, only spilled content has to be discarded
+            buffer = null;
+            if (spilled != null) {
+                spilled.close();
+            }
+        }
+    }
+}
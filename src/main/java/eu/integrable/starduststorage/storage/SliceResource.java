@@ -0,0 +1,45 @@
+package eu.integrable.starduststorage.storage;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Content packed in a segment, read straight from the mapped segment without a copy.
+ */
+public class SliceResource extends AbstractResource {
+
+    private final ByteBuffer slice;
+
+    private final String key;
+
+    public SliceResource(ByteBuffer slice, String key) {
+        this.slice = slice;
+        this.key = key;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return slice.remaining();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteBufferInputStream(slice.duplicate());
+    }
+
+    public ByteBuffer getByteBuffer() {
+        return slice.asReadOnlyBuffer();
+    }
+
+    @Override
+    public String getDescription() {
+        return "segment slice [" + key + "]";
+    }
+}
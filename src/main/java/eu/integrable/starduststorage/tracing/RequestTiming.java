@@ -0,0 +1,117 @@
+package eu.integrable.starduststorage.tracing;
+
+import eu.integrable.starduststorage.service.StorageMetrics;
+
+import java.util.Locale;
+
+/**
+ * Time spent in each phase by the request on the current thread. Every thread keeps one
+ * instance and reuses it for its sampled requests, recording a phase allocates nothing and
+ * costs a thread-local lookup when the request is not sampled.
+ */
+public class RequestTiming {
+
+    public static final String SERVER_TIMING = "Server-Timing";
+
+    private static final StorageMetrics.Phase[] PHASES = StorageMetrics.Phase.values();
+
+    private static final ThreadLocal<RequestTiming> timings = ThreadLocal.withInitial(RequestTiming::new);
+
+    private final long[] nanos = new long[PHASES.length];
+
+    private final int[] counts = new int[PHASES.length];
+
+    private long startNanos;
+
+    private boolean active;
+
+    // Answered with a Server-Timing header
+    private boolean exposed;
+
+    private RequestTiming() {
+    }
+
+    /**
+     * Timing of the current request, null when it is not sampled.
+     */
+    public static RequestTiming current() {
+
+        RequestTiming timing = timings.get();
+        return timing.active ? timing : null;
+    }
+
+    static RequestTiming start(boolean exposed) {
+
+        RequestTiming timing = timings.get();
+        timing.active = true;
+        timing.exposed = exposed;
+        timing.startNanos = System.nanoTime();
+        for (int i = 0; i < PHASES.length; i++) {
+            timing.nanos[i] = 0;
+            timing.counts[i] = 0;
+        }
+        return timing;
+    }
+
+    void stop() {
+        active = false;
+    }
+
+    /**
+     * Answers the request with a Server-Timing header, phase times are internal and only
+     * sent when enabled for everybody or once the caller turns out to be an admin.
+     */
+    public void expose() {
+        exposed = true;
+    }
+
+    public boolean isExposed() {
+        return exposed;
+    }
+
+    public void add(StorageMetrics.Phase phase, long phaseNanos) {
+
+        nanos[phase.ordinal()] += phaseNanos;
+        counts[phase.ordinal()]++;
+    }
+
+    long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Phases seen so far and the time since the request started, e.g.
+     * "metadata;dur=0.412, permission;dur=0.003, total;dur=1.207".
+     */
+    public String toServerTiming() {
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PHASES.length; i++) {
+            if (counts[i] > 0) {
+                builder.append(PHASES[i].name().toLowerCase(Locale.ROOT))
+                        .append(";dur=").append(formatMillis(nanos[i])).append(", ");
+            }
+        }
+        return builder.append("total;dur=").append(formatMillis(getElapsedNanos())).toString();
+    }
+
+    /**
+     * Phases as key=value pairs for the slow request log, e.g. "metadata_ms=0.412 metadata_count=1".
+     */
+    String toLogFields() {
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PHASES.length; i++) {
+            if (counts[i] > 0) {
+                String name = PHASES[i].name().toLowerCase(Locale.ROOT);
+                builder.append(' ').append(name).append("_ms=").append(formatMillis(nanos[i]))
+                        .append(' ').append(name).append("_count=").append(counts[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,75 @@
+package eu.integrable.starduststorage.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Times the phases of a sample of requests, answers them with a Server-Timing header and logs
+ * every request slower than the threshold, with its phases when it was sampled. The header
+ * goes to admins, or to every caller with storage.server-timing. Responses written by the
+ * handler get it from ServerTimingAdvice before the body, others once the handler returns.
+ */
+public class RequestTimingFilter extends OncePerRequestFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestTimingFilter.class);
+
+    private final double sampleRate;
+
+    private final long slowRequestNanos;
+
+    private final boolean serverTiming;
+
+    public RequestTimingFilter(double sampleRate, long slowRequestNanos, boolean serverTiming) {
+        this.sampleRate = sampleRate;
+        this.slowRequestNanos = slowRequestNanos;
+        this.serverTiming = serverTiming;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+
+        // Not sampled, only the duration is kept for the slow request log
+        if (sampleRate <= 0 || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            long start = System.nanoTime();
+            try {
+                filterChain.doFilter(request, response);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                if (slowRequestNanos > 0 && elapsed >= slowRequestNanos) {
+                    logSlowRequest(request, response, elapsed, "");
+                }
+            }
+            return;
+        }
+
+        RequestTiming timing = RequestTiming.start(serverTiming);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (timing.isExposed() && !response.isCommitted()) {
+                response.setHeader(RequestTiming.SERVER_TIMING, timing.toServerTiming());
+            }
+            long elapsed = timing.getElapsedNanos();
+            if (slowRequestNanos > 0 && elapsed >= slowRequestNanos) {
+                logSlowRequest(request, response, elapsed, timing.toLogFields());
+            }
+            timing.stop();
+        }
+    }
+
+    private static void logSlowRequest(HttpServletRequest request, HttpServletResponse response, long elapsed, String phases) {
+
+        log.warn("Slow request method={} uri={} status={} duration_ms={}{}", request.getMethod(), request.getRequestURI(),
+                response.getStatus(), RequestTiming.formatMillis(elapsed), phases);
+    }
+}
@@ -0,0 +1,170 @@
+package eu.integrable.starduststorage;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.property.CredentialsProperty;
+import eu.integrable.starduststorage.repository.GroupModelRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "storage.max-batch-files=2")
+public class FileControllerTest {
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private TestRestTemplate testRestTemplate;
+
+    @Autowired
+    private CredentialsProperty credentialsProperty;
+
+    @Autowired
+    private GroupModelRepository groupModelRepository;
+
+    @Test
+    public void uploadsAFormEncodedBodyAsRawFile() {
+
+        byte[] content = "name=value&other=1".getBytes(StandardCharsets.UTF_8);
+        HttpHeaders headers = headers();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+
+        ResponseEntity<Map> uploaded = testRestTemplate.exchange(
+                "http://localhost:" + port + "/api/v1/storage/file?filename=form.txt",
+                HttpMethod.PUT,
+                new HttpEntity<>(content, headers),
+                Map.class);
+
+        assertEquals(HttpStatus.OK, uploaded.getStatusCode());
+        assertEquals(content.length, ((Number) uploaded.getBody().get("size")).intValue());
+
+        ResponseEntity<byte[]> downloaded = testRestTemplate.exchange(
+                "http://localhost:" + port + "/api/v1/storage/file/" + uploaded.getBody().get("id"),
+                HttpMethod.GET,
+                new HttpEntity<>(headers()),
+                byte[].class);
+
+        assertEquals(HttpStatus.OK, downloaded.getStatusCode());
+        assertArrayEquals(content, downloaded.getBody());
+    }
+
+    @Test
+    public void rejectsBatchUploadsWithTooManyFiles() {
+
+        MultiValueMap<String, Object> parts = new LinkedMultiValueMap<>();
+        for (int i = 0; i < 3; i++) {
+            parts.add("files", part(new byte[]{(byte) i}, "part.bin"));
+        }
+        HttpHeaders headers = headers();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+
+        ResponseEntity<String> response = testRestTemplate.exchange(
+                "http://localhost:" + port + "/api/v1/storage/file/batch",
+                HttpMethod.POST,
+                new HttpEntity<>(parts, headers),
+                String.class);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals("At most 2 files per request", response.getBody());
+    }
+
+    @Test
+    public void releasesTheReservationOfAFailedUpload() {
+
+        String groupId = createGroup(100L);
+        HttpHeaders headers = headers();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+
+        ResponseEntity<String> response = testRestTemplate.exchange(
+                "http://localhost:" + port + "/api/v1/storage/file?filename=file.bin&group=" + groupId + "&checksum=" + "0".repeat(64),
+                HttpMethod.PUT,
+                new HttpEntity<>(new byte[40], headers),
+                String.class);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(0, groupModelRepository.findById(groupId).orElseThrow().getSize());
+    }
+
+    @Test
+    public void givesBackTheReservationOfFailedBatchParts() {
+
+        String groupId = createGroup(100L);
+
+        // Written by hand, clients refuse to send the invalid media type of the second part
+        String body = "--boundary\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"first.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n"
+                + "x".repeat(30) + "\r\n"
+                + "--boundary\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"second.bin\"\r\n"
+                + "Content-Type: invalid\r\n\r\n"
+                + "x".repeat(50) + "\r\n"
+                + "--boundary--\r\n";
+        HttpHeaders headers = headers();
+        headers.setContentType(MediaType.parseMediaType("multipart/form-data; boundary=boundary"));
+
+        ResponseEntity<String> response = testRestTemplate.exchange(
+                "http://localhost:" + port + "/api/v1/storage/file/batch?group=" + groupId,
+                HttpMethod.POST,
+                new HttpEntity<>(body.getBytes(StandardCharsets.US_ASCII), headers),
+                String.class);
+
+        // Both parts were reserved, only the stored one keeps its size
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(response.getBody().contains("Wrong media-type"));
+        assertEquals(30, groupModelRepository.findById(groupId).orElseThrow().getSize());
+    }
+
+    private String createGroup(Long quota) {
+
+        String groupId = "upload-" + UUID.randomUUID();
+        groupModelRepository.save(GroupModel.builder().id(groupId).owner("writer").quota(quota).build());
+        return groupId;
+    }
+
+    private static ByteArrayResource part(byte[] content, String filename) {
+
+        return new ByteArrayResource(content) {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+        };
+    }
+
+    private HttpHeaders headers() {
+
+        String token = JWT.create()
+                .withSubject("writer")
+                .withClaim("admin", false)
+                .withClaim("writer", true)
+                .withExpiresAt(new Date(System.currentTimeMillis() + Duration.ofHours(1).toMillis()))
+                .sign(Algorithm.HMAC256(credentialsProperty.getJwtSecret().getBytes()));
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setBearerAuth(token);
+        return httpHeaders;
+    }
+}
@@ -0,0 +1,117 @@
+package eu.integrable.starduststorage;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import eu.integrable.starduststorage.property.CredentialsProperty;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class UploadSessionControllerTest {
+
+    // The smallest chunk size accepted by default
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private TestRestTemplate testRestTemplate;
+
+    @Autowired
+    private CredentialsProperty credentialsProperty;
+
+    @Test
+    public void uploadsAFileInChunks() {
+
+        byte[] content = new byte[2 * CHUNK_SIZE + 100];
+        new Random(5).nextBytes(content);
+        String sessionId = createSession(content.length);
+
+        assertEquals(HttpStatus.OK, putChunk(sessionId, 2, chunk(content, 2)).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, putChunk(sessionId, 1, new byte[10]).getStatusCode());
+        assertEquals(HttpStatus.CONFLICT, exchange("/api/v1/storage/upload/" + sessionId + "/commit", HttpMethod.POST, null, String.class).getStatusCode());
+
+        assertEquals(HttpStatus.OK, putChunk(sessionId, 0, chunk(content, 0)).getStatusCode());
+        assertEquals(HttpStatus.OK, putChunk(sessionId, 1, chunk(content, 1)).getStatusCode());
+        ResponseEntity<Map> session = exchange("/api/v1/storage/upload/" + sessionId, HttpMethod.GET, null, Map.class);
+        assertEquals(List.of(0, 1, 2), session.getBody().get("receivedChunks"));
+
+        ResponseEntity<Map> committed = exchange("/api/v1/storage/upload/" + sessionId + "/commit", HttpMethod.POST, null, Map.class);
+        assertEquals(HttpStatus.OK, committed.getStatusCode());
+        assertEquals(DigestUtils.sha256Hex(content), committed.getBody().get("checksum"));
+
+        ResponseEntity<byte[]> downloaded = exchange("/api/v1/storage/file/" + committed.getBody().get("id"), HttpMethod.GET, null, byte[].class);
+        assertArrayEquals(content, downloaded.getBody());
+
+        // The session is gone with its commit
+        assertEquals(HttpStatus.NOT_FOUND, putChunk(sessionId, 0, chunk(content, 0)).getStatusCode());
+    }
+
+    @Test
+    public void removesAnAbortedSession() {
+
+        byte[] content = new byte[CHUNK_SIZE + 1];
+        String sessionId = createSession(content.length);
+        assertEquals(HttpStatus.OK, putChunk(sessionId, 0, chunk(content, 0)).getStatusCode());
+
+        assertEquals(HttpStatus.OK, exchange("/api/v1/storage/upload/" + sessionId, HttpMethod.DELETE, null, String.class).getStatusCode());
+
+        assertEquals(HttpStatus.NOT_FOUND, putChunk(sessionId, 1, chunk(content, 1)).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, exchange("/api/v1/storage/upload/" + sessionId, HttpMethod.GET, null, String.class).getStatusCode());
+    }
+
+    private String createSession(long size) {
+
+        ResponseEntity<Map> response = exchange("/api/v1/storage/upload?filename=chunked.bin&size=" + size + "&chunksize=" + CHUNK_SIZE,
+                HttpMethod.POST, null, Map.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return (String) response.getBody().get("id");
+    }
+
+    private ResponseEntity<String> putChunk(String sessionId, int index, byte[] chunk) {
+
+        return exchange("/api/v1/storage/upload/" + sessionId + "/" + index, HttpMethod.PUT, chunk, String.class);
+    }
+
+    private <T> ResponseEntity<T> exchange(String path, HttpMethod method, byte[] body, Class<T> responseType) {
+
+        String token = JWT.create()
+                .withSubject("writer")
+                .withClaim("admin", false)
+                .withClaim("writer", true)
+                .withExpiresAt(new Date(System.currentTimeMillis() + Duration.ofHours(1).toMillis()))
+                .sign(Algorithm.HMAC256(credentialsProperty.getJwtSecret().getBytes()));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(token);
+        if (body != null) {
+            headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        }
+        return testRestTemplate.exchange("http://localhost:" + port + path, method, new HttpEntity<>(body, headers), responseType);
+    }
+
+    private static byte[] chunk(byte[] content, int index) {
+
+        return Arrays.copyOfRange(content, index * CHUNK_SIZE, Math.min(content.length, (index + 1) * CHUNK_SIZE));
+    }
+}
@@ -0,0 +1,192 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.BlobModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.BlobModelRepository;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.InMemoryBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BlobServiceTest {
+
+    private static final byte[] CONTENT = "content stored by many files".getBytes(StandardCharsets.UTF_8);
+
+    private final StorageProperty storageProperty = new StorageProperty();
+
+    private final BlobStore blobStore = new InMemoryBlobStore();
+
+    // Rows of the blob table by id
+    private final Map<String, BlobModel> blobs = new ConcurrentHashMap<>();
+
+    // Lookups that wait for each other before any of them inserts, like two instances racing for a new blob
+    private final AtomicInteger racingLookups = new AtomicInteger();
+
+    private final CyclicBarrier lookupBarrier = new CyclicBarrier(2);
+
+    private BlobService blobService;
+
+    @BeforeEach
+    public void setUp() {
+
+        storageProperty.setDeduplication(true);
+
+        StorageMetrics storageMetrics = new StorageMetrics();
+        ReflectionTestUtils.setField(storageMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(storageMetrics, "storageProperty", storageProperty);
+        storageMetrics.init();
+
+        FileService fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(fileService, "blobStore", blobStore);
+        ReflectionTestUtils.setField(fileService, "storageMetrics", storageMetrics);
+        fileService.init();
+
+        blobService = new BlobService();
+        ReflectionTestUtils.setField(blobService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(blobService, "fileService", fileService);
+        ReflectionTestUtils.setField(blobService, "blobModelRepository", blobModelRepository());
+        ReflectionTestUtils.setField(blobService, "blobCache", mock(BlobCache.class));
+        ReflectionTestUtils.setField(blobService, "storageMetrics", storageMetrics);
+        ReflectionTestUtils.setField(blobService, "transactionTemplate", transactionTemplate());
+    }
+
+    @Test
+    public void sharesTheBlobOfIdenticalContent() throws IOException {
+
+        StoredFile first = store("first");
+        StoredFile second = store("second");
+
+        assertEquals(first.getBlob(), second.getBlob());
+        assertEquals(first.getChecksum(), first.getBlob());
+        assertEquals(2, blobs.get(first.getBlob()).getReferenceCount());
+        assertArrayEquals(CONTENT, blobStore.get(first.getBlob()).readAllBytes());
+    }
+
+    @Test
+    public void removesTheBlobWithItsLastReference() throws IOException {
+
+        StoredFile first = store("first");
+        store("second");
+        String blob = first.getBlob();
+
+        blobService.release("first", blob);
+        assertEquals(1, blobs.get(blob).getReferenceCount());
+        assertArrayEquals(CONTENT, blobStore.get(blob).readAllBytes());
+
+        blobService.release("second", blob);
+        assertFalse(blobs.containsKey(blob));
+        assertFalse(blobStore.exists(blob));
+    }
+
+    @Test
+    public void concurrentPublishesReferenceOneBlob() throws Exception {
+
+        racingLookups.set(2);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<StoredFile> first = executorService.submit(() -> store("first"));
+            Future<StoredFile> second = executorService.submit(() -> store("second"));
+
+            String blob = first.get(10, TimeUnit.SECONDS).getBlob();
+            assertEquals(blob, second.get(10, TimeUnit.SECONDS).getBlob());
+            assertEquals(1, blobs.size());
+            assertEquals(2, blobs.get(blob).getReferenceCount());
+            assertArrayEquals(CONTENT, blobStore.get(blob).readAllBytes());
+
+            // The upload losing the race referenced the blob, one release leaves it in place
+            blobService.release("first", blob);
+            assertTrue(blobStore.exists(blob));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private StoredFile store(String fileId) throws IOException {
+
+        return blobService.store(new ByteArrayInputStream(CONTENT), fileId, null);
+    }
+
+    private BlobModelRepository blobModelRepository() {
+
+        BlobModelRepository repository = mock(BlobModelRepository.class);
+        when(repository.findByIdForUpdate(anyString())).thenAnswer(invocation -> {
+            if (racingLookups.getAndDecrement() > 0) {
+                lookupBarrier.await(10, TimeUnit.SECONDS);
+            }
+            return Optional.ofNullable(blobs.get(invocation.<String>getArgument(0)));
+        });
+
+        // A second insert of the same blob violates the primary key
+        when(repository.saveAndFlush(any(BlobModel.class))).thenAnswer(invocation -> {
+            BlobModel blobModel = invocation.getArgument(0);
+            if (blobs.putIfAbsent(blobModel.getId(), blobModel) != null) {
+                throw new DataIntegrityViolationException("Duplicate blob " + blobModel.getId());
+            }
+            return blobModel;
+        });
+
+        when(repository.incrementReferences(anyString())).thenAnswer(invocation ->
+                addReferences(invocation.getArgument(0), 1));
+        when(repository.decrementReferences(anyString())).thenAnswer(invocation ->
+                addReferences(invocation.getArgument(0), -1));
+        when(repository.deleteIfUnreferenced(anyString())).thenAnswer(invocation -> {
+            AtomicInteger deleted = new AtomicInteger();
+            blobs.computeIfPresent(invocation.getArgument(0), (key, blobModel) -> {
+                if (blobModel.getReferenceCount() > 0) {
+                    return blobModel;
+                }
+                deleted.set(1);
+                return null;
+            });
+            return deleted.get();
+        });
+        return repository;
+    }
+
+    private int addReferences(String id, long count) {
+
+        BlobModel blobModel = blobs.computeIfPresent(id, (key, existing) -> {
+            existing.setReferenceCount(existing.getReferenceCount() + count);
+            return existing;
+        });
+        return blobModel != null ? 1 : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TransactionTemplate transactionTemplate() {
+
+        // Runs the work directly, none of the tested paths has to roll anything back
+        TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                invocation.<TransactionCallback<Object>>getArgument(0).doInTransaction(null));
+        return transactionTemplate;
+    }
+}
@@ -0,0 +1,53 @@
+package eu.integrable.starduststorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompressionServiceTest {
+
+    private final CompressionService compressionService = new CompressionService();
+
+    @Test
+    public void acceptsListedGzip() {
+
+        assertTrue(compressionService.acceptsGzip("gzip"));
+        assertTrue(compressionService.acceptsGzip("deflate, GZIP"));
+        assertTrue(compressionService.acceptsGzip("x-gzip"));
+        assertTrue(compressionService.acceptsGzip("br;q=1.0, gzip;q=0.5"));
+    }
+
+    @Test
+    public void rejectsMissingOrOtherCodings() {
+
+        assertFalse(compressionService.acceptsGzip(null));
+        assertFalse(compressionService.acceptsGzip(""));
+        assertFalse(compressionService.acceptsGzip("identity"));
+        assertFalse(compressionService.acceptsGzip("br, deflate"));
+    }
+
+    @Test
+    public void rejectsGzipWithZeroQuality() {
+
+        assertFalse(compressionService.acceptsGzip("gzip;q=0"));
+        assertFalse(compressionService.acceptsGzip("gzip; q=0.0, identity"));
+        assertFalse(compressionService.acceptsGzip("gzip;q=invalid"));
+    }
+
+    @Test
+    public void acceptsTheWildcard() {
+
+        assertTrue(compressionService.acceptsGzip("*"));
+        assertTrue(compressionService.acceptsGzip("identity, *;q=0.1"));
+        assertFalse(compressionService.acceptsGzip("*;q=0"));
+    }
+
+    @Test
+    public void explicitGzipWinsOverTheWildcard() {
+
+        assertFalse(compressionService.acceptsGzip("*, gzip;q=0"));
+        assertFalse(compressionService.acceptsGzip("gzip;q=0, *"));
+        assertTrue(compressionService.acceptsGzip("*;q=0, gzip"));
+    }
+}
@@ -0,0 +1,68 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.InMemoryBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FileServiceTest {
+
+    private static final String KEY = "3fa585c3-1d2e-4b8f-9c4a-6f1e2d3c4b5a";
+
+    private final StorageProperty storageProperty = new StorageProperty();
+
+    private final BlobStore blobStore = new InMemoryBlobStore();
+
+    private FileService fileService;
+
+    @BeforeEach
+    public void setUp() {
+
+        StorageMetrics storageMetrics = new StorageMetrics();
+        ReflectionTestUtils.setField(storageMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(storageMetrics, "storageProperty", storageProperty);
+        storageMetrics.init();
+
+        fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(fileService, "blobStore", blobStore);
+        ReflectionTestUtils.setField(fileService, "storageMetrics", storageMetrics);
+        fileService.init();
+    }
+
+    @Test
+    public void failedWriteKeepsTheOldContent() throws IOException {
+
+        byte[] original = "original content".getBytes(StandardCharsets.UTF_8);
+        fileService.saveFile(new ByteArrayInputStream(original), KEY);
+
+        assertThrows(IOException.class, () -> fileService.saveFile(failingStream(), KEY));
+        assertArrayEquals(original, blobStore.get(KEY).readAllBytes());
+
+        assertThrows(IOException.class, () -> fileService.saveFile(failingStream(), KEY, true));
+        assertArrayEquals(original, blobStore.get(KEY).readAllBytes());
+    }
+
+    // Content that breaks off halfway like an aborted upload
+    private static InputStream failingStream() {
+
+        return new SequenceInputStream(new ByteArrayInputStream(new byte[100_000]), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+    }
+}
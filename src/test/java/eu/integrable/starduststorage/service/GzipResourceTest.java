@@ -0,0 +1,83 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.InMemoryBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.Resource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GzipResourceTest {
+
+    private static final String KEY = "3fa585c3-1d2e-4b8f-9c4a-6f1e2d3c4b5a";
+
+    private final StorageProperty storageProperty = new StorageProperty();
+
+    private final BlobStore blobStore = new InMemoryBlobStore();
+
+    private FileService fileService;
+
+    @BeforeEach
+    public void setUp() {
+
+        StorageMetrics storageMetrics = new StorageMetrics();
+        ReflectionTestUtils.setField(storageMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(storageMetrics, "storageProperty", storageProperty);
+        storageMetrics.init();
+
+        fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(fileService, "blobStore", blobStore);
+        ReflectionTestUtils.setField(fileService, "storageMetrics", storageMetrics);
+        fileService.init();
+    }
+
+    @Test
+    public void readsCompressedContentBack() throws IOException {
+
+        byte[] content = "compressible text ".repeat(20_000).getBytes(StandardCharsets.US_ASCII);
+        StoredFile storedFile = fileService.saveFile(new ByteArrayInputStream(content), KEY, true);
+
+        assertEquals(CompressionService.GZIP, storedFile.getEncoding());
+        assertEquals(content.length, storedFile.getSize());
+        assertTrue(storedFile.getStoredSize() < content.length);
+        assertEquals(storedFile.getStoredSize(), blobStore.size(KEY));
+
+        // The length is the one of the original content, not of the stored bytes
+        Resource resource = new GzipResource(blobStore.getResource(KEY), storedFile.getSize(), storageProperty.getBufferSize());
+        assertEquals(content.length, resource.contentLength());
+        assertArrayEquals(content, read(resource));
+        assertArrayEquals(content, read(resource));
+    }
+
+    @Test
+    public void readsIncompressibleContentBack() throws IOException {
+
+        byte[] content = new byte[100_000];
+        new Random(7).nextBytes(content);
+        StoredFile storedFile = fileService.saveFile(new ByteArrayInputStream(content), KEY, true);
+
+        Resource resource = new GzipResource(blobStore.getResource(KEY), storedFile.getSize(), storageProperty.getBufferSize());
+        assertEquals(content.length, resource.contentLength());
+        assertArrayEquals(content, read(resource));
+    }
+
+    private static byte[] read(Resource resource) throws IOException {
+
+        try (InputStream inputStream = resource.getInputStream()) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
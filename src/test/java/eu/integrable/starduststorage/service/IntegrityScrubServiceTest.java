@@ -0,0 +1,270 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.FileIntegrity;
+import eu.integrable.starduststorage.model.ScrubFindingModel;
+import eu.integrable.starduststorage.model.ScrubProblem;
+import eu.integrable.starduststorage.model.ScrubStateModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.FileModelRepository;
+import eu.integrable.starduststorage.repository.ScrubFindingModelRepository;
+import eu.integrable.starduststorage.repository.ScrubStateModelRepository;
+import eu.integrable.starduststorage.storage.BlobStore;
+import eu.integrable.starduststorage.storage.InMemoryBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IntegrityScrubServiceTest {
+
+    private final StorageProperty storageProperty = new StorageProperty();
+
+    private final BlobStore blobStore = new InMemoryBlobStore();
+
+    // Files by id as the file table returns them
+    private final Map<String, FileIntegrity> files = new TreeMap<>();
+
+    // Single row of the scrub state table
+    private final AtomicReference<ScrubStateModel> storedState = new AtomicReference<>();
+
+    private final List<String> pageStarts = new ArrayList<>();
+
+    private final List<ScrubFindingModel> findings = new ArrayList<>();
+
+    // Counted down when the scrub gives up its lease at the end of a run
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private IntegrityScrubService integrityScrubService;
+
+    @BeforeEach
+    public void setUp() {
+
+        storageProperty.setScrubBatchSize(2);
+
+        StorageMetrics storageMetrics = new StorageMetrics();
+        ReflectionTestUtils.setField(storageMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(storageMetrics, "storageProperty", storageProperty);
+        storageMetrics.init();
+
+        FileService fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(fileService, "blobStore", blobStore);
+        ReflectionTestUtils.setField(fileService, "storageMetrics", storageMetrics);
+        fileService.init();
+
+        integrityScrubService = new IntegrityScrubService();
+        ReflectionTestUtils.setField(integrityScrubService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(integrityScrubService, "fileService", fileService);
+        ReflectionTestUtils.setField(integrityScrubService, "fileModelRepository", fileModelRepository());
+        ReflectionTestUtils.setField(integrityScrubService, "scrubStateModelRepository", scrubStateModelRepository());
+        ReflectionTestUtils.setField(integrityScrubService, "scrubFindingModelRepository", scrubFindingModelRepository());
+        ReflectionTestUtils.setField(integrityScrubService, "meterRegistry", new SimpleMeterRegistry());
+        integrityScrubService.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        integrityScrubService.destroy();
+    }
+
+    @Test
+    public void findsMissingTruncatedAndCorruptContent() throws Exception {
+
+        store("a", "intact content", "intact content");
+        files.put("b", file("b", "never stored"));
+        store("c", "truncated conten", "truncated content");
+        store("d", "rotten content", "intact content");
+
+        assertTrue(integrityScrubService.startScrub(true));
+        awaitRelease();
+
+        Map<String, ScrubProblem> problems = findings.stream()
+                .collect(Collectors.toMap(ScrubFindingModel::getId, ScrubFindingModel::getProblem));
+        assertEquals(Map.of("b", ScrubProblem.MISSING, "c", ScrubProblem.SIZE_MISMATCH, "d", ScrubProblem.CORRUPT), problems);
+
+        ScrubStateModel state = storedState.get();
+        assertNotNull(state.getPassEndTime());
+        assertEquals(4, state.getCheckedCount());
+        assertEquals(1, state.getMissingCount());
+        assertEquals(2, state.getCorruptCount());
+        assertEquals("d", state.getLastFileId());
+    }
+
+    @Test
+    public void resumesAfterTheCheckpoint() throws Exception {
+
+        for (String id : List.of("a", "b", "c", "d", "e")) {
+            store(id, "content of " + id, "content of " + id);
+        }
+        LocalDateTime passStartTime = LocalDateTime.now().minusHours(1);
+        storedState.set(ScrubStateModel.builder()
+                .id("scrub")
+                .lastFileId("b")
+                .passStartTime(passStartTime)
+                .checkedCount(2L)
+                .build());
+
+        assertTrue(integrityScrubService.startScrub(false));
+        awaitRelease();
+
+        // Files up to the checkpoint are not read again
+        assertEquals(List.of("b", "d", "e"), pageStarts);
+        ScrubStateModel state = storedState.get();
+        assertEquals(passStartTime, state.getPassStartTime());
+        assertEquals(5, state.getCheckedCount());
+        assertNotNull(state.getPassEndTime());
+        assertTrue(findings.isEmpty());
+    }
+
+    @Test
+    public void leavesAPassLeasedByAnotherInstanceAlone() {
+
+        storedState.set(ScrubStateModel.builder()
+                .id("scrub")
+                .lastFileId("b")
+                .passStartTime(LocalDateTime.now().minusHours(1))
+                .leaseOwner("other-instance")
+                .leaseUntil(LocalDateTime.now().plusMinutes(5))
+                .build());
+
+        assertFalse(integrityScrubService.startScrub(true));
+        assertEquals("other-instance", storedState.get().getLeaseOwner());
+        assertTrue(integrityScrubService.getReport().isRunning());
+    }
+
+    private void awaitRelease() throws InterruptedException {
+        assertTrue(released.await(10, TimeUnit.SECONDS), "Scrub did not finish");
+    }
+
+    private void store(String id, String storedContent, String recordedContent) throws IOException {
+
+        blobStore.put(id, new ByteArrayInputStream(storedContent.getBytes(StandardCharsets.UTF_8)));
+        files.put(id, file(id, recordedContent));
+    }
+
+    private static FileIntegrity file(String id, String content) {
+
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return new FileIntegrity() {
+            public String getId() {
+                return id;
+            }
+
+            public Long getSize() {
+                return (long) bytes.length;
+            }
+
+            public Long getStoredSize() {
+                return null;
+            }
+
+            public String getEncoding() {
+                return null;
+            }
+
+            public String getChecksum() {
+                return DigestUtils.sha256Hex(bytes);
+            }
+
+            public String getBlob() {
+                return null;
+            }
+        };
+    }
+
+    private FileModelRepository fileModelRepository() {
+
+        FileModelRepository repository = mock(FileModelRepository.class);
+        when(repository.existsById(anyString())).thenReturn(true);
+        when(repository.findIntegrityPage(anyString(), any(Pageable.class))).thenAnswer(invocation -> {
+            String after = invocation.getArgument(0);
+            Pageable pageable = invocation.getArgument(1);
+            pageStarts.add(after);
+            return files.values().stream()
+                    .filter(file -> file.getId().compareTo(after) > 0)
+                    .limit(pageable.getPageSize())
+                    .collect(Collectors.toList());
+        });
+        return repository;
+    }
+
+    private ScrubStateModelRepository scrubStateModelRepository() {
+
+        ScrubStateModelRepository repository = mock(ScrubStateModelRepository.class);
+        when(repository.findById("scrub")).thenAnswer(invocation -> Optional.ofNullable(storedState.get()));
+        when(repository.existsById("scrub")).thenAnswer(invocation -> storedState.get() != null);
+        when(repository.save(any(ScrubStateModel.class))).thenAnswer(invocation -> {
+            storedState.set(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        when(repository.saveAndFlush(any(ScrubStateModel.class))).thenAnswer(invocation -> {
+            storedState.set(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+
+        // The conditional updates of the lease
+        when(repository.claim(eq("scrub"), anyString(), any(LocalDateTime.class), any(LocalDateTime.class))).thenAnswer(invocation -> {
+            ScrubStateModel state = storedState.get();
+            String owner = invocation.getArgument(1);
+            LocalDateTime now = invocation.getArgument(2);
+            if (state == null || !(owner.equals(state.getLeaseOwner()) || state.getLeaseUntil() == null || state.getLeaseUntil().isBefore(now))) {
+                return 0;
+            }
+            state.setLeaseOwner(owner);
+            state.setLeaseUntil(invocation.getArgument(3));
+            return 1;
+        });
+        when(repository.unclaim(eq("scrub"), anyString())).thenAnswer(invocation -> {
+            ScrubStateModel state = storedState.get();
+            if (state == null || !invocation.getArgument(1).equals(state.getLeaseOwner())) {
+                return 0;
+            }
+            state.setLeaseOwner(null);
+            state.setLeaseUntil(null);
+            released.countDown();
+            return 1;
+        });
+        return repository;
+    }
+
+    private ScrubFindingModelRepository scrubFindingModelRepository() {
+
+        ScrubFindingModelRepository repository = mock(ScrubFindingModelRepository.class);
+        when(repository.findAll(any(Pageable.class))).thenReturn(Page.empty());
+        when(repository.saveAll(anyList())).thenAnswer(invocation -> {
+            List<ScrubFindingModel> saved = invocation.getArgument(0);
+            findings.addAll(saved);
+            return saved;
+        });
+        return repository;
+    }
+}
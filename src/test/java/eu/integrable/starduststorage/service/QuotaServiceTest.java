@@ -0,0 +1,135 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.FileModel;
+import eu.integrable.starduststorage.model.GroupModel;
+import eu.integrable.starduststorage.repository.FileModelRepository;
+import eu.integrable.starduststorage.repository.GroupModelRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+public class QuotaServiceTest {
+
+    @Autowired
+    private QuotaService quotaService;
+
+    @Autowired
+    private GroupModelRepository groupModelRepository;
+
+    @Autowired
+    private FileModelRepository fileModelRepository;
+
+    @Test
+    public void reservesUpToTheQuota() {
+
+        String groupId = createGroup(100L);
+
+        assertTrue(quotaService.reserve(groupId, 60));
+        assertTrue(quotaService.reserve(groupId, 40));
+        assertFalse(quotaService.reserve(groupId, 1));
+        assertEquals(100, size(groupId));
+
+        quotaService.release(groupId, 40);
+        assertEquals(60, size(groupId));
+        assertTrue(quotaService.reserve(groupId, 40));
+    }
+
+    @Test
+    public void movesTheSizeOfAFileBetweenGroups() {
+
+        String source = createGroup(null);
+        String target = createGroup(100L);
+        FileModel fileModel = createFile(source, 30);
+
+        fileModel.setGroup(groupModelRepository.findById(target).orElseThrow());
+        assertEquals(QuotaService.MoveResult.MOVED, quotaService.moveFile(fileModel, source));
+
+        assertEquals(0, size(source));
+        assertEquals(30, size(target));
+        assertEquals(target, fileModelRepository.findById(fileModel.getId()).orElseThrow().getGroup().getId());
+    }
+
+    @Test
+    public void leavesAFileWhenTheNewGroupIsFull() {
+
+        String source = createGroup(null);
+        String target = createGroup(20L);
+        FileModel fileModel = createFile(source, 30);
+
+        fileModel.setGroup(groupModelRepository.findById(target).orElseThrow());
+        assertEquals(QuotaService.MoveResult.QUOTA_REACHED, quotaService.moveFile(fileModel, source));
+
+        assertEquals(30, size(source));
+        assertEquals(0, size(target));
+        assertEquals(source, fileModelRepository.findById(fileModel.getId()).orElseThrow().getGroup().getId());
+    }
+
+    @Test
+    public void leavesAFileMovedByAnotherRequest() {
+
+        String source = createGroup(null);
+        String target = createGroup(null);
+        FileModel fileModel = createFile(source, 30);
+
+        // The request read the file before another one moved it out of the target group
+        fileModel.setGroup(groupModelRepository.findById(source).orElseThrow());
+        assertEquals(QuotaService.MoveResult.FILE_CHANGED, quotaService.moveFile(fileModel, target));
+
+        assertEquals(30, size(source));
+        assertEquals(0, size(target));
+    }
+
+    @Test
+    public void savesNoFilesIntoADeletedGroup() {
+
+        String groupId = createGroup(null);
+        GroupModel groupModel = groupModelRepository.findById(groupId).orElseThrow();
+        groupModelRepository.deleteById(groupId);
+
+        FileModel fileModel = file(groupModel, 10);
+        assertFalse(quotaService.saveFiles(groupId, List.of(fileModel)));
+        assertFalse(fileModelRepository.existsById(fileModel.getId()));
+    }
+
+    private String createGroup(Long quota) {
+
+        String groupId = "quota-" + UUID.randomUUID();
+        groupModelRepository.save(GroupModel.builder().id(groupId).owner("writer").quota(quota).build());
+        return groupId;
+    }
+
+    private FileModel createFile(String groupId, long size) {
+
+        assertTrue(quotaService.reserve(groupId, size));
+        FileModel fileModel = file(groupModelRepository.findById(groupId).orElseThrow(), size);
+        assertTrue(quotaService.saveFiles(groupId, List.of(fileModel)));
+        return fileModelRepository.findById(fileModel.getId()).orElseThrow();
+    }
+
+    private static FileModel file(GroupModel groupModel, long size) {
+
+        return FileModel.builder()
+                .id(UUID.randomUUID().toString())
+                .filename("file.bin")
+                .owner("writer")
+                .group(groupModel)
+                .size(size)
+                .checksum("0".repeat(64))
+                .mediaType("application/octet-stream")
+                .created(true)
+                .build();
+    }
+
+    private long size(String groupId) {
+
+        return groupModelRepository.findById(groupId).orElseThrow().getSize();
+    }
+}
@@ -0,0 +1,136 @@
+package eu.integrable.starduststorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TarOutputStreamTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    @Test
+    public void writesUstarEntriesPaddedToBlocks() throws IOException {
+
+        byte[] first = "abc".getBytes(StandardCharsets.US_ASCII);
+        byte[] second = new byte[BLOCK_SIZE];
+        Arrays.fill(second, (byte) 7);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        TarOutputStream tarOutputStream = new TarOutputStream(outputStream);
+        tarOutputStream.putEntry("a.txt", first.length, 1600000000L);
+        tarOutputStream.write(first);
+        tarOutputStream.closeEntry();
+        tarOutputStream.putEntry("b", second.length, 0);
+        tarOutputStream.write(second);
+        tarOutputStream.closeEntry();
+        tarOutputStream.finish();
+        byte[] tar = outputStream.toByteArray();
+
+        // Header and one padded block per entry, two empty blocks at the end
+        assertEquals(6 * BLOCK_SIZE, tar.length);
+
+        byte[] header = block(tar, 0);
+        assertHeader(header, "a.txt", first.length, '0');
+        assertEquals(1600000000L, octal(header, 136, 12));
+        assertArrayEquals(first, Arrays.copyOfRange(tar, BLOCK_SIZE, BLOCK_SIZE + first.length));
+        assertArrayEquals(new byte[BLOCK_SIZE - first.length], Arrays.copyOfRange(tar, BLOCK_SIZE + first.length, 2 * BLOCK_SIZE));
+
+        assertHeader(block(tar, 2), "b", second.length, '0');
+        assertArrayEquals(second, block(tar, 3));
+
+        assertArrayEquals(new byte[2 * BLOCK_SIZE], Arrays.copyOfRange(tar, 4 * BLOCK_SIZE, tar.length));
+    }
+
+    @Test
+    public void writesLongNamesAsPaxHeaders() throws IOException {
+
+        String name = "directory/".repeat(15) + "file.txt";
+        byte[] tar = singleEntry(name, new byte[]{1, 2});
+
+        assertPaxRecord(tar, block(tar, 0), name);
+
+        // The ustar header keeps the first 100 characters
+        assertHeader(block(tar, 2), name.substring(0, 100), 2, '0');
+        assertArrayEquals(new byte[]{1, 2}, Arrays.copyOfRange(tar, 3 * BLOCK_SIZE, 3 * BLOCK_SIZE + 2));
+        assertEquals(6 * BLOCK_SIZE, tar.length);
+    }
+
+    @Test
+    public void writesNonAsciiNamesAsPaxHeaders() throws IOException {
+
+        byte[] tar = singleEntry("größe.txt", new byte[0]);
+
+        assertPaxRecord(tar, block(tar, 0), "größe.txt");
+        assertHeader(block(tar, 2), "gr__e.txt", 0, '0');
+
+        // An empty entry has no data block
+        assertEquals(5 * BLOCK_SIZE, tar.length);
+    }
+
+    @Test
+    public void rejectsEntriesOfTheWrongLength() throws IOException {
+
+        TarOutputStream tarOutputStream = new TarOutputStream(new ByteArrayOutputStream());
+        tarOutputStream.putEntry("a", 2, 0);
+        assertThrows(IOException.class, () -> tarOutputStream.write(new byte[3]));
+
+        tarOutputStream.write(1);
+        assertThrows(IOException.class, tarOutputStream::closeEntry);
+    }
+
+    private static byte[] singleEntry(String name, byte[] content) throws IOException {
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        TarOutputStream tarOutputStream = new TarOutputStream(outputStream);
+        tarOutputStream.putEntry(name, content.length, 0);
+        tarOutputStream.write(content);
+        tarOutputStream.closeEntry();
+        tarOutputStream.finish();
+        return outputStream.toByteArray();
+    }
+
+    // The pax record carries the full name and starts with its own length in bytes
+    private static void assertPaxRecord(byte[] tar, byte[] paxHeader, String name) {
+
+        assertEquals('x', paxHeader[156]);
+        int length = (int) octal(paxHeader, 124, 12);
+        String record = new String(Arrays.copyOfRange(tar, BLOCK_SIZE, BLOCK_SIZE + length), StandardCharsets.UTF_8);
+        assertEquals(length + " path=" + name + "\n", record);
+        assertArrayEquals(new byte[BLOCK_SIZE - length], Arrays.copyOfRange(tar, BLOCK_SIZE + length, 2 * BLOCK_SIZE));
+    }
+
+    private static void assertHeader(byte[] header, String name, long size, char type) {
+
+        assertEquals(name, new String(header, 0, name.length(), StandardCharsets.US_ASCII));
+        if (name.length() < 100) {
+            assertEquals(0, header[name.length()]);
+        }
+        assertEquals(size, octal(header, 124, 12));
+        assertEquals(type, header[156]);
+        assertEquals("ustar\0" + "00", new String(header, 257, 8, StandardCharsets.US_ASCII));
+
+        // Unsigned sum of the header with the checksum field counted as spaces
+        long checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        assertEquals(checksum, octal(header, 148, 7));
+    }
+
+    private static byte[] block(byte[] tar, int index) {
+
+        return Arrays.copyOfRange(tar, index * BLOCK_SIZE, (index + 1) * BLOCK_SIZE);
+    }
+
+    private static long octal(byte[] header, int offset, int length) {
+
+        return Long.parseLong(new String(header, offset, length - 1, StandardCharsets.US_ASCII), 8);
+    }
+}
@@ -0,0 +1,169 @@
+package eu.integrable.starduststorage.service;
+
+import eu.integrable.starduststorage.model.UploadSessionModel;
+import eu.integrable.starduststorage.property.StorageProperty;
+import eu.integrable.starduststorage.repository.UploadSessionModelRepository;
+import eu.integrable.starduststorage.storage.InMemoryBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class UploadSessionServiceTest {
+
+    private static final int CHUNK_SIZE = 10;
+
+    private final StorageProperty storageProperty = new StorageProperty();
+
+    // Three chunks, the last one shorter
+    private final byte[] content = new byte[25];
+
+    private UploadSessionService uploadSessionService;
+
+    private UploadSessionModel session;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+
+        storageProperty.setDirectory(directory.toString());
+        new Random(3).nextBytes(content);
+
+        StorageMetrics storageMetrics = new StorageMetrics();
+        ReflectionTestUtils.setField(storageMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(storageMetrics, "storageProperty", storageProperty);
+        storageMetrics.init();
+
+        FileService fileService = new FileService();
+        ReflectionTestUtils.setField(fileService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(fileService, "blobStore", new InMemoryBlobStore());
+        ReflectionTestUtils.setField(fileService, "storageMetrics", storageMetrics);
+        fileService.init();
+
+        uploadSessionService = new UploadSessionService();
+        ReflectionTestUtils.setField(uploadSessionService, "storageProperty", storageProperty);
+        ReflectionTestUtils.setField(uploadSessionService, "fileService", fileService);
+        ReflectionTestUtils.setField(uploadSessionService, "uploadSessionModelRepository", mock(UploadSessionModelRepository.class));
+
+        session = UploadSessionModel.builder()
+                .id(UUID.randomUUID().toString())
+                .filename("file.bin")
+                .size((long) content.length)
+                .chunkSize((long) CHUNK_SIZE)
+                .build();
+        uploadSessionService.createSessionDirectory(session.getId());
+    }
+
+    @Test
+    public void assemblesChunksUploadedOutOfOrder() throws IOException {
+
+        for (int index : new int[]{2, 0, 1}) {
+            assertTrue(saveChunk(index, chunk(index)));
+        }
+        assertEquals(List.of(0, 1, 2), uploadSessionService.getReceivedChunks(session.getId()));
+
+        try (UploadSessionService.Commit commit = uploadSessionService.commit(session)) {
+            StoredFile storedFile = commit.digest();
+            assertEquals(DigestUtils.sha256Hex(content), storedFile.getChecksum());
+            assertEquals(content.length, storedFile.getSize());
+            assertArrayEquals(content, Files.readAllBytes(commit.start()));
+        }
+    }
+
+    @Test
+    public void hashesAReplacedChunkAgain() throws IOException {
+
+        assertTrue(saveChunk(0, new byte[CHUNK_SIZE]));
+        assertTrue(saveChunk(1, chunk(1)));
+        assertTrue(saveChunk(2, chunk(2)));
+
+        // Uploaded again with the right content after the wrong one was hashed
+        assertTrue(saveChunk(0, chunk(0)));
+
+        try (UploadSessionService.Commit commit = uploadSessionService.commit(session)) {
+            assertEquals(DigestUtils.sha256Hex(content), commit.digest().getChecksum());
+        }
+    }
+
+    @Test
+    public void rejectsChunksThatDoNotVerify() throws IOException {
+
+        assertFalse(saveChunk(0, Arrays.copyOf(chunk(0), CHUNK_SIZE - 1)));
+        assertFalse(uploadSessionService.saveChunk(session, 1, new ByteArrayInputStream(chunk(1)), DigestUtils.sha256Hex(chunk(0))));
+        assertTrue(uploadSessionService.saveChunk(session, 1, new ByteArrayInputStream(chunk(1)), DigestUtils.sha256Hex(chunk(1))));
+
+        assertEquals(List.of(1), uploadSessionService.getReceivedChunks(session.getId()));
+    }
+
+    @Test
+    public void refusesToCommitWithMissingChunks() throws IOException {
+
+        assertTrue(saveChunk(0, chunk(0)));
+        assertTrue(saveChunk(2, chunk(2)));
+
+        try (UploadSessionService.Commit commit = uploadSessionService.commit(session)) {
+            assertEquals(List.of(0, 2), commit.getReceivedChunks());
+            assertThrows(IOException.class, commit::digest);
+        }
+    }
+
+    @Test
+    public void keepsChunksOutOfASessionBeingCommitted() throws IOException {
+
+        assertTrue(saveChunk(0, chunk(0)));
+
+        try (UploadSessionService.Commit commit = uploadSessionService.commit(session)) {
+            assertThrows(UploadSessionLockedException.class, () -> saveChunk(1, chunk(1)));
+            assertThrows(UploadSessionLockedException.class, () -> uploadSessionService.commit(session));
+            assertThrows(UploadSessionLockedException.class, () -> uploadSessionService.abortSession(session));
+        }
+
+        // Chunks are accepted again once the commit is given up
+        assertTrue(saveChunk(1, chunk(1)));
+    }
+
+    @Test
+    public void reportsAnAbortedSessionAsMissing() throws IOException {
+
+        assertTrue(saveChunk(0, chunk(0)));
+        uploadSessionService.abortSession(session);
+
+        assertFalse(Files.exists(directory.resolve(".sessions").resolve(session.getId())));
+        assertThrows(UploadSessionNotFoundException.class, () -> saveChunk(1, chunk(1)));
+        assertThrows(UploadSessionNotFoundException.class, () -> uploadSessionService.getReceivedChunks(session.getId()));
+        assertThrows(UploadSessionNotFoundException.class, () -> uploadSessionService.commit(session));
+
+        // Aborting again only removes what is left
+        uploadSessionService.abortSession(session);
+    }
+
+    private boolean saveChunk(int index, byte[] chunk) throws IOException {
+
+        return uploadSessionService.saveChunk(session, index, new ByteArrayInputStream(chunk), null);
+    }
+
+    private byte[] chunk(int index) {
+
+        return Arrays.copyOfRange(content, index * CHUNK_SIZE, Math.min(content.length, (index + 1) * CHUNK_SIZE));
+    }
+}
@@ -0,0 +1,259 @@
+package eu.integrable.starduststorage.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Behaviour every blob store has to provide, run once for each implementation.
+ */
+public abstract class BlobStoreConformanceTest {
+
+    private static final String KEY = "3fa585c3-1d2e-4b8f-9c4a-6f1e2d3c4b5a";
+
+    private BlobStore blobStore;
+
+    @TempDir
+    Path uploadDirectory;
+
+    protected abstract BlobStore createBlobStore() throws IOException;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        blobStore = createBlobStore();
+    }
+
+    @Test
+    public void putAndGet() throws IOException {
+
+        byte[] content = randomContent(300_000);
+        assertEquals(content.length, blobStore.put(KEY, new ByteArrayInputStream(content)));
+
+        assertTrue(blobStore.exists(KEY));
+        assertEquals(content.length, blobStore.size(KEY));
+        assertArrayEquals(content, read(blobStore.get(KEY)));
+    }
+
+    @Test
+    public void putReplacesContent() throws IOException {
+
+        blobStore.put(KEY, new ByteArrayInputStream(randomContent(1000)));
+        byte[] content = "replaced".getBytes(StandardCharsets.UTF_8);
+        blobStore.put(KEY, new ByteArrayInputStream(content));
+
+        assertEquals(content.length, blobStore.size(KEY));
+        assertArrayEquals(content, read(blobStore.get(KEY)));
+    }
+
+    @Test
+    public void readersSeeTheOldContentDuringARewrite() throws IOException {
+
+        byte[] original = randomContent(300_000);
+        blobStore.put(KEY, new ByteArrayInputStream(original));
+        byte[] replacement = randomContent(200_000);
+
+        try (InputStream openedBefore = blobStore.get(KEY)) {
+            try (BlobOutputStream outputStream = blobStore.create(KEY)) {
+                outputStream.write(replacement, 0, 100_000);
+
+                // Half written, readers still get all of the old content
+                assertEquals(original.length, blobStore.size(KEY));
+                assertArrayEquals(original, read(blobStore.get(KEY)));
+                assertArrayEquals(original, read(blobStore.getResource(KEY).getInputStream()));
+
+                outputStream.write(replacement, 100_000, 100_000);
+                outputStream.commit();
+            }
+
+            // A reader opened before the replacement finishes with the content it started on
+            assertArrayEquals(original, openedBefore.readAllBytes());
+        }
+
+        assertEquals(replacement.length, blobStore.size(KEY));
+        assertArrayEquals(replacement, read(blobStore.get(KEY)));
+    }
+
+    @Test
+    public void createStreamsContent() throws IOException {
+
+        byte[] content = randomContent(100_000);
+        try (BlobOutputStream outputStream = blobStore.create(KEY)) {
+            for (int offset = 0; offset < content.length; offset += 7000) {
+                outputStream.write(content, offset, Math.min(7000, content.length - offset));
+            }
+            outputStream.commit();
+        }
+
+        assertArrayEquals(content, read(blobStore.get(KEY)));
+    }
+
+    @Test
+    public void closingWithoutCommitKeepsTheOldContent() throws IOException {
+
+        byte[] original = randomContent(1000);
+        blobStore.put(KEY, new ByteArrayInputStream(original));
+
+        // Small content and content spilling over any packing limit
+        for (int size : new int[]{10, 300_000}) {
+            try (BlobOutputStream outputStream = blobStore.create(KEY)) {
+                outputStream.write(randomContent(size));
+            }
+            assertEquals(original.length, blobStore.size(KEY));
+            assertArrayEquals(original, read(blobStore.get(KEY)));
+        }
+    }
+
+    @Test
+    public void closingWithoutCommitCreatesNothing() throws IOException {
+
+        try (BlobOutputStream outputStream = blobStore.create(KEY)) {
+            outputStream.write(randomContent(300_000));
+        }
+
+        assertFalse(blobStore.exists(KEY));
+        assertThrows(NoSuchFileException.class, () -> blobStore.size(KEY));
+    }
+
+    @Test
+    public void emptyContent() throws IOException {
+
+        blobStore.put(KEY, new ByteArrayInputStream(new byte[0]));
+
+        assertTrue(blobStore.exists(KEY));
+        assertEquals(0, blobStore.size(KEY));
+        assertArrayEquals(new byte[0], read(blobStore.get(KEY)));
+    }
+
+    @Test
+    public void getRange() throws IOException {
+
+        byte[] content = randomContent(10_000);
+        blobStore.put(KEY, new ByteArrayInputStream(content));
+
+        assertArrayEquals(slice(content, 0, 10), read(blobStore.get(KEY, 0, 10)));
+        assertArrayEquals(slice(content, 4321, 1000), read(blobStore.get(KEY, 4321, 1000)));
+        assertArrayEquals(slice(content, 9990, 10), read(blobStore.get(KEY, 9990, 10)));
+    }
+
+    @Test
+    public void getRangeIsCutAtTheEnd() throws IOException {
+
+        byte[] content = randomContent(1000);
+        blobStore.put(KEY, new ByteArrayInputStream(content));
+
+        assertArrayEquals(slice(content, 900, 100), read(blobStore.get(KEY, 900, 500)));
+        assertArrayEquals(new byte[0], read(blobStore.get(KEY, 2000, 10)));
+    }
+
+    @Test
+    public void keysAreIndependent() throws IOException {
+
+        blobStore.put("a", new ByteArrayInputStream(new byte[]{1}));
+        blobStore.put(".upload-temporary", new ByteArrayInputStream(new byte[]{2, 2}));
+        blobStore.put(KEY, new ByteArrayInputStream(new byte[]{3, 3, 3}));
+
+        assertArrayEquals(new byte[]{1}, read(blobStore.get("a")));
+        assertArrayEquals(new byte[]{2, 2}, read(blobStore.get(".upload-temporary")));
+        assertArrayEquals(new byte[]{3, 3, 3}, read(blobStore.get(KEY)));
+    }
+
+    @Test
+    public void delete() throws IOException {
+
+        blobStore.put(KEY, new ByteArrayInputStream(randomContent(100)));
+        blobStore.delete(KEY);
+
+        assertFalse(blobStore.exists(KEY));
+        assertThrows(NoSuchFileException.class, () -> blobStore.delete(KEY));
+    }
+
+    @Test
+    public void missingKey() {
+
+        assertFalse(blobStore.exists(KEY));
+        assertThrows(NoSuchFileException.class, () -> blobStore.get(KEY).close());
+        assertThrows(NoSuchFileException.class, () -> blobStore.get(KEY, 0, 10).close());
+        assertThrows(NoSuchFileException.class, () -> blobStore.size(KEY));
+        assertThrows(NoSuchFileException.class, () -> blobStore.delete(KEY));
+        assertThrows(NoSuchFileException.class, () -> blobStore.getResource(KEY));
+        assertThrows(NoSuchFileException.class, () -> blobStore.move(KEY, "target"));
+    }
+
+    @Test
+    public void move() throws IOException {
+
+        byte[] content = randomContent(5000);
+        blobStore.put(".upload-temporary", new ByteArrayInputStream(content));
+        blobStore.put(KEY, new ByteArrayInputStream(randomContent(10)));
+
+        blobStore.move(".upload-temporary", KEY);
+
+        assertFalse(blobStore.exists(".upload-temporary"));
+        assertArrayEquals(content, read(blobStore.get(KEY)));
+    }
+
+    @Test
+    public void putFileTakesOverTheFile() throws IOException {
+
+        for (int length : new int[]{0, 100, 300_000}) {
+            byte[] content = randomContent(length);
+            Path file = Files.write(uploadDirectory.resolve("data"), content);
+
+            blobStore.putFile(KEY, file);
+
+            assertFalse(Files.exists(file));
+            assertEquals(length, blobStore.size(KEY));
+            assertArrayEquals(content, read(blobStore.get(KEY)));
+        }
+    }
+
+    @Test
+    public void resourceCanBeReadTwice() throws IOException {
+
+        byte[] content = randomContent(2000);
+        blobStore.put(KEY, new ByteArrayInputStream(content));
+
+        Resource resource = blobStore.getResource(KEY);
+        assertTrue(resource.exists());
+        assertEquals(content.length, resource.contentLength());
+        assertArrayEquals(content, read(resource.getInputStream()));
+        assertArrayEquals(content, read(resource.getInputStream()));
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+
+        try (inputStream) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private static byte[] slice(byte[] content, int offset, int length) {
+
+        byte[] slice = new byte[length];
+        System.arraycopy(content, offset, slice, 0, length);
+        return slice;
+    }
+
+    private static byte[] randomContent(int length) {
+
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
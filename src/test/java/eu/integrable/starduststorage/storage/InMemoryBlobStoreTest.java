@@ -0,0 +1,9 @@
+package eu.integrable.starduststorage.storage;
+
+public class InMemoryBlobStoreTest extends BlobStoreConformanceTest {
+
+    @Override
+    protected BlobStore createBlobStore() {
+        return new InMemoryBlobStore();
+    }
+}
@@ -0,0 +1,80 @@
+package eu.integrable.starduststorage.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocalBlobStoreTest extends BlobStoreConformanceTest {
+
+    @TempDir
+    Path directory;
+
+    @Override
+    protected BlobStore createBlobStore() {
+        return new LocalBlobStore(directory, 2);
+    }
+
+    @Test
+    public void readsFilesOfTheFlatLayout() throws IOException {
+
+        Files.write(directory.resolve("abcdef"), new byte[]{1, 2, 3});
+        LocalBlobStore blobStore = new LocalBlobStore(directory, 2);
+
+        assertTrue(blobStore.exists("abcdef"));
+        assertArrayEquals(new byte[]{1, 2, 3}, blobStore.get("abcdef").readAllBytes());
+    }
+
+    @Test
+    public void writesTheShardedLayout() throws IOException {
+
+        new LocalBlobStore(directory, 2).put("abcdef", new ByteArrayInputStream(new byte[]{1}));
+
+        assertTrue(Files.exists(directory.resolve("ab").resolve("cd").resolve("abcdef")));
+    }
+
+    @Test
+    public void leavesNoTemporaryFileWithoutCommit() throws IOException {
+
+        try (BlobOutputStream outputStream = new LocalBlobStore(directory, 2).create("abcdef")) {
+            outputStream.write(new byte[]{1, 2, 3});
+        }
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void deletesOldTemporaryFiles() throws IOException {
+
+        LocalBlobStore blobStore = new LocalBlobStore(directory, 2);
+        blobStore.put("abcdef", new ByteArrayInputStream(new byte[]{1}));
+        Path shard = directory.resolve("ab").resolve("cd");
+        Path interrupted = Files.write(shard.resolve(".abcdef.1b4e28ba.tmp"), new byte[]{2});
+        Files.setLastModifiedTime(interrupted, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+        Path inProgress = Files.write(shard.resolve(".abcdef.6fa459ea.tmp"), new byte[]{3});
+        Path segments = Files.createDirectories(directory.resolve(".segments"));
+        Path segmentFile = Files.write(segments.resolve(".other.tmp"), new byte[]{4});
+        Files.setLastModifiedTime(segmentFile, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+
+        assertEquals(1, blobStore.deleteTemporaryFiles(Instant.now().minus(Duration.ofHours(1))));
+
+        assertFalse(Files.exists(interrupted));
+        assertTrue(Files.exists(inProgress));
+        assertTrue(Files.exists(segmentFile));
+        assertArrayEquals(new byte[]{1}, blobStore.get("abcdef").readAllBytes());
+    }
+}
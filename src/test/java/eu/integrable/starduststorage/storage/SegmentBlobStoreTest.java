@@ -0,0 +1,257 @@
+package eu.integrable.starduststorage.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentBlobStoreTest extends BlobStoreConformanceTest {
+
+    private static final int SEGMENT_SIZE = 256 * 1024;
+
+    private static final int MAX_PACKED_SIZE = 16 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private final List<SegmentBlobStore> openStores = new ArrayList<>();
+
+    @Override
+    protected BlobStore createBlobStore() throws IOException {
+        // Apart from the stores of the tests below, a segment directory is opened by one store at a time
+        return open(directory.resolve("conformance"));
+    }
+
+    @AfterEach
+    public void closeStores() throws IOException {
+        for (SegmentBlobStore store : openStores) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void packsSmallAndStoresLargeFilesAsFiles() throws IOException {
+
+        SegmentBlobStore store = open();
+        store.put("small", new ByteArrayInputStream(content(1, MAX_PACKED_SIZE)));
+        store.put("large", new ByteArrayInputStream(content(2, MAX_PACKED_SIZE + 1)));
+
+        assertEquals(1, store.getPackedCount());
+        assertTrue(Files.exists(directory.resolve("files").resolve("large")));
+        assertFalse(Files.exists(directory.resolve("files").resolve("small")));
+        assertTrue(store.getResource("small") instanceof SliceResource);
+    }
+
+    @Test
+    public void replacingSwitchesBetweenPackedAndFile() throws IOException {
+
+        SegmentBlobStore store = open();
+        store.put("key", new ByteArrayInputStream(content(1, 100)));
+        store.put("key", new ByteArrayInputStream(content(2, MAX_PACKED_SIZE * 2)));
+        assertEquals(0, store.getPackedCount());
+        assertArrayEquals(content(2, MAX_PACKED_SIZE * 2), store.get("key").readAllBytes());
+
+        store.put("key", new ByteArrayInputStream(content(3, 100)));
+        assertEquals(1, store.getPackedCount());
+        assertFalse(store.getDelegate().exists("key"));
+        assertArrayEquals(content(3, 100), store.get("key").readAllBytes());
+    }
+
+    @Test
+    public void indexIsRecoveredFromSegments() throws IOException {
+
+        SegmentBlobStore store = open();
+        for (int i = 0; i < 100; i++) {
+            store.put("key-" + i, new ByteArrayInputStream(content(i, 5000)));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            store.delete("key-" + i);
+        }
+        store.put("key-1", new ByteArrayInputStream(content(1000, 10)));
+        store.move("key-3", "moved");
+        store.close();
+        openStores.remove(store);
+
+        SegmentBlobStore reopened = open();
+        assertTrue(reopened.getSegmentCount() > 1);
+        assertEquals(50, reopened.getPackedCount());
+        assertFalse(reopened.exists("key-0"));
+        assertFalse(reopened.exists("key-3"));
+        assertArrayEquals(content(1000, 10), reopened.get("key-1").readAllBytes());
+        assertArrayEquals(content(3, 5000), reopened.get("moved").readAllBytes());
+        assertArrayEquals(content(99, 5000), reopened.get("key-99").readAllBytes());
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsIgnored() throws IOException {
+
+        SegmentBlobStore store = open();
+        store.put("complete", new ByteArrayInputStream(content(1, 1000)));
+        store.put("torn", new ByteArrayInputStream(content(2, 1000)));
+        store.close();
+        openStores.remove(store);
+
+        // Damage the checksum at the end of the second record, records have 15 bytes besides key and content
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+            long checksumOffset = (15 + "complete".length() + 1000) + (15 + "torn".length() + 1000) - 4;
+            file.seek(checksumOffset);
+            file.write(~file.read());
+        }
+
+        SegmentBlobStore reopened = open();
+        assertTrue(reopened.exists("complete"));
+        assertFalse(reopened.exists("torn"));
+
+        reopened.put("after", new ByteArrayInputStream(content(3, 100)));
+        assertArrayEquals(content(3, 100), reopened.get("after").readAllBytes());
+    }
+
+    @Test
+    public void compactionReclaimsDeletedSpace() throws IOException {
+
+        SegmentBlobStore store = open();
+        for (int i = 0; i < 200; i++) {
+            store.put("key-" + i, new ByteArrayInputStream(content(i, 8000)));
+        }
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 != 0) {
+                store.delete("key-" + i);
+            }
+        }
+        int segmentsBefore = segmentFiles().size();
+
+        assertTrue(store.compact(0.5) > 0);
+
+        assertTrue(segmentFiles().size() < segmentsBefore);
+        for (int i = 0; i < 200; i += 10) {
+            assertArrayEquals(content(i, 8000), store.get("key-" + i).readAllBytes());
+        }
+        store.close();
+        openStores.remove(store);
+
+        SegmentBlobStore reopened = open();
+        assertEquals(20, reopened.getPackedCount());
+        assertFalse(reopened.exists("key-1"));
+        assertArrayEquals(content(190, 8000), reopened.get("key-190").readAllBytes());
+    }
+
+    @Test
+    public void compactionDropsTombstonesOfKeysNotInOlderSegments() throws IOException {
+
+        SegmentBlobStore store = open();
+        for (int i = 0; store.getSegmentCount() < 2; i++) {
+            store.put("live-" + i, new ByteArrayInputStream(content(i, 8000)));
+        }
+
+        // The second segment holds files written and deleted again
+        for (int i = 0; store.getSegmentCount() < 3; i++) {
+            store.put("deleted-" + i, new ByteArrayInputStream(content(i, 8000)));
+            if (store.getSegmentCount() < 3) {
+                store.delete("deleted-" + i);
+            }
+        }
+
+        assertEquals(1, store.compact(0.5));
+
+        // No older segment held the deleted keys, so no tombstone was copied to count as dead again
+        assertEquals(0, store.getDeadBytes());
+    }
+
+    @Test
+    public void segmentDirectoryHasASingleWriter() throws IOException {
+
+        SegmentBlobStore store = open();
+        assertThrows(IOException.class, this::open);
+
+        store.close();
+        openStores.remove(store);
+        open().put("key", new ByteArrayInputStream(content(1, 100)));
+    }
+
+    @Test
+    public void concurrentWritesAreAllStored() throws Exception {
+
+        SegmentBlobStore store = open();
+        ExecutorService executorService = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                int n = i;
+                futures.add(executorService.submit(() -> store.put("key-" + n, new ByteArrayInputStream(content(n, 1000 + n)))));
+            }
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(content(i, 1000 + i), store.get("key-" + i).readAllBytes());
+        }
+    }
+
+    @Test
+    public void sliceResourceReadsRanges() throws IOException {
+
+        SegmentBlobStore store = open();
+        byte[] content = content(7, 4000);
+        store.put("key", new ByteArrayInputStream(content));
+
+        Resource resource = store.getResource("key");
+        assertEquals(4000, resource.contentLength());
+        try (var inputStream = resource.getInputStream()) {
+            assertEquals(1000, inputStream.skip(1000));
+            assertEquals(content[1000] & 0xff, inputStream.read());
+        }
+    }
+
+    private SegmentBlobStore open() throws IOException {
+        return open(directory);
+    }
+
+    private SegmentBlobStore open(Path root) throws IOException {
+
+        SegmentBlobStore store = new SegmentBlobStore(new LocalBlobStore(root.resolve("files"), 0),
+                root.resolve("segments"), SEGMENT_SIZE, MAX_PACKED_SIZE, true);
+        openStores.add(store);
+        return store;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory.resolve("segments"), "*.seg")) {
+            directoryStream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private static byte[] content(int seed, int length) {
+
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (seed * 31 + i);
+        }
+        return content;
+    }
+}
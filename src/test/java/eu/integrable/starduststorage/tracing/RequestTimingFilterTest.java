@@ -0,0 +1,76 @@
+package eu.integrable.starduststorage.tracing;
+
+import eu.integrable.starduststorage.service.StorageMetrics;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RequestTimingFilterTest {
+
+    @Test
+    public void timingIsResetBetweenRequests() throws Exception {
+
+        RequestTimingFilter filter = new RequestTimingFilter(1.0, 0, true);
+
+        MockHttpServletResponse first = filter(filter, timing -> timing.add(StorageMetrics.Phase.METADATA, TimeUnit.MILLISECONDS.toNanos(2)));
+        assertTrue(first.getHeader(RequestTiming.SERVER_TIMING).startsWith("metadata;dur=2.000, total;dur="));
+        assertNull(RequestTiming.current());
+
+        // The same thread reuses its timing, the phases of the first request are gone
+        MockHttpServletResponse second = filter(filter, timing -> timing.add(StorageMetrics.Phase.PERMISSION, TimeUnit.MILLISECONDS.toNanos(1)));
+        assertTrue(second.getHeader(RequestTiming.SERVER_TIMING).startsWith("permission;dur=1.000, total;dur="));
+    }
+
+    @Test
+    public void serverTimingIsSentOnlyWhenExposed() throws Exception {
+
+        RequestTimingFilter filter = new RequestTimingFilter(1.0, 0, false);
+
+        assertNull(filter(filter, timing -> timing.add(StorageMetrics.Phase.METADATA, 1000)).getHeader(RequestTiming.SERVER_TIMING));
+        assertNotNull(filter(filter, RequestTiming::expose).getHeader(RequestTiming.SERVER_TIMING));
+
+        // Exposing one request does not expose the next
+        assertNull(filter(filter, timing -> { }).getHeader(RequestTiming.SERVER_TIMING));
+    }
+
+    @Test
+    public void requestsOutsideTheSampleAreNotTimed() throws Exception {
+
+        RequestTimingFilter filter = new RequestTimingFilter(0, 0, true);
+
+        MockHttpServletResponse response = filter(filter, timing -> assertNull(timing));
+        assertNull(response.getHeader(RequestTiming.SERVER_TIMING));
+        assertEquals(200, response.getStatus());
+    }
+
+    private static MockHttpServletResponse filter(RequestTimingFilter filter, Handler handler) throws ServletException, IOException {
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        Servlet servlet = new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) {
+                handler.handle(RequestTiming.current());
+            }
+        };
+        filter.doFilter(new MockHttpServletRequest("GET", "/api/v1/storage/file/id"), response, new MockFilterChain(servlet));
+        return response;
+    }
+
+    private interface Handler {
+        void handle(RequestTiming timing);
+    }
+}